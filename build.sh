@@ -5,7 +5,8 @@ set -e
 
 mkdir -p bin;
 
-javac $(find src -name "*.java") $(find test -name "*.java") -d bin
+# Java 16 is the minimum; see README.md.
+javac --release 16 $(find src -name "*.java") $(find test -name "*.java") -d bin
 (
     cd bin;
     jar -cvfe \
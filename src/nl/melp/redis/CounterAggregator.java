@@ -0,0 +1,481 @@
+package nl.melp.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind aggregation of counters, for counters that only need to be eventually consistent.
+ * <p>
+ * Increments are accumulated per key in a {@link LongAdder}, which is striped over CPU's so concurrent increments of
+ * the same key do not contend. The accumulated deltas are flushed periodically, or as soon as the number of pending
+ * keys exceeds a threshold, as one pipelined batch of INCRBY, HINCRBY and PFADD commands. This turns any number of
+ * increments per key into one command per key per flush.
+ * <p>
+ * If the connection fails, the unsent deltas are put back to be retried with the next flush; if it fails halfway
+ * through a batch, the whole batch is retried, so some deltas may be applied twice. Deltas of commands that the
+ * server rejects (e.g. WRONGTYPE or an overflow) would fail again, so they are dropped and reported to the error
+ * handler. The pending deltas are flushed one last time when the aggregator is closed.
+ */
+public class CounterAggregator implements AutoCloseable {
+	/**
+	 * Maximum number of commands per round trip.
+	 */
+	private static final int MAX_BATCH_SIZE = 10000;
+
+	/**
+	 * A key, or a field of a hash.
+	 */
+	private static final class Counter {
+		private final String key;
+		private final String field;
+
+		Counter(String key, String field) {
+			this.key = key;
+			this.field = field;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Counter && key.equals(((Counter) o).key) && Objects.equals(field, ((Counter) o).field);
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() * 31 + Objects.hashCode(field);
+		}
+	}
+
+	/**
+	 * The accumulator of a key: a sum of deltas, or a set of elements.
+	 * <p>
+	 * Idle cells are removed from the map and retired. A writer that looked up a cell just before that may still be
+	 * about to add to it, so writers register themselves with two monotonic counters, which are striped like the
+	 * value. Once a retired cell has no registered writers left, it can be drained one last time and dropped.
+	 */
+	private static final class Cell {
+		private final LongAdder value;
+		private final Set<String> elements;
+		private final LongAdder entered = new LongAdder();
+		private final LongAdder exited = new LongAdder();
+		private volatile boolean retired = false;
+
+		Cell(boolean isSet) {
+			this.value = isSet ? null : new LongAdder();
+			this.elements = isSet ? ConcurrentHashMap.newKeySet() : null;
+		}
+
+		/**
+		 * @return false if the cell was retired, in which case nothing was added.
+		 */
+		boolean add(long delta, String element) {
+			entered.increment();
+			try {
+				if (retired) {
+					return false;
+				}
+				if (element == null) {
+					value.add(delta);
+				} else {
+					elements.add(element);
+				}
+				return true;
+			} finally {
+				exited.increment();
+			}
+		}
+
+		/**
+		 * @return Whether no writer can add to this retired cell anymore.
+		 */
+		boolean isQuiescent() {
+			// Both only increase, and exited never exceeds entered, so reading exited first can not give a false match.
+			long e = exited.sum();
+			return entered.sum() == e;
+		}
+	}
+
+	/**
+	 * A delta or a set of elements taken out of the accumulators to be flushed.
+	 */
+	private static final class Pending {
+		private final Counter counter;
+		private final long delta;
+		private final String key;
+		private final List<String> elements;
+
+		Pending(Counter counter, long delta) {
+			this.counter = counter;
+			this.delta = delta;
+			this.key = null;
+			this.elements = null;
+		}
+
+		Pending(String key, List<String> elements) {
+			this.counter = null;
+			this.delta = 0;
+			this.key = key;
+			this.elements = elements;
+		}
+	}
+
+	private final Supplier<Redis> connector;
+	private final int maxPendingKeys;
+	private final ConcurrentHashMap<Counter, Cell> counters = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Cell> sets = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+	/**
+	 * Cells of idle keys which were removed from the maps, but may still have writers.
+	 */
+	private final List<Map.Entry<Counter, Cell>> retiredCounters = new ArrayList<>();
+	private final List<Map.Entry<String, Cell>> retiredSets = new ArrayList<>();
+
+	private Redis redis = null;
+	private volatile boolean closed = false;
+	private volatile Redis.ErrorHandler errorHandler = Exception::printStackTrace;
+
+	private final LongAdder numUpdates = new LongAdder();
+	private final LongAdder numCommands = new LongAdder();
+	private final LongAdder numFailed = new LongAdder();
+	private final LongAdder numFlushes = new LongAdder();
+
+	/**
+	 * Construct the aggregator and start flushing periodically.
+	 *
+	 * @param connector           Supplies the connection to flush with; a new one is requested after a failure.
+	 * @param flushIntervalMillis Interval between periodic flushes.
+	 * @param maxPendingKeys      Number of pending keys above which a flush is started early.
+	 */
+	public CounterAggregator(Supplier<Redis> connector, long flushIntervalMillis, int maxPendingKeys) {
+		this.connector = connector;
+		this.maxPendingKeys = maxPendingKeys;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, CounterAggregator.class.getSimpleName());
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param errorHandler Receives failures of periodic flushes and the commands of which the deltas were dropped.
+	 *                     By default they are printed.
+	 * @return self for chaining
+	 */
+	public CounterAggregator setErrorHandler(Redis.ErrorHandler errorHandler) {
+		this.errorHandler = errorHandler;
+		return this;
+	}
+
+	/**
+	 * Add to a counter, i.e. INCRBY.
+	 *
+	 * @param key   Key
+	 * @param delta Increment
+	 */
+	public void incrBy(String key, long delta) {
+		add(new Counter(key, null), delta);
+	}
+
+	/**
+	 * Add to a hash field, i.e. HINCRBY.
+	 *
+	 * @param key   Key
+	 * @param field Hash field
+	 * @param delta Increment
+	 */
+	public void hincrBy(String key, String field, long delta) {
+		add(new Counter(key, field), delta);
+	}
+
+	/**
+	 * Add an element to a HyperLogLog, i.e. PFADD. Duplicates within a flush interval are sent only once.
+	 *
+	 * @param key     Key
+	 * @param element Element
+	 */
+	public void pfadd(String key, String element) {
+		checkOpen();
+		while (true) {
+			Cell cell = sets.get(key);
+			if (cell == null) {
+				cell = sets.computeIfAbsent(key, k -> new Cell(true));
+				checkSize();
+			}
+			if (cell.add(0, element)) {
+				break;
+			}
+		}
+		numUpdates.increment();
+	}
+
+	private void add(Counter counter, long delta) {
+		checkOpen();
+		while (true) {
+			Cell cell = counters.get(counter);
+			if (cell == null) {
+				cell = counters.computeIfAbsent(counter, k -> new Cell(false));
+				checkSize();
+			}
+			if (cell.add(delta, null)) {
+				break;
+			}
+		}
+		numUpdates.increment();
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The aggregator is closed");
+		}
+	}
+
+	private void checkSize() {
+		if (counters.size() + sets.size() > maxPendingKeys && flushRequested.compareAndSet(false, true)) {
+			try {
+				flusher.execute(() -> {
+					flushRequested.set(false);
+					flushQuietly();
+				});
+			} catch (RejectedExecutionException e) {
+				// Closed concurrently; the final flush takes care of it.
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException | RuntimeException e) {
+			// An exception escaping the task would cancel the periodic flushes for good.
+			reportError(e);
+		}
+	}
+
+	private void reportError(Exception e) {
+		try {
+			errorHandler.onError(e);
+		} catch (RuntimeException handlerError) {
+			handlerError.printStackTrace();
+		}
+	}
+
+	/**
+	 * Send all pending deltas now. Deltas rejected by the server are dropped and reported to the error handler.
+	 *
+	 * @throws IOException If the connection failed; all unsent deltas were put back.
+	 */
+	public synchronized void flush() throws IOException {
+		List<Pending> pending = drain();
+		if (pending.isEmpty()) {
+			return;
+		}
+		numFlushes.increment();
+		long[] results = new long[Math.min(pending.size(), MAX_BATCH_SIZE)];
+		for (int from = 0; from < pending.size(); from += MAX_BATCH_SIZE) {
+			int to = Math.min(pending.size(), from + MAX_BATCH_SIZE);
+			try {
+				if (redis == null) {
+					redis = connector.get();
+					if (redis == null) {
+						throw new IOException("Could not connect");
+					}
+				}
+				Redis.LongBatch batch = redis.longBatch();
+				for (int i = from; i < to; i++) {
+					Pending p = pending.get(i);
+					if (p.counter == null) {
+						Object[] args = new Object[p.elements.size() + 2];
+						args[0] = "PFADD";
+						args[1] = p.key;
+						for (int j = 0; j < p.elements.size(); j++) {
+							args[j + 2] = p.elements.get(j);
+						}
+						batch.call(args);
+					} else if (p.counter.field == null) {
+						batch.incrBy(p.counter.key, p.delta);
+					} else {
+						batch.hincrBy(p.counter.key, p.counter.field, p.delta);
+					}
+				}
+				int numErrors = batch.read(results);
+				numCommands.add(to - from);
+				for (int i = from; numErrors > 0 && i < to; i++) {
+					String error = batch.getError(i - from);
+					if (error != null) {
+						numFailed.increment();
+						reportError(new IOException("Dropped " + describe(pending.get(i)) + ": " + error));
+						numErrors--;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				for (int i = from; i < pending.size(); i++) {
+					requeue(pending.get(i));
+				}
+				discardConnection();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Take the deltas out of the accumulators, by subtracting what was read rather than resetting them, so
+	 * concurrent increments are not lost.
+	 */
+	private List<Pending> drain() {
+		List<Pending> ret = new ArrayList<>();
+		drainRetired(retiredCounters, ret);
+		drainRetired(retiredSets, ret);
+		drain(counters, retiredCounters, ret);
+		drain(sets, retiredSets, ret);
+		return ret;
+	}
+
+	private static <K> void drain(ConcurrentHashMap<K, Cell> cells, List<Map.Entry<K, Cell>> retired, List<Pending> out) {
+		for (Map.Entry<K, Cell> entry : cells.entrySet()) {
+			if (!drain(entry.getKey(), entry.getValue(), out) && cells.remove(entry.getKey(), entry.getValue())) {
+				entry.getValue().retired = true;
+				retired.add(entry);
+			}
+		}
+	}
+
+	private static <K> void drainRetired(List<Map.Entry<K, Cell>> retired, List<Pending> out) {
+		for (Iterator<Map.Entry<K, Cell>> it = retired.iterator(); it.hasNext(); ) {
+			Map.Entry<K, Cell> entry = it.next();
+			// Checked before draining, so the drain sees everything that was added.
+			boolean quiescent = entry.getValue().isQuiescent();
+			drain(entry.getKey(), entry.getValue(), out);
+			if (quiescent) {
+				it.remove();
+			}
+		}
+	}
+
+	private static boolean drain(Object key, Cell cell, List<Pending> out) {
+		if (cell.value != null) {
+			long delta = cell.value.sum();
+			if (delta == 0) {
+				return false;
+			}
+			cell.value.add(-delta);
+			out.add(new Pending((Counter) key, delta));
+			return true;
+		}
+		List<String> elements = new ArrayList<>();
+		for (String element : cell.elements) {
+			if (cell.elements.remove(element)) {
+				elements.add(element);
+			}
+		}
+		if (elements.isEmpty()) {
+			return false;
+		}
+		out.add(new Pending((String) key, elements));
+		return true;
+	}
+
+	private static String describe(Pending p) {
+		if (p.counter == null) {
+			return "PFADD " + p.key + " of " + p.elements.size() + " elements";
+		}
+		if (p.counter.field == null) {
+			return "INCRBY " + p.counter.key + " " + p.delta;
+		}
+		return "HINCRBY " + p.counter.key + " " + p.counter.field + " " + p.delta;
+	}
+
+	private void requeue(Pending p) {
+		if (p.counter == null) {
+			for (String element : p.elements) {
+				while (!sets.computeIfAbsent(p.key, k -> new Cell(true)).add(0, element)) {
+					Thread.yield();
+				}
+			}
+		} else {
+			while (!counters.computeIfAbsent(p.counter, k -> new Cell(false)).add(p.delta, null)) {
+				Thread.yield();
+			}
+		}
+	}
+
+	private void discardConnection() {
+		if (redis instanceof Redis.Managed) {
+			try {
+				((Redis.Managed) redis).abort();
+			} catch (IOException ignored) {
+			}
+		}
+		redis = null;
+	}
+
+	/**
+	 * @return The number of increments and additions.
+	 */
+	public long getNumUpdates() {
+		return numUpdates.sum();
+	}
+
+	/**
+	 * @return The number of commands sent to the server.
+	 */
+	public long getNumCommands() {
+		return numCommands.sum();
+	}
+
+	/**
+	 * @return The number of commands which the server rejected, of which the deltas were dropped.
+	 */
+	public long getNumFailed() {
+		return numFailed.sum();
+	}
+
+	/**
+	 * @return The number of flushes that sent commands.
+	 */
+	public long getNumFlushes() {
+		return numFlushes.sum();
+	}
+
+	/**
+	 * Stop the periodic flushes and flush all pending deltas.
+	 *
+	 * @throws IOException If the final flush failed; the deltas are lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				do {
+					flush();
+				} while (!retiredCounters.isEmpty() || !retiredSets.isEmpty());
+			} finally {
+				if (redis instanceof Redis.Managed) {
+					((Redis.Managed) redis).close();
+				}
+				redis = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.Parser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe client which enforces a deadline per call, and optionally hedges idempotent reads.
+ * <p>
+ * Every call is executed on a pooled connection by an I/O thread, while the calling thread waits at most until
+ * its deadline. If the deadline passes, the connection is not reused right away: as soon as the late reply has been
+ * read the connection is back in sync and is returned to the pool. If the reply does not arrive within the retire
+ * timeout either, the connection is aborted and discarded.
+ * <p>
+ * A hedged read is sent to a second connection (preferably to a replica) if the first one did not reply within the
+ * 95th percentile of recent call latencies; the first reply wins.
+ */
+public class DeadlineClient implements AutoCloseable {
+	/**
+	 * Thrown when a call did not complete before its deadline.
+	 */
+	public static class DeadlineExceeded extends InterruptedIOException {
+		private static final long serialVersionUID = 1L;
+
+		DeadlineExceeded(String msg) {
+			super(msg);
+		}
+	}
+
+	/**
+	 * Connection factories per node; the first one is the primary, the others are replicas used for hedging.
+	 */
+	private final List<Supplier<Redis.Managed>> nodes;
+
+	/**
+	 * Idle connections per node.
+	 */
+	private final List<ConcurrentLinkedDeque<Redis.Managed>> idle;
+
+	private final ExecutorService io = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, DeadlineClient.class.getSimpleName() + "-io");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, DeadlineClient.class.getSimpleName() + "-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final LatencyTracker latencies = new LatencyTracker(1024);
+	private final AtomicInteger nextReplica = new AtomicInteger(0);
+
+	/**
+	 * Lower bound of the hedge delay, so a very fast primary does not cause every read to be hedged.
+	 */
+	private static final long MIN_HEDGE_DELAY_MICROS = 100;
+
+	private final long retireAfterMillis;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Construct the client.
+	 *
+	 * @param primary           Creates connections to the primary.
+	 * @param replicas          Create connections to replicas, used for hedged reads. If there are none, hedged reads
+	 *                          are sent to a second connection to the primary.
+	 * @param retireAfterMillis A connection of which the reply did not arrive within this many milliseconds is aborted.
+	 */
+	@SafeVarargs
+	public DeadlineClient(Supplier<Redis.Managed> primary, long retireAfterMillis, Supplier<Redis.Managed>... replicas) {
+		this.nodes = new ArrayList<>();
+		this.nodes.add(primary);
+		for (Supplier<Redis.Managed> replica : replicas) {
+			this.nodes.add(replica);
+		}
+		this.idle = new ArrayList<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			this.idle.add(new ConcurrentLinkedDeque<>());
+		}
+		this.retireAfterMillis = retireAfterMillis;
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Execute a command on the primary and wait for the result at most until the deadline.
+	 *
+	 * @param timeoutMillis Number of milliseconds to wait for the reply.
+	 * @param args          Command and arguments to pass into redis.
+	 * @param <T>           The expected result type
+	 * @return Result of redis.
+	 * @throws DeadlineExceeded If the deadline passed.
+	 * @throws IOException      Propagated
+	 */
+	public <T> T call(long timeoutMillis, Object... args) throws IOException {
+		return await(execute(0, args), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	/**
+	 * Execute an idempotent read on the primary, and send it to a replica as well if the primary does not reply
+	 * within the 95th percentile latency. The first reply is returned.
+	 * <p>
+	 * Only use this for commands without side effects, since the command may be executed twice.
+	 *
+	 * @param timeoutMillis Number of milliseconds to wait for a reply.
+	 * @param args          Command and arguments to pass into redis.
+	 * @param <T>           The expected result type
+	 * @return Result of redis.
+	 * @throws DeadlineExceeded If the deadline passed.
+	 * @throws IOException      Propagated
+	 */
+	public <T> T hedgedCall(long timeoutMillis, Object... args) throws IOException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final CompletableFuture<T> first = execute(0, args);
+		final long delay = TimeUnit.MICROSECONDS.toNanos(getHedgeDelayMicros());
+		if (delay >= deadline - System.nanoTime()) {
+			return await(first, deadline);
+		}
+
+		try {
+			return first.get(delay, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			// fall through to hedging
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for reply");
+		} catch (ExecutionException | CancellationException e) {
+			return await(first, deadline);
+		}
+
+		int node = nodes.size() == 1 ? 0 : 1 + Math.floorMod(nextReplica.getAndIncrement(), nodes.size() - 1);
+		final CompletableFuture<T> second = execute(node, args);
+		final CompletableFuture<T> winner = new CompletableFuture<>();
+		final AtomicInteger failures = new AtomicInteger(0);
+		for (CompletableFuture<T> f : Arrays.asList(first, second)) {
+			f.whenComplete((result, error) -> {
+				if (error == null) {
+					winner.complete(result);
+				} else if (failures.incrementAndGet() == 2) {
+					winner.completeExceptionally(error);
+				}
+			});
+		}
+		return await(winner, deadline);
+	}
+
+	/**
+	 * @return The current delay in microseconds after which a read is hedged, or Long.MAX_VALUE if there are not
+	 * enough samples yet.
+	 */
+	public long getHedgeDelayMicros() {
+		long p95 = latencies.getP95();
+		return p95 == 0 ? Long.MAX_VALUE : Math.max(MIN_HEDGE_DELAY_MICROS, TimeUnit.NANOSECONDS.toMicros(p95));
+	}
+
+	private <T> T await(CompletableFuture<T> future, long deadline) throws IOException {
+		try {
+			return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new DeadlineExceeded("Deadline exceeded");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for reply");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private <T> CompletableFuture<T> execute(int node, Object... args) throws IOException {
+		if (closed) {
+			throw new IOException("Client is closed");
+		}
+		final Redis.Managed redis = borrow(node);
+		final CompletableFuture<T> ret = new CompletableFuture<>();
+		// Decides whether the I/O thread or the retire timer is done with the connection; only the winner may release
+		// or abort it.
+		final AtomicBoolean settled = new AtomicBoolean(false);
+		try {
+			io.execute(() -> {
+				long start = System.nanoTime();
+				try {
+					T result = redis.call(args);
+					latencies.record(System.nanoTime() - start);
+					ret.complete(result);
+					// Regardless of whether the caller is still waiting, the reply has been read so the connection
+					// is in sync again, unless it was retired meanwhile.
+					if (settled.compareAndSet(false, true)) {
+						release(node, redis);
+					}
+				} catch (Parser.ServerError e) {
+					// The error reply was read completely, so the connection is still in sync.
+					ret.completeExceptionally(e);
+					if (settled.compareAndSet(false, true)) {
+						release(node, redis);
+					}
+				} catch (Throwable e) {
+					if (settled.compareAndSet(false, true)) {
+						abort(redis);
+					}
+					ret.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			abort(redis);
+			throw new IOException("Client is closed");
+		}
+		ScheduledFuture<?> retire = timer.schedule(
+			() -> {
+				if (settled.compareAndSet(false, true)) {
+					abort(redis);
+				}
+			},
+			retireAfterMillis,
+			TimeUnit.MILLISECONDS
+		);
+		ret.whenComplete((result, error) -> retire.cancel(false));
+		return ret;
+	}
+
+	private Redis.Managed borrow(int node) throws IOException {
+		Redis.Managed redis = idle.get(node).poll();
+		if (redis == null) {
+			redis = nodes.get(node).get();
+			if (redis == null) {
+				throw new IOException("Could not connect to node " + node);
+			}
+		}
+		return redis;
+	}
+
+	private void release(int node, Redis.Managed redis) {
+		idle.get(node).push(redis);
+		// A call that completes while the client is closing must not leave its connection behind.
+		if (closed) {
+			try {
+				closeIdle();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void closeIdle() throws IOException {
+		for (ConcurrentLinkedDeque<Redis.Managed> connections : idle) {
+			Redis.Managed redis;
+			while ((redis = connections.poll()) != null) {
+				redis.close();
+			}
+		}
+	}
+
+	private static void abort(Redis.Managed redis) {
+		try {
+			redis.abort();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Wait for the calls in progress, and close all connections. Calls in progress end when their reply arrives or
+	 * when their retire timeout passes, so this takes at most retireAfterMillis.
+	 *
+	 * @throws InterruptedIOException If interrupted while waiting; the remaining connections are closed as their
+	 *                                calls complete.
+	 * @throws IOException            Propagated
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		io.shutdown();
+		try {
+			io.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for calls in progress");
+		} finally {
+			timer.shutdown();
+			closeIdle();
+		}
+	}
+
+	/**
+	 * Keeps a window of recent latencies and periodically recomputes the 95th percentile.
+	 */
+	static class LatencyTracker {
+		private final long[] samples;
+		private long n = 0;
+		private volatile long p95 = 0;
+
+		LatencyTracker(int size) {
+			this.samples = new long[size];
+		}
+
+		synchronized void record(long nanos) {
+			samples[(int) (n++ % samples.length)] = nanos;
+			if (n % 64 == 0 || n == 16) {
+				int size = (int) Math.min(n, samples.length);
+				long[] sorted = Arrays.copyOf(samples, size);
+				Arrays.sort(sorted);
+				p95 = sorted[(int) (size * 0.95)];
+			}
+		}
+
+		long getP95() {
+			return p95;
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.Encoder;
+import nl.melp.redis.protocol.Parser;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps records and plain objects to Redis hashes, with one hash field per component or field.
+ * <p>
+ * Accessors are looked up once per class as method handles, and the field names are encoded once, so saving an
+ * object writes the HSET command straight to the encoder, and loading decodes the HGETALL or HMGET reply straight
+ * into the object without building the generic List representation of the reply.
+ * <p>
+ * Supported property types are String, byte[], enums, and the primitive types and their wrappers. Null values are
+ * not written. For plain objects, all non-static, non-transient fields are mapped (including those of superclasses),
+ * and a no-argument constructor is required.
+ * <p>
+ * Property values are written through the codec of the connection (see {@link Redis#setCodec}), which decodes them
+ * again when they are loaded. Keys and field names are sent as-is.
+ *
+ * @param <T> The mapped type.
+ */
+public final class HashMapper<T> {
+	private static final ClassValue<HashMapper<?>> MAPPERS = new ClassValue<HashMapper<?>>() {
+		@Override
+		protected HashMapper<?> computeValue(Class<?> type) {
+			return new HashMapper<>(type);
+		}
+	};
+
+	private static final byte[] HSET = Encoder.encodeBulkString("HSET".getBytes());
+	private static final byte[] HGETALL = Encoder.encodeBulkString("HGETALL".getBytes());
+	private static final byte[] HMGET = Encoder.encodeBulkString("HMGET".getBytes());
+
+	/**
+	 * The conversion of a property from and to its stored representation.
+	 */
+	private enum Kind {
+		STRING, BYTES, LONG, INT, SHORT, BYTE, DOUBLE, FLOAT, BOOLEAN, CHAR, ENUM
+	}
+
+	/**
+	 * A single mapped component or field.
+	 */
+	private static final class Property {
+		final int index;
+		final String name;
+		final byte[] nameBytes;
+		final byte[] encodedName;
+		final Class<?> type;
+		final Kind kind;
+		final Object defaultValue;
+		final MethodHandle getter;
+		final MethodHandle setter;
+
+		Property(int index, String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+			this.index = index;
+			this.name = name;
+			this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			this.encodedName = Encoder.encodeBulkString(nameBytes);
+			this.type = type;
+			this.kind = kindOf(type);
+			this.defaultValue = type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+			this.getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+			this.setter = setter == null ? null : setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+		}
+
+		void write(Encoder encoder, Object value) throws IOException {
+			switch (kind) {
+				case STRING:
+					encoder.writeValue(((String) value).getBytes(StandardCharsets.UTF_8));
+					break;
+				case BYTES:
+					encoder.writeValue((byte[]) value);
+					break;
+				case LONG:
+				case INT:
+				case SHORT:
+				case BYTE:
+					encoder.writeValue(((Number) value).longValue());
+					break;
+				case BOOLEAN:
+					encoder.writeValue((Boolean) value ? 1 : 0);
+					break;
+				case CHAR:
+					encoder.writeValue(value.toString().getBytes(StandardCharsets.UTF_8));
+					break;
+				case ENUM:
+					encoder.writeValue(((Enum<?>) value).name().getBytes(StandardCharsets.UTF_8));
+					break;
+				default:
+					encoder.writeValue(value.toString().getBytes(StandardCharsets.US_ASCII));
+			}
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Object read(byte[] value) {
+			if (value == null) {
+				return defaultValue;
+			}
+			switch (kind) {
+				case STRING:
+					return new String(value, StandardCharsets.UTF_8);
+				case BYTES:
+					return value;
+				case LONG:
+					return parseLong(value, Long.MIN_VALUE, Long.MAX_VALUE);
+				case INT:
+					return (int) parseLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+				case SHORT:
+					return (short) parseLong(value, Short.MIN_VALUE, Short.MAX_VALUE);
+				case BYTE:
+					return (byte) parseLong(value, Byte.MIN_VALUE, Byte.MAX_VALUE);
+				case DOUBLE:
+					return Double.parseDouble(new String(value, StandardCharsets.US_ASCII));
+				case FLOAT:
+					return Float.parseFloat(new String(value, StandardCharsets.US_ASCII));
+				case BOOLEAN:
+					return value.length == 1 && value[0] == '1';
+				case CHAR:
+					if (value.length == 0) {
+						throw new IllegalArgumentException("Empty value for char property " + name);
+					}
+					return new String(value, StandardCharsets.UTF_8).charAt(0);
+				case ENUM:
+					return Enum.valueOf((Class<Enum>) type, new String(value, StandardCharsets.UTF_8));
+				default:
+					throw new IllegalStateException("Unsupported kind " + kind);
+			}
+		}
+	}
+
+	private final Class<T> type;
+	private final Property[] properties;
+
+	/**
+	 * For records the canonical constructor taking an Object[] of all components, otherwise the no-arg constructor.
+	 */
+	private final MethodHandle constructor;
+
+	/**
+	 * @param type The class to map.
+	 * @param <T>  The mapped type.
+	 * @return The mapper for the class, which is created once.
+	 * @throws IllegalArgumentException If the class can not be mapped.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> HashMapper<T> of(Class<T> type) {
+		return (HashMapper<T>) MAPPERS.get(type);
+	}
+
+	private HashMapper(Class<T> type) {
+		this.type = type;
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		List<Property> props = new ArrayList<>();
+		try {
+			if (type.isRecord()) {
+				RecordComponent[] components = type.getRecordComponents();
+				Class<?>[] types = new Class<?>[components.length];
+				for (int i = 0; i < components.length; i++) {
+					Method accessor = components[i].getAccessor();
+					accessor.setAccessible(true);
+					types[i] = components[i].getType();
+					props.add(new Property(i, components[i].getName(), types[i], lookup.unreflect(accessor), null));
+				}
+				Constructor<T> c = type.getDeclaredConstructor(types);
+				c.setAccessible(true);
+				this.constructor = lookup.unreflectConstructor(c)
+					.asSpreader(Object[].class, types.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+			} else {
+				for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+					for (Field field : c.getDeclaredFields()) {
+						if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0 || field.isSynthetic()) {
+							continue;
+						}
+						field.setAccessible(true);
+						props.add(new Property(props.size(), field.getName(), field.getType(), lookup.unreflectGetter(field), lookup.unreflectSetter(field)));
+					}
+				}
+				Constructor<T> c = type.getDeclaredConstructor();
+				c.setAccessible(true);
+				this.constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new IllegalArgumentException("Can not map " + type.getCanonicalName() + ": " + e.getMessage(), e);
+		}
+		this.properties = props.toArray(new Property[0]);
+	}
+
+	/**
+	 * Write all non-null properties of the object to the hash with HSET.
+	 *
+	 * @param redis  The connection to use.
+	 * @param key    The key of the hash (a String or byte[]).
+	 * @param object The object to save.
+	 * @return The number of fields that were added to the hash.
+	 * @throws IOException Propagated
+	 */
+	public long save(Redis redis, Object key, T object) throws IOException {
+		final Object[] values = new Object[properties.length];
+		int n = 0;
+		for (Property p : properties) {
+			values[p.index] = invoke(p.getter, object);
+			if (values[p.index] != null) {
+				n++;
+			}
+		}
+		if (n == 0) {
+			throw new IllegalArgumentException("All properties are null");
+		}
+		final int numFields = n;
+		return redis.call(
+			encoder -> {
+				encoder.writeArrayHeader(2 + numFields * 2);
+				encoder.writeEncoded(HSET);
+				encoder.writeBulkString(Encoder.toBytes(key));
+				for (Property p : properties) {
+					if (values[p.index] != null) {
+						encoder.writeEncoded(p.encodedName);
+						p.write(encoder, values[p.index]);
+					}
+				}
+			},
+			Parser::readLong
+		);
+	}
+
+	/**
+	 * Load the complete object with HGETALL. Fields in the hash which are not mapped are ignored, properties which are
+	 * not in the hash are left at their default value.
+	 *
+	 * @param redis The connection to use.
+	 * @param key   The key of the hash (a String or byte[]).
+	 * @return The object, or null if the hash does not exist.
+	 * @throws IOException Propagated
+	 */
+	public T load(Redis redis, Object key) throws IOException {
+		return redis.call(
+			encoder -> {
+				encoder.writeArrayHeader(2);
+				encoder.writeEncoded(HGETALL);
+				encoder.writeBulkString(Encoder.toBytes(key));
+			},
+			parser -> {
+				long n = parser.readArrayLength();
+				if (n <= 0) {
+					return null;
+				}
+				byte[][] values = new byte[properties.length][];
+				for (long i = 0; i < n; i += 2) {
+					byte[] field = parser.readBulkString();
+					byte[] value = parser.readBulkString();
+					Property p = find(field);
+					if (p != null) {
+						values[p.index] = value;
+					}
+				}
+				return create(values);
+			}
+		);
+	}
+
+	/**
+	 * Load only the specified properties with HMGET; all other properties are left at their default value.
+	 *
+	 * @param redis  The connection to use.
+	 * @param key    The key of the hash (a String or byte[]).
+	 * @param fields The names of the properties to load.
+	 * @return The object, or null if none of the fields exist or no fields were specified.
+	 * @throws IOException Propagated
+	 */
+	public T load(Redis redis, Object key, String... fields) throws IOException {
+		if (fields.length == 0) {
+			// HMGET requires at least one field.
+			return null;
+		}
+		final Property[] selected = new Property[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			selected[i] = find(fields[i].getBytes(StandardCharsets.UTF_8));
+			if (selected[i] == null) {
+				throw new IllegalArgumentException("Unknown property " + fields[i] + " of " + type.getCanonicalName());
+			}
+		}
+		return redis.call(
+			encoder -> {
+				encoder.writeArrayHeader(2 + selected.length);
+				encoder.writeEncoded(HMGET);
+				encoder.writeBulkString(Encoder.toBytes(key));
+				for (Property p : selected) {
+					encoder.writeEncoded(p.encodedName);
+				}
+			},
+			parser -> {
+				long n = parser.readArrayLength();
+				byte[][] values = new byte[properties.length][];
+				boolean any = false;
+				for (int i = 0; i < n; i++) {
+					values[selected[i].index] = parser.readBulkString();
+					any |= values[selected[i].index] != null;
+				}
+				return any ? create(values) : null;
+			}
+		);
+	}
+
+	/**
+	 * @return The names of the mapped properties, which are used as hash fields.
+	 */
+	public List<String> getFields() {
+		List<String> ret = new ArrayList<>(properties.length);
+		for (Property p : properties) {
+			ret.add(p.name);
+		}
+		return ret;
+	}
+
+	private Property find(byte[] field) {
+		for (Property p : properties) {
+			if (Arrays.equals(p.nameBytes, field)) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+	private T create(byte[][] values) {
+		if (type.isRecord()) {
+			Object[] args = new Object[properties.length];
+			for (Property p : properties) {
+				args[p.index] = p.read(values[p.index]);
+			}
+			return type.cast(invoke(constructor, args));
+		}
+		T ret = type.cast(invoke(constructor));
+		for (Property p : properties) {
+			if (values[p.index] != null) {
+				invoke(p.setter, ret, p.read(values[p.index]));
+			}
+		}
+		return ret;
+	}
+
+	private static Object invoke(MethodHandle handle, Object target) {
+		try {
+			return (Object) handle.invokeExact(target);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Object invoke(MethodHandle handle, Object[] args) {
+		try {
+			return (Object) handle.invokeExact(args);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Object invoke(MethodHandle handle) {
+		try {
+			return (Object) handle.invokeExact();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void invoke(MethodHandle handle, Object target, Object value) {
+		try {
+			handle.invokeExact(target, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Kind kindOf(Class<?> type) {
+		if (type == String.class) {
+			return Kind.STRING;
+		} else if (type == byte[].class) {
+			return Kind.BYTES;
+		} else if (type == long.class || type == Long.class) {
+			return Kind.LONG;
+		} else if (type == int.class || type == Integer.class) {
+			return Kind.INT;
+		} else if (type == short.class || type == Short.class) {
+			return Kind.SHORT;
+		} else if (type == byte.class || type == Byte.class) {
+			return Kind.BYTE;
+		} else if (type == double.class || type == Double.class) {
+			return Kind.DOUBLE;
+		} else if (type == float.class || type == Float.class) {
+			return Kind.FLOAT;
+		} else if (type == boolean.class || type == Boolean.class) {
+			return Kind.BOOLEAN;
+		} else if (type == char.class || type == Character.class) {
+			return Kind.CHAR;
+		} else if (type.isEnum()) {
+			return Kind.ENUM;
+		}
+		throw new IllegalArgumentException("Unsupported property type " + type.getCanonicalName());
+	}
+
+	private static long parseLong(byte[] value, long min, long max) {
+		boolean negative = value.length > 0 && value[0] == '-';
+		if (value.length == (negative ? 1 : 0)) {
+			throw new NumberFormatException("Not a number: " + new String(value, StandardCharsets.US_ASCII));
+		}
+		// Accumulated negatively, since the minimum has no positive counterpart.
+		long limit = negative ? min : -max;
+		long ret = 0;
+		for (int i = negative ? 1 : 0; i < value.length; i++) {
+			int d = value[i] - '0';
+			if (d < 0 || d > 9) {
+				throw new NumberFormatException("Not a number: " + new String(value, StandardCharsets.US_ASCII));
+			}
+			if (ret < limit / 10 || ret * 10 < limit + d) {
+				throw new NumberFormatException("Out of range [" + min + ", " + max + "]: " + new String(value, StandardCharsets.US_ASCII));
+			}
+			ret = ret * 10 - d;
+		}
+		return negative ? ret : -ret;
+	}
+}
@@ -0,0 +1,135 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.Encoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable consistent hash ring which maps keys to nodes.
+ * <p>
+ * Every node is placed on the ring a number of times (virtual nodes) to even out the distribution. A key maps to the
+ * first virtual node at or after the key's hash, so adding or removing a node only moves the keys between that node's
+ * virtual nodes and their predecessors, i.e. roughly 1/n of all keys.
+ * <p>
+ * Like Redis Cluster, only the part between the first '{' and the next '}' is hashed if it is not empty, so related
+ * keys can be forced onto the same node, e.g. "{user:1}:profile" and "{user:1}:sessions".
+ */
+public final class HashRing {
+	private final Set<String> nodes;
+	private final int virtualNodes;
+
+	/**
+	 * The sorted positions of all virtual nodes on the ring.
+	 */
+	private final long[] points;
+
+	/**
+	 * The node for each of the points.
+	 */
+	private final String[] owners;
+
+	/**
+	 * Construct the ring.
+	 *
+	 * @param nodes        Node names; the names determine the positions on the ring.
+	 * @param virtualNodes Number of points per node, e.g. 160.
+	 */
+	public HashRing(Set<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("At least one node is required");
+		}
+		this.nodes = Collections.unmodifiableSet(new LinkedHashSet<>(nodes));
+		this.virtualNodes = virtualNodes;
+
+		long[][] pairs = new long[nodes.size() * virtualNodes][];
+		String[] names = this.nodes.toArray(new String[0]);
+		int n = 0;
+		for (int i = 0; i < names.length; i++) {
+			for (int v = 0; v < virtualNodes; v++) {
+				pairs[n++] = new long[]{hash((names[i] + "#" + v).getBytes(StandardCharsets.UTF_8)), i};
+			}
+		}
+		Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+		this.points = new long[pairs.length];
+		this.owners = new String[pairs.length];
+		for (int i = 0; i < pairs.length; i++) {
+			points[i] = pairs[i][0];
+			owners[i] = names[(int) pairs[i][1]];
+		}
+	}
+
+	/**
+	 * @return The nodes on the ring.
+	 */
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param node Node to add
+	 * @return A new ring with the node added.
+	 */
+	public HashRing with(String node) {
+		Set<String> n = new LinkedHashSet<>(nodes);
+		n.add(node);
+		return new HashRing(n, virtualNodes);
+	}
+
+	/**
+	 * @param node Node to remove
+	 * @return A new ring with the node removed.
+	 */
+	public HashRing without(String node) {
+		Set<String> n = new LinkedHashSet<>(nodes);
+		n.remove(node);
+		return new HashRing(n, virtualNodes);
+	}
+
+	/**
+	 * @param key The key (a String or byte[]).
+	 * @return The node the key maps to.
+	 */
+	public String nodeFor(Object key) {
+		long h = hash(hashTag(Encoder.toBytes(key)));
+		int i = Arrays.binarySearch(points, h);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	private static byte[] hashTag(byte[] key) {
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] == '{') {
+				for (int j = i + 1; j < key.length; j++) {
+					if (key[j] == '}') {
+						return j == i + 1 ? key : Arrays.copyOfRange(key, i + 1, j);
+					}
+				}
+				return key;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * 64 bit FNV-1a, followed by the MurmurHash3 finalizer to spread similar inputs over the whole ring.
+	 */
+	static long hash(byte[] data) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : data) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
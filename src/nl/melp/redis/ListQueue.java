@@ -0,0 +1,501 @@
+package nl.melp.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A FIFO queue on top of a Redis list, optimized for throughput rather than per-message latency.
+ * <p>
+ * Producers buffer values and push an entire batch with a single RPUSH. Consumers drain up to a
+ * batch of values per round trip with "LPOP key count" and only block (BLPOP) when the queue is
+ * empty.
+ * <p>
+ * If a processing list is configured, delivery is reliable: values are atomically moved to the
+ * processing list (LMOVE, or BLMOVE when the queue is empty) and only removed from there when they
+ * are acknowledged. Unacknowledged values can be put back on the queue with {@link #recover(Redis)}.
+ * <p>
+ * Note that LPOP with a count and LMOVE require Redis 6.2 or higher.
+ */
+public class ListQueue {
+	/**
+	 * The key of the list holding the queued values.
+	 */
+	private final String key;
+
+	/**
+	 * The key of the processing list, or null if delivery is not reliable.
+	 */
+	private final String processingKey;
+
+	/**
+	 * The maximum number of values pushed or popped in one round trip.
+	 */
+	private final int batchSize;
+
+	/**
+	 * Construct a queue with a default batch size of 1000 values.
+	 *
+	 * @param key The key of the list.
+	 */
+	public ListQueue(String key) {
+		this(key, null, 1000);
+	}
+
+	/**
+	 * Construct a queue.
+	 *
+	 * @param key           The key of the list.
+	 * @param processingKey The key of the processing list to use for reliable delivery, or null.
+	 * @param batchSize     The maximum number of values pushed or popped in one round trip.
+	 */
+	public ListQueue(String key, String processingKey, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		this.key = key;
+		this.processingKey = processingKey;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return Whether popped values are kept in a processing list until acknowledged.
+	 */
+	public boolean isReliable() {
+		return processingKey != null;
+	}
+
+	/**
+	 * Create a producer that writes to this queue over the specified connection.
+	 * <p>
+	 * Just like the connection, the producer is not thread safe.
+	 *
+	 * @param redis The connection to use.
+	 * @return The producer.
+	 */
+	public Producer producer(Redis redis) {
+		return new Producer(redis);
+	}
+
+	/**
+	 * Create a consumer that reads from this queue over the specified connection.
+	 * <p>
+	 * Just like the connection, the consumer is not thread safe.
+	 *
+	 * @param redis The connection to use.
+	 * @return The consumer.
+	 */
+	public Consumer consumer(Redis redis) {
+		return new Consumer(redis);
+	}
+
+	/**
+	 * Move all values from the processing list back to the head of the queue, so they will be
+	 * redelivered. Only use this if no consumers are active, or the values may be delivered twice.
+	 *
+	 * @param redis The connection to use.
+	 * @return The number of values that were moved.
+	 * @throws IOException Propagated
+	 */
+	public long recover(Redis redis) throws IOException {
+		if (!isReliable()) {
+			return 0;
+		}
+		long n = 0;
+		while (redis.call("LMOVE", processingKey, key, "RIGHT", "LEFT") != null) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Buffers values and pushes them in batches.
+	 */
+	public class Producer implements AutoCloseable {
+		private final Redis redis;
+		private final List<Object> buffer;
+
+		private Producer(Redis redis) {
+			this.redis = redis;
+			this.buffer = new ArrayList<>(batchSize + 2);
+			this.buffer.add("RPUSH");
+			this.buffer.add(key);
+		}
+
+		/**
+		 * Add a value to the buffer, which is flushed as soon as it contains a full batch.
+		 *
+		 * @param value The value (a String or byte[]).
+		 * @return self for chaining
+		 * @throws IOException Propagated
+		 */
+		public Producer add(Object value) throws IOException {
+			buffer.add(value);
+			if (buffer.size() - 2 >= batchSize) {
+				flush();
+			}
+			return this;
+		}
+
+		/**
+		 * Push all buffered values with a single RPUSH. If the push fails, the values stay buffered so the flush can
+		 * be retried, possibly on another producer's connection.
+		 *
+		 * @return The length of the list after the push, or -1 if nothing was buffered.
+		 * @throws IOException Propagated
+		 */
+		public long flush() throws IOException {
+			if (buffer.size() == 2) {
+				return -1;
+			}
+			long ret = redis.<Long>call(buffer.toArray());
+			buffer.subList(2, buffer.size()).clear();
+			return ret;
+		}
+
+		/**
+		 * Flushes the remaining values. The connection itself is not closed.
+		 *
+		 * @throws IOException Propagated
+		 */
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	/**
+	 * Pops values in batches.
+	 */
+	public class Consumer {
+		private final Redis redis;
+
+		private Consumer(Redis redis) {
+			this.redis = redis;
+		}
+
+		/**
+		 * Pop a batch of values.
+		 *
+		 * @param timeoutSeconds Maximum number of seconds to block if the queue is empty; 0 blocks indefinitely.
+		 * @return The values, or an empty list if the timeout expired.
+		 * @throws IOException Propagated
+		 */
+		public List<byte[]> poll(int timeoutSeconds) throws IOException {
+			return poll(batchSize, timeoutSeconds);
+		}
+
+		/**
+		 * Pop at most max values.
+		 *
+		 * @param max            The maximum number of values to pop.
+		 * @param timeoutSeconds Maximum number of seconds to block if the queue is empty; 0 blocks indefinitely.
+		 * @return The values, or an empty list if the timeout expired.
+		 * @throws IOException Propagated
+		 */
+		public List<byte[]> poll(int max, int timeoutSeconds) throws IOException {
+			List<byte[]> ret = isReliable() ? move(max) : pop(max);
+			if (!ret.isEmpty()) {
+				return ret;
+			}
+
+			if (isReliable()) {
+				byte[] value = redis.call("BLMOVE", key, processingKey, "LEFT", "RIGHT", Integer.toString(timeoutSeconds));
+				return value == null ? Collections.emptyList() : Collections.singletonList(value);
+			}
+			List<Object> value = redis.call("BLPOP", key, Integer.toString(timeoutSeconds));
+			return value == null ? Collections.emptyList() : Collections.singletonList((byte[]) value.get(1));
+		}
+
+		/**
+		 * Remove handled values from the processing list with a single pipelined round trip.
+		 * This is a no-op if delivery is not reliable.
+		 *
+		 * @param values The values to acknowledge.
+		 * @throws IOException Propagated
+		 */
+		public void ack(Iterable<byte[]> values) throws IOException {
+			if (!isReliable()) {
+				return;
+			}
+			Redis.Pipeline p = redis.pipeline();
+			boolean any = false;
+			for (byte[] value : values) {
+				p.call("LREM", processingKey, "1", value);
+				any = true;
+			}
+			if (any) {
+				p.read();
+			}
+		}
+
+		private List<byte[]> pop(int max) throws IOException {
+			List<Object> values = redis.call("LPOP", key, Integer.toString(max));
+			if (values == null) {
+				return Collections.emptyList();
+			}
+			List<byte[]> ret = new ArrayList<>(values.size());
+			for (Object value : values) {
+				ret.add((byte[]) value);
+			}
+			return ret;
+		}
+
+		private List<byte[]> move(int max) throws IOException {
+			// Probe with a single LMOVE and size the rest of the batch by the length of the list, so an empty or
+			// nearly empty queue does not cost a full batch of LMOVEs.
+			List<Object> probe = redis.pipeline()
+				.call("LMOVE", key, processingKey, "LEFT", "RIGHT")
+				.call("LLEN", key)
+				.read();
+			if (probe.get(0) == null) {
+				return Collections.emptyList();
+			}
+			List<byte[]> ret = new ArrayList<>(max);
+			ret.add((byte[]) probe.get(0));
+			int n = (int) Math.min(max - 1, (Long) probe.get(1));
+			if (n == 0) {
+				return ret;
+			}
+			Redis.Pipeline p = redis.pipeline();
+			for (int i = 0; i < n; i++) {
+				p.call("LMOVE", key, processingKey, "LEFT", "RIGHT");
+			}
+			for (Object value : p.read()) {
+				if (value == null) {
+					// Other consumers emptied the list meanwhile.
+					break;
+				}
+				ret.add((byte[]) value);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Start a pool of consumers which each poll over their own connection and hand the values over to
+	 * a pool of worker threads.
+	 * <p>
+	 * Values of which the handler threw an exception are not acknowledged, so in reliable mode they remain in
+	 * the processing list. Failures are printed to stderr.
+	 *
+	 * @param connector      Supplies a connection for each of the consumers.
+	 * @param numConsumers   Number of consumer connections.
+	 * @param numWorkers     Number of worker threads executing the handler.
+	 * @param timeoutSeconds Number of seconds each blocking poll waits, which bounds the time close() takes.
+	 * @param handler        Handles each of the values.
+	 * @return The running pool.
+	 */
+	public ConsumerPool consume(
+		Supplier<Redis> connector,
+		int numConsumers,
+		int numWorkers,
+		int timeoutSeconds,
+		Redis.FailableConsumer<byte[], Exception> handler
+	) {
+		return consume(connector, numConsumers, numWorkers, timeoutSeconds, handler, Exception::printStackTrace);
+	}
+
+	/**
+	 * Start a pool of consumers which each poll over their own connection and hand the values over to
+	 * a pool of worker threads.
+	 * <p>
+	 * A consumer of which the connection or a command fails reports the failure, closes the connection and
+	 * reconnects after a short delay. Values it handed over before the failure are acknowledged on the new
+	 * connection once handled; if the pool is closed before a consumer reconnected, they remain in the processing
+	 * list. Exceptions of the handler are reported as well, and the values are not acknowledged, so in reliable
+	 * mode they remain in the processing list.
+	 *
+	 * @param connector      Supplies a connection for each of the consumers, again after each failure.
+	 * @param numConsumers   Number of consumer connections.
+	 * @param numWorkers     Number of worker threads executing the handler.
+	 * @param timeoutSeconds Number of seconds each blocking poll waits, which bounds the time close() takes.
+	 * @param handler        Handles each of the values.
+	 * @param errorHandler   Receives the failures of consumers and of the handler.
+	 * @return The running pool.
+	 */
+	public ConsumerPool consume(
+		Supplier<Redis> connector,
+		int numConsumers,
+		int numWorkers,
+		int timeoutSeconds,
+		Redis.FailableConsumer<byte[], Exception> handler,
+		Redis.ErrorHandler errorHandler
+	) {
+		return new ConsumerPool(connector, numConsumers, numWorkers, timeoutSeconds, handler, errorHandler);
+	}
+
+	/**
+	 * A running set of consumers and their workers.
+	 */
+	public class ConsumerPool implements AutoCloseable {
+		/**
+		 * The delay before a failed consumer reconnects.
+		 */
+		private static final long RETRY_DELAY_MILLIS = 1000;
+
+		private final ExecutorService consumers;
+		private final ExecutorService workers;
+		private final Redis.ErrorHandler errorHandler;
+		private final AtomicLong handled = new AtomicLong(0);
+		private final AtomicLong failed = new AtomicLong(0);
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private volatile boolean running = true;
+
+		private ConsumerPool(
+			Supplier<Redis> connector,
+			int numConsumers,
+			int numWorkers,
+			int timeoutSeconds,
+			Redis.FailableConsumer<byte[], Exception> handler,
+			Redis.ErrorHandler errorHandler
+		) {
+			this.consumers = Executors.newFixedThreadPool(numConsumers);
+			this.workers = Executors.newFixedThreadPool(numWorkers);
+			this.errorHandler = errorHandler;
+
+			for (int i = 0; i < numConsumers; i++) {
+				consumers.submit(() -> {
+					// Limits the number of values handed over to the workers but not yet handled, so a slow handler
+					// pushes back on the consumer rather than filling up the worker queue. Both are kept across
+					// reconnects, so values handed over before a failure are still waited for and acknowledged.
+					final Semaphore inFlight = new Semaphore(batchSize * 2);
+					final ConcurrentLinkedQueue<byte[]> done = new ConcurrentLinkedQueue<>();
+					while (running) {
+						Redis redis = null;
+						try {
+							redis = connector.get();
+							if (redis == null) {
+								throw new IOException("Could not connect");
+							}
+							run(consumer(redis), timeoutSeconds, handler, inFlight, done);
+						} catch (InterruptedException e) {
+							return null;
+						} catch (IOException | RuntimeException e) {
+							if (running) {
+								reportError(e);
+							}
+						} finally {
+							if (redis instanceof Redis.Managed) {
+								try {
+									((Redis.Managed) redis).close();
+								} catch (IOException ignored) {
+								}
+							}
+						}
+						if (closed.await(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS)) {
+							return null;
+						}
+					}
+					return null;
+				});
+			}
+		}
+
+		private void reportError(Exception e) {
+			try {
+				errorHandler.onError(e);
+			} catch (RuntimeException handlerError) {
+				handlerError.printStackTrace();
+			}
+		}
+
+		private void run(
+			Consumer consumer,
+			int timeoutSeconds,
+			Redis.FailableConsumer<byte[], Exception> handler,
+			Semaphore inFlight,
+			ConcurrentLinkedQueue<byte[]> done
+		) throws IOException, InterruptedException {
+			final List<byte[]> acks = new ArrayList<>(batchSize);
+
+			while (running) {
+				int max = Math.max(1, Math.min(batchSize, inFlight.availablePermits()));
+				inFlight.acquire(max);
+				List<byte[]> values;
+				try {
+					values = consumer.poll(max, timeoutSeconds);
+				} catch (IOException | RuntimeException e) {
+					inFlight.release(max);
+					throw e;
+				}
+				inFlight.release(max - values.size());
+
+				for (byte[] value : values) {
+					workers.submit(() -> {
+						try {
+							handler.accept(value);
+							handled.incrementAndGet();
+							done.add(value);
+						} catch (Exception e) {
+							failed.incrementAndGet();
+							reportError(e);
+						} finally {
+							inFlight.release();
+						}
+					});
+				}
+
+				byte[] value;
+				while ((value = done.poll()) != null) {
+					acks.add(value);
+				}
+				try {
+					consumer.ack(acks);
+				} catch (IOException | RuntimeException e) {
+					// Acknowledged on the next connection.
+					done.addAll(acks);
+					throw e;
+				} finally {
+					acks.clear();
+				}
+			}
+
+			inFlight.acquire(batchSize * 2);
+			consumer.ack(done);
+		}
+
+		/**
+		 * @return The number of values handled successfully so far.
+		 */
+		public long getHandled() {
+			return handled.get();
+		}
+
+		/**
+		 * @return The number of values of which the handler failed so far.
+		 */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * Stop polling, wait for the workers to finish and acknowledge the last handled values.
+		 * <p>
+		 * If interrupted while waiting, this returns early with the interrupt flag of the thread set.
+		 */
+		@Override
+		public void close() {
+			running = false;
+			closed.countDown();
+			consumers.shutdown();
+			try {
+				consumers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				workers.shutdown();
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				workers.shutdown();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,849 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.ChannelInputStream;
+import nl.melp.redis.protocol.ChannelOutputStream;
+import nl.melp.redis.protocol.Encoder;
+import nl.melp.redis.protocol.Parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * An open loop load generator, which reports latency percentiles and throughput over time.
+ * <p>
+ * Operations are started on a fixed schedule at the target rate, regardless of how long earlier operations took.
+ * Latency is measured from the time an operation was scheduled to start rather than from the time it was sent, so
+ * operations that queued up behind a slow reply are counted with their full delay. A closed loop benchmark would
+ * silently send fewer requests during a stall instead ("coordinated omission") and underreport the tail latency.
+ * <p>
+ * Usage: java -cp ... nl.melp.redis.LoadGenerator [--target=HOST:PORT|SOCKET_PATH|local] [--rate=OPS_PER_SECOND]
+ * [--duration=SECONDS] [--mode=single|pipeline|pooled|async] [--connections=N] [--mix=GET:90,SET:10]
+ * [--keys=N] [--zipf=THETA] [--value-size=BYTES] [--interval=SECONDS]
+ * <p>
+ * The "local" target starts an in-memory stand-in server, to measure the client without a real server.
+ */
+public class LoadGenerator {
+	/**
+	 * How operations are sent.
+	 */
+	public enum Mode {
+		/**
+		 * One connection; each operation waits for the reply of the previous one.
+		 */
+		SINGLE,
+		/**
+		 * One connection; all operations that are due are written as one pipeline, and the replies are read before
+		 * the next pipeline is written.
+		 */
+		PIPELINE,
+		/**
+		 * Multiple threads with a connection each, which execute operations as they are due.
+		 */
+		POOLED,
+		/**
+		 * One connection; operations are written as they are due, while a separate thread reads the replies.
+		 */
+		ASYNC
+	}
+
+	private static final List<String> COMMANDS = List.of("GET", "SET", "INCR", "HGET", "HSET", "EXISTS", "DEL");
+
+	private final Supplier<Redis.Managed> connector;
+	private double rate = 10000;
+	private long durationMillis = 10000;
+	private Mode mode = Mode.SINGLE;
+	private int connections = 4;
+	private int maxBatch = 1000;
+	private String[] mixCommands = {"GET", "SET"};
+	private int[] mixWeights = {90, 100};
+	private int numKeys = 100000;
+	private Zipf zipf = null;
+	private byte[] value = new byte[100];
+	private PrintStream report = null;
+	private long reportIntervalMillis = 1000;
+
+	/**
+	 * @param connector Creates connections; called once per connection the mode needs.
+	 */
+	public LoadGenerator(Supplier<Redis.Managed> connector) {
+		this.connector = connector;
+		new Random(0).nextBytes(value);
+	}
+
+	/**
+	 * @param opsPerSecond The number of operations to start per second.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setRate(double opsPerSecond) {
+		if (opsPerSecond <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		this.rate = opsPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param millis How long to start operations for.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setDuration(long millis) {
+		this.durationMillis = millis;
+		return this;
+	}
+
+	/**
+	 * @param mode        How operations are sent.
+	 * @param connections The number of connections for {@link Mode#POOLED}; the other modes use one.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setMode(Mode mode, int connections) {
+		this.mode = mode;
+		this.connections = connections;
+		return this;
+	}
+
+	/**
+	 * @param maxBatch The maximum number of operations per pipeline, or in flight in {@link Mode#ASYNC}.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setMaxBatch(int maxBatch) {
+		this.maxBatch = maxBatch;
+		return this;
+	}
+
+	/**
+	 * Set the command mix, e.g. "GET:90,SET:10". Supported are GET, SET, INCR, HGET, HSET, EXISTS and DEL, which
+	 * all operate on a single key chosen from the key distribution.
+	 *
+	 * @param mix Comma separated commands with relative weights.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setMix(String mix) {
+		String[] parts = mix.split(",");
+		String[] commands = new String[parts.length];
+		int[] weights = new int[parts.length];
+		int total = 0;
+		for (int i = 0; i < parts.length; i++) {
+			String[] pair = parts[i].trim().split(":");
+			commands[i] = pair[0].toUpperCase();
+			if (!COMMANDS.contains(commands[i])) {
+				throw new IllegalArgumentException("Unsupported command " + pair[0] + ", expected one of " + COMMANDS);
+			}
+			total += pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+			weights[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("The weights must add up to more than zero");
+		}
+		this.mixCommands = commands;
+		this.mixWeights = weights;
+		return this;
+	}
+
+	/**
+	 * @param numKeys The number of distinct keys.
+	 * @param theta   Skew of the zipfian key distribution, between 0 and 1 exclusive (e.g. 0.99), or 0 for a
+	 *                uniform distribution.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setKeys(int numKeys, double theta) {
+		if (theta < 0 || theta >= 1) {
+			throw new IllegalArgumentException("Theta must be at least 0 and less than 1");
+		}
+		this.numKeys = numKeys;
+		this.zipf = theta == 0 ? null : new Zipf(numKeys, theta);
+		return this;
+	}
+
+	/**
+	 * @param size The size of the values written by SET and HSET, in bytes.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setValueSize(int size) {
+		this.value = new byte[size];
+		new Random(0).nextBytes(value);
+		return this;
+	}
+
+	/**
+	 * @param out            Receives a line with throughput and latency percentiles per interval, or null to disable.
+	 * @param intervalMillis The length of an interval.
+	 * @return self for chaining
+	 */
+	public LoadGenerator setReport(PrintStream out, long intervalMillis) {
+		this.report = out;
+		this.reportIntervalMillis = intervalMillis;
+		return this;
+	}
+
+	/**
+	 * Latencies and counts of a run.
+	 */
+	public static class Result {
+		private final long[] counts;
+		private final long count;
+		private final long errors;
+		private final long maxNanos;
+		private final long nanos;
+
+		Result(long[] counts, long errors, long maxNanos, long nanos) {
+			this.counts = counts;
+			this.count = Histogram.count(counts);
+			this.errors = errors;
+			this.maxNanos = maxNanos;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return The number of completed operations, including error replies.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The number of error replies.
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return The number of completed operations per second.
+		 */
+		public double getThroughput() {
+			return nanos == 0 ? 0 : count * 1e9 / nanos;
+		}
+
+		/**
+		 * @param percentile E.g. 99.9
+		 * @return The latency in microseconds below which the percentage of operations completed, within about 2%.
+		 */
+		public long getLatencyMicros(double percentile) {
+			return TimeUnit.NANOSECONDS.toMicros(Math.min(maxNanos, Histogram.percentile(counts, percentile)));
+		}
+
+		/**
+		 * @return The highest latency in microseconds.
+		 */
+		public long getMaxMicros() {
+			return TimeUnit.NANOSECONDS.toMicros(maxNanos);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%d operations (%d errors) in %.3fs, %.0f ops/s, latency (us) p50 %d p99 %d p99.9 %d max %d",
+				count, errors, nanos / 1e9, getThroughput(),
+				getLatencyMicros(50), getLatencyMicros(99), getLatencyMicros(99.9), getMaxMicros()
+			);
+		}
+	}
+
+	private final Histogram histogram = new Histogram();
+	private final LongAdder errors = new LongAdder();
+	private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+	/**
+	 * Run the load and wait until all replies were read. A generator can be run once.
+	 *
+	 * @return The latencies and counts.
+	 * @throws IOException The first connection error, after which the run was stopped. Runtime exceptions, e.g. of
+	 *                     the connector, are wrapped.
+	 */
+	public Result run() throws IOException {
+		final long total = (long) (rate * durationMillis / 1000);
+		final long start = System.nanoTime();
+		ScheduledExecutorService reporter = null;
+		if (report != null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, LoadGenerator.class.getSimpleName() + "-report");
+				t.setDaemon(true);
+				return t;
+			});
+			Reporter task = new Reporter(start);
+			reporter.scheduleAtFixedRate(task, reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+
+		try {
+			switch (mode) {
+				case SINGLE:
+					runPooled(start, total, 1);
+					break;
+				case POOLED:
+					runPooled(start, total, connections);
+					break;
+				case PIPELINE:
+					runPipeline(start, total);
+					break;
+				case ASYNC:
+					runAsync(start, total);
+					break;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} finally {
+			if (reporter != null) {
+				reporter.shutdownNow();
+			}
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return new Result(histogram.snapshot(), errors.sum(), histogram.getMax(), System.nanoTime() - start);
+	}
+
+	/**
+	 * @param start Start of the run
+	 * @param i     Sequence number of an operation
+	 * @return The time the operation is scheduled to start.
+	 */
+	private long intended(long start, long i) {
+		return start + (long) (i * 1e9 / rate);
+	}
+
+	private void runPooled(final long start, final long total, int numThreads) throws InterruptedException {
+		final AtomicLong next = new AtomicLong(0);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < numThreads; t++) {
+			Thread thread = new Thread(() -> {
+				try (Redis.Managed redis = connect()) {
+					long i;
+					while (failure.get() == null && (i = next.getAndIncrement()) < total) {
+						long intended = intended(start, i);
+						awaitTime(intended);
+						try {
+							redis.call(command());
+						} catch (Parser.ServerError e) {
+							errors.increment();
+						}
+						histogram.record(System.nanoTime() - intended);
+					}
+				} catch (IOException | RuntimeException e) {
+					fail(e);
+				}
+			}, LoadGenerator.class.getSimpleName() + "-" + t);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private void runPipeline(long start, long total) {
+		long[] batch = new long[maxBatch];
+		try (Redis.Managed redis = connect()) {
+			long i = 0;
+			while (i < total) {
+				awaitTime(intended(start, i));
+				int n = 0;
+				long now = System.nanoTime();
+				while (n < maxBatch && i < total && intended(start, i) <= now) {
+					redis.send(command());
+					batch[n++] = intended(start, i++);
+				}
+				redis.flush();
+				for (int j = 0; j < n; j++) {
+					read(redis, batch[j]);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	private void runAsync(final long start, final long total) throws InterruptedException {
+		final BlockingQueue<Long> inFlight = new ArrayBlockingQueue<>(maxBatch);
+		final Redis.Managed redis;
+		try {
+			redis = connect();
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+			return;
+		}
+		Thread readerThread = new Thread(() -> {
+			try {
+				for (long i = 0; i < total; i++) {
+					read(redis, inFlight.take());
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				// stopped by the writer
+			}
+		}, LoadGenerator.class.getSimpleName() + "-reader");
+		readerThread.start();
+
+		try {
+			long i = 0;
+			while (i < total && failure.get() == null) {
+				awaitTime(intended(start, i));
+				long now = System.nanoTime();
+				do {
+					long intended = intended(start, i++);
+					// Waits while the window is full, which delays the operation but not its intended start.
+					if (!inFlight.offer(intended)) {
+						redis.flush();
+						while (!inFlight.offer(intended, 100, TimeUnit.MILLISECONDS)) {
+							if (failure.get() != null) {
+								throw failure.get();
+							}
+						}
+					}
+					redis.send(command());
+				} while (i < total && intended(start, i) <= now);
+				redis.flush();
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		}
+		if (failure.get() != null) {
+			readerThread.interrupt();
+			abort(redis);
+			readerThread.join();
+			return;
+		}
+		readerThread.join();
+		try {
+			redis.close();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void read(Redis redis, long intended) throws IOException {
+		try {
+			redis.read();
+		} catch (Parser.ServerError e) {
+			errors.increment();
+		}
+		histogram.record(System.nanoTime() - intended);
+	}
+
+	/**
+	 * Record the first failure, which stops the run.
+	 */
+	private void fail(Exception e) {
+		failure.compareAndSet(null, e instanceof IOException ? (IOException) e : new IOException(e));
+	}
+
+	private Redis.Managed connect() throws IOException {
+		Redis.Managed redis = connector.get();
+		if (redis == null) {
+			throw new IOException("Could not connect");
+		}
+		return redis;
+	}
+
+	private static void abort(Redis.Managed redis) {
+		try {
+			redis.abort();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static void awaitTime(long time) {
+		long wait;
+		while ((wait = time - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	private Object[] command() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int pick = random.nextInt(mixWeights[mixWeights.length - 1]);
+		int c = 0;
+		while (pick >= mixWeights[c]) {
+			c++;
+		}
+		String key = "key:" + (zipf == null ? random.nextInt(numKeys) : zipf.next(random));
+		switch (mixCommands[c]) {
+			case "SET":
+				return new Object[]{"SET", key, value};
+			case "HGET":
+				return new Object[]{"HGET", key, "field"};
+			case "HSET":
+				return new Object[]{"HSET", key, "field", value};
+			default:
+				return new Object[]{mixCommands[c], key};
+		}
+	}
+
+	/**
+	 * Prints the throughput and latencies of the operations that completed since the previous interval.
+	 */
+	private class Reporter implements Runnable {
+		private final long start;
+		private long[] previous = new long[Histogram.SIZE];
+		private long previousErrors = 0;
+		private long previousTime;
+
+		Reporter(long start) {
+			this.start = start;
+			this.previousTime = start;
+			report.printf("%8s %10s %10s %10s %10s %10s %8s%n", "time(s)", "ops/s", "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "errors");
+		}
+
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			long[] current = histogram.snapshot();
+			long[] interval = new long[current.length];
+			for (int i = 0; i < current.length; i++) {
+				interval[i] = current[i] - previous[i];
+			}
+			long currentErrors = errors.sum();
+			report.printf(
+				"%8.1f %10.0f %10d %10d %10d %10d %8d%n",
+				(now - start) / 1e9,
+				Histogram.count(interval) * 1e9 / (now - previousTime),
+				TimeUnit.NANOSECONDS.toMicros(Histogram.percentile(interval, 50)),
+				TimeUnit.NANOSECONDS.toMicros(Histogram.percentile(interval, 99)),
+				TimeUnit.NANOSECONDS.toMicros(Histogram.percentile(interval, 99.9)),
+				TimeUnit.NANOSECONDS.toMicros(Histogram.percentile(interval, 100)),
+				currentErrors - previousErrors
+			);
+			previous = current;
+			previousErrors = currentErrors;
+			previousTime = now;
+		}
+	}
+
+	/**
+	 * A lock free histogram of nanosecond latencies with 64 buckets per power of two, so every recorded value is
+	 * within about 1.6% of the value its bucket reports.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 6;
+		private static final int LINEAR = 2 << SUB_BITS;
+		static final int SIZE = LINEAR + (63 - SUB_BITS - 1) * (1 << SUB_BITS);
+
+		private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		void record(long nanos) {
+			long value = Math.max(0, nanos);
+			counts.incrementAndGet(index(value));
+			max.accumulate(value);
+		}
+
+		long[] snapshot() {
+			long[] ret = new long[SIZE];
+			for (int i = 0; i < SIZE; i++) {
+				ret[i] = counts.get(i);
+			}
+			return ret;
+		}
+
+		long getMax() {
+			return max.get();
+		}
+
+		static int index(long value) {
+			if (value < LINEAR) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BITS;
+			return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + (int) (value >> shift) - (1 << SUB_BITS);
+		}
+
+		/**
+		 * @param index Bucket index
+		 * @return The highest value that is counted in the bucket.
+		 */
+		static long highestValue(int index) {
+			if (index < LINEAR) {
+				return index;
+			}
+			int exponent = (index - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+			int sub = (index - LINEAR) % (1 << SUB_BITS);
+			int shift = exponent - SUB_BITS;
+			return (((long) (1 << SUB_BITS) + sub) << shift) + (1L << shift) - 1;
+		}
+
+		static long count(long[] counts) {
+			long ret = 0;
+			for (long c : counts) {
+				ret += c;
+			}
+			return ret;
+		}
+
+		/**
+		 * @param counts     A snapshot
+		 * @param percentile E.g. 99.9
+		 * @return The value below which the percentage of values in the snapshot are, or 0 if it is empty.
+		 */
+		static long percentile(long[] counts, double percentile) {
+			long total = count(counts);
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return highestValue(i);
+				}
+			}
+			return highestValue(counts.length - 1);
+		}
+	}
+
+	/**
+	 * Zipfian distribution over 0 (most frequent) to n-1, following Gray et al., "Quickly Generating Billion-Record
+	 * Synthetic Databases", as used by YCSB.
+	 */
+	static class Zipf {
+		private final int n;
+		private final double theta;
+		private final double alpha;
+		private final double zetaN;
+		private final double eta;
+
+		Zipf(int n, double theta) {
+			this.n = n;
+			this.theta = theta;
+			this.alpha = 1 / (1 - theta);
+			double zeta = 0;
+			for (int i = 1; i <= n; i++) {
+				zeta += 1 / Math.pow(i, theta);
+			}
+			this.zetaN = zeta;
+			double zeta2 = 1 + Math.pow(0.5, theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+		}
+
+		int next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetaN;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < 1 + Math.pow(0.5, theta)) {
+				return 1;
+			}
+			return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+	/**
+	 * A minimal in-memory server for the commands of the load generator, on a Unix domain socket. Like Redis it
+	 * executes one command at a time, and it supports DEBUG SLEEP to simulate a stall.
+	 */
+	static class StandIn implements Closeable {
+		private final Path path;
+		private final ServerSocketChannel server;
+		private final Map<String, byte[]> strings = new HashMap<>();
+		private final Map<String, Map<String, byte[]>> hashes = new HashMap<>();
+
+		StandIn() throws IOException {
+			this.path = Files.createTempDirectory("redis").resolve("redis.sock");
+			this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(path));
+			Thread acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						SocketChannel c = server.accept();
+						Thread t = new Thread(() -> serve(c), StandIn.class.getSimpleName());
+						t.setDaemon(true);
+						t.start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}, StandIn.class.getSimpleName() + "-accept");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		Path getPath() {
+			return path;
+		}
+
+		private void serve(SocketChannel c) {
+			try (c) {
+				ChannelInputStream in = new ChannelInputStream(c, 1 << 16);
+				Parser parser = new Parser(in);
+				OutputStream out = new ChannelOutputStream(c, 1 << 16);
+				Encoder encoder = new Encoder(out);
+				Object command;
+				while ((command = parser.parse()) != null) {
+					List<?> args = (List<?>) command;
+					String name = new String((byte[]) args.get(0), StandardCharsets.UTF_8).toUpperCase();
+					if (name.equals("QUIT")) {
+						out.write("+OK\r\n".getBytes());
+						out.flush();
+						return;
+					}
+					synchronized (this) {
+						execute(name, args, out, encoder);
+					}
+					// Flush only when no further pipelined commands are buffered.
+					if (in.available() == 0) {
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				// disconnected
+			}
+		}
+
+		private void execute(String name, List<?> args, OutputStream out, Encoder encoder) throws IOException {
+			String key = args.size() > 1 ? new String((byte[]) args.get(1), StandardCharsets.UTF_8) : null;
+			switch (name + "/" + args.size()) {
+				case "PING/1":
+					out.write("+PONG\r\n".getBytes());
+					return;
+				case "GET/2":
+					writeNullable(out, encoder, strings.get(key));
+					return;
+				case "SET/3":
+					strings.put(key, (byte[]) args.get(2));
+					out.write("+OK\r\n".getBytes());
+					return;
+				case "INCR/2": {
+					long value = 1;
+					byte[] current = strings.get(key);
+					if (current != null) {
+						try {
+							value = Long.parseLong(new String(current, StandardCharsets.UTF_8)) + 1;
+						} catch (NumberFormatException e) {
+							out.write("-ERR value is not an integer or out of range\r\n".getBytes());
+							return;
+						}
+					}
+					strings.put(key, Long.toString(value).getBytes());
+					writeInteger(out, value);
+					return;
+				}
+				case "HGET/3":
+					Map<String, byte[]> hash = hashes.get(key);
+					writeNullable(out, encoder, hash == null ? null : hash.get(new String((byte[]) args.get(2), StandardCharsets.UTF_8)));
+					return;
+				case "HSET/4": {
+					byte[] previous = hashes.computeIfAbsent(key, k -> new HashMap<>()).put(new String((byte[]) args.get(2), StandardCharsets.UTF_8), (byte[]) args.get(3));
+					writeInteger(out, previous == null ? 1 : 0);
+					return;
+				}
+				case "EXISTS/2":
+					writeInteger(out, strings.containsKey(key) || hashes.containsKey(key) ? 1 : 0);
+					return;
+				case "DEL/2":
+					boolean removed = strings.remove(key) != null;
+					removed |= hashes.remove(key) != null;
+					writeInteger(out, removed ? 1 : 0);
+					return;
+				case "DEBUG/3":
+					if (key.equalsIgnoreCase("SLEEP")) {
+						try {
+							Thread.sleep((long) (Double.parseDouble(new String((byte[]) args.get(2), StandardCharsets.UTF_8)) * 1000));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						out.write("+OK\r\n".getBytes());
+						return;
+					}
+			}
+			out.write(("-ERR unknown command or wrong number of arguments for '" + name + "'\r\n").getBytes());
+		}
+
+		private static void writeInteger(OutputStream out, long value) throws IOException {
+			out.write((":" + value + "\r\n").getBytes());
+		}
+
+		private static void writeNullable(OutputStream out, Encoder encoder, byte[] value) throws IOException {
+			if (value == null) {
+				out.write("$-1\r\n".getBytes());
+			} else {
+				encoder.writeBulkString(value);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+			Files.deleteIfExists(path);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				System.err.println("Usage: " + LoadGenerator.class.getName() + " [--target=HOST:PORT|SOCKET_PATH|local]"
+					+ " [--rate=OPS_PER_SECOND] [--duration=SECONDS] [--mode=single|pipeline|pooled|async] [--connections=N]"
+					+ " [--mix=GET:90,SET:10] [--keys=N] [--zipf=THETA] [--value-size=BYTES] [--interval=SECONDS]");
+				System.exit(1);
+			}
+			options.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+
+		String target = options.getOrDefault("target", "127.0.0.1:6379");
+		StandIn standIn = target.equals("local") ? new StandIn() : null;
+		Supplier<Redis.Managed> connector = () -> {
+			try {
+				if (standIn != null) {
+					return Redis.connectUnix(standIn.getPath());
+				}
+				int colon = target.lastIndexOf(':');
+				if (colon > 0 && !target.contains("/")) {
+					return Redis.connect(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+				}
+				return Redis.connectUnix(Paths.get(target));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		};
+
+		LoadGenerator generator = new LoadGenerator(connector)
+			.setRate(Double.parseDouble(options.getOrDefault("rate", "10000")))
+			.setDuration((long) (Double.parseDouble(options.getOrDefault("duration", "10")) * 1000))
+			.setMode(Mode.valueOf(options.getOrDefault("mode", "single").toUpperCase()), Integer.parseInt(options.getOrDefault("connections", "4")))
+			.setMix(options.getOrDefault("mix", "GET:90,SET:10"))
+			.setKeys(Integer.parseInt(options.getOrDefault("keys", "100000")), Double.parseDouble(options.getOrDefault("zipf", "0")))
+			.setValueSize(Integer.parseInt(options.getOrDefault("value-size", "100")))
+			.setReport(System.out, (long) (Double.parseDouble(options.getOrDefault("interval", "1")) * 1000));
+		try {
+			System.out.println(generator.run());
+		} finally {
+			if (standIn != null) {
+				standIn.close();
+			}
+		}
+	}
+}
@@ -1,13 +1,23 @@
 package nl.melp.redis;
 
+import nl.melp.redis.protocol.BulkSource;
+import nl.melp.redis.protocol.ChannelInputStream;
+import nl.melp.redis.protocol.ChannelOutputStream;
 import nl.melp.redis.protocol.Encoder;
 import nl.melp.redis.protocol.Parser;
+import nl.melp.redis.protocol.ValueCodec;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A lightweight implementation of the Redis server protocol at https://redis.io/topics/protocol
@@ -51,6 +61,31 @@ public class Redis {
 		);
 	}
 
+	/**
+	 * Construct the connection with the specified blocking channel as the server connection with default buffer
+	 * sizes, e.g. a Unix domain socket.
+	 *
+	 * @param channel Connected channel to the server.
+	 */
+	public Redis(SocketChannel channel) {
+		this(channel, 1 << 16, 1 << 16);
+	}
+
+	/**
+	 * Construct the connection with the specified blocking channel as the server connection with specified buffer
+	 * sizes.
+	 *
+	 * @param channel          Connected channel to the server.
+	 * @param inputBufferSize  buffer size in bytes for the input stream
+	 * @param outputBufferSize buffer size in bytes for the output stream
+	 */
+	public Redis(SocketChannel channel, int inputBufferSize, int outputBufferSize) {
+		this(
+			new ChannelInputStream(channel, inputBufferSize),
+			new ChannelOutputStream(channel, outputBufferSize)
+		);
+	}
+
 	/**
 	 * Construct with the specified streams to respectively read from and write to.
 	 *
@@ -62,6 +97,20 @@ public class Redis {
 		this.writer = new Encoder(outputStream);
 	}
 
+	/**
+	 * Set a codec which encodes arguments wrapped in a {@link nl.melp.redis.protocol.Value} and transparently decodes
+	 * all bulk string replies, e.g. a {@link nl.melp.redis.codec.CompressionCodec}. Keys, scripts and other plain
+	 * arguments are never encoded.
+	 *
+	 * @param codec The codec, or null to disable.
+	 * @return self for chaining
+	 */
+	public Redis setCodec(ValueCodec codec) {
+		this.writer.setCodec(codec);
+		this.reader.setCodec(codec);
+		return this;
+	}
+
 	/**
 	 * Execute a Redis command and return it's result.
 	 *
@@ -76,6 +125,79 @@ public class Redis {
 		return read();
 	}
 
+	/**
+	 * Append a large value in chunks, so the server does not have to allocate a query buffer of the full size and
+	 * other clients are served in between. The APPEND commands are pipelined; they are not atomic, so readers may
+	 * observe a partially written value.
+	 *
+	 * @param key       Key (String or byte[]); the codec is not applied.
+	 * @param value     The value
+	 * @param chunkSize The maximum number of bytes per APPEND.
+	 * @return The length of the string after the last APPEND.
+	 * @throws IOException The first error reply, after all replies were read, or propagated.
+	 */
+	public long appendChunked(Object key, BulkSource value, int chunkSize) throws IOException {
+		return writeChunked(key, -1, value, chunkSize);
+	}
+
+	/**
+	 * Overwrite part of a string with a large value in chunks, like {@link #appendChunked(Object, BulkSource, int)}
+	 * but with pipelined SETRANGE commands.
+	 *
+	 * @param key       Key (String or byte[]); the codec is not applied.
+	 * @param offset    Offset in the string to write the value to.
+	 * @param value     The value
+	 * @param chunkSize The maximum number of bytes per SETRANGE.
+	 * @return The length of the string after the last SETRANGE.
+	 * @throws IOException The first error reply, after all replies were read, or propagated.
+	 */
+	public long setRangeChunked(Object key, long offset, BulkSource value, int chunkSize) throws IOException {
+		if (offset < 0) {
+			throw new IllegalArgumentException("Negative offset " + offset);
+		}
+		return writeChunked(key, offset, value, chunkSize);
+	}
+
+	private long writeChunked(Object key, long offset, BulkSource value, int chunkSize) throws IOException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		long length = value.length();
+		int n = 0;
+		for (long pos = 0; pos < length || n == 0; pos += chunkSize) {
+			BulkSource chunk = value.slice(pos, Math.min(chunkSize, length - pos));
+			if (offset < 0) {
+				writer.writeArrayHeader(3);
+				writer.writeEncoded(APPEND);
+				writer.writeBulkString(Encoder.toBytes(key));
+			} else {
+				writer.writeArrayHeader(4);
+				writer.writeEncoded(SETRANGE);
+				writer.writeBulkString(Encoder.toBytes(key));
+				writer.writeBulkString(offset + pos);
+			}
+			writer.writeBulkString(chunk);
+			n++;
+		}
+		writer.flush();
+
+		long ret = 0;
+		Parser.ServerError error = null;
+		for (int i = 0; i < n; i++) {
+			try {
+				ret = reader.readLong();
+			} catch (Parser.ServerError e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return ret;
+	}
+
 	/**
 	 * Does a blocking read to wait for redis to send data.
 	 *
@@ -87,6 +209,90 @@ public class Redis {
 		return (T) reader.parse();
 	}
 
+	/**
+	 * Decodes a reply straight from the parser, as an alternative to the generic representation of parse().
+	 *
+	 * @param <T> The type of the decoded reply.
+	 */
+	@FunctionalInterface
+	public interface ReplyReader<T> {
+		T read(Parser parser) throws IOException;
+	}
+
+	/**
+	 * Execute a Redis command and decode its result with the specified reader.
+	 *
+	 * @param reader Decodes the reply.
+	 * @param args   Command and arguments to pass into redis.
+	 * @param <T>    The type of the decoded reply
+	 * @return Result of the reader.
+	 * @throws IOException All protocol and io errors are IO exceptions.
+	 */
+	// A lambda can not be passed as an Object argument, so this never competes with call(CommandWriter, ReplyReader).
+	@SuppressWarnings("overloads")
+	public <T> T call(ReplyReader<T> reader, Object... args) throws IOException {
+		writer.write(Arrays.asList(args));
+		writer.flush();
+		return read(reader);
+	}
+
+	/**
+	 * Writes a command straight to the encoder, as an alternative to passing a list of arguments.
+	 */
+	@FunctionalInterface
+	public interface CommandWriter {
+		void write(Encoder encoder) throws IOException;
+	}
+
+	/**
+	 * Execute a Redis command written by the specified writer and decode its result with the specified reader.
+	 *
+	 * @param command Writes the command; must write exactly one RESP array.
+	 * @param reader  Decodes the reply.
+	 * @param <T>     The type of the decoded reply
+	 * @return Result of the reader.
+	 * @throws IOException All protocol and io errors are IO exceptions.
+	 */
+	@SuppressWarnings("overloads")
+	public <T> T call(CommandWriter command, ReplyReader<T> reader) throws IOException {
+		command.write(writer);
+		writer.flush();
+		return read(reader);
+	}
+
+	/**
+	 * Does a blocking read and decodes the result with the specified reader.
+	 *
+	 * @param reader Decodes the reply.
+	 * @param <T>    The type of the decoded reply
+	 * @return Result of the reader.
+	 * @throws IOException Propagated
+	 */
+	public <T> T read(ReplyReader<T> reader) throws IOException {
+		T ret = reader.read(this.reader);
+		this.reader.checkDecoded();
+		return ret;
+	}
+
+	/**
+	 * Write a command without flushing or reading the reply, for use in pipelines which need a custom reader.
+	 *
+	 * @param args Command and arguments to pass into redis.
+	 * @throws IOException Propagated
+	 */
+	void send(Object... args) throws IOException {
+		writer.write(Arrays.asList(args));
+	}
+
+	/**
+	 * Flush all commands written with send().
+	 *
+	 * @throws IOException Propagated
+	 */
+	void flush() throws IOException {
+		writer.flush();
+	}
+
 	/**
 	 * Helper class for pipelining.
 	 */
@@ -98,10 +304,10 @@ public class Redis {
 		 * @return self for chaining
 		 * @throws IOException Propagated from underlying server.
 		 */
-		public abstract Pipeline call(String... args) throws IOException;
+		public abstract Pipeline call(Object... args) throws IOException;
 
 		/**
-		 * Returns an aligned list of responses for each of the calls.
+		 * Flushes all pending commands and returns an aligned list of responses for each of the calls.
 		 *
 		 * @return The responses
 		 * @throws IOException Propagated from underlying server.
@@ -110,8 +316,8 @@ public class Redis {
 	}
 
 	/**
-	 * Create a pipeline which writes all commands to the server and only starts
-	 * reading the response when read() is called.
+	 * Create a pipeline which buffers all commands and only flushes them to the server
+	 * and starts reading the response when read() is called.
 	 *
 	 * @return A pipeline object.
 	 */
@@ -119,14 +325,14 @@ public class Redis {
 		return new Pipeline() {
 			private int n = 0;
 
-			public Pipeline call(String... args) throws IOException {
-				writer.write(Arrays.asList((Object[]) args));
-				writer.flush();
+			public Pipeline call(Object... args) throws IOException {
+				writer.write(Arrays.asList(args));
 				n++;
 				return this;
 			}
 
 			public List<Object> read() throws IOException {
+				writer.flush();
 				List<Object> ret = new LinkedList<>();
 				while (n-- > 0) {
 					ret.add(reader.parse());
@@ -136,11 +342,170 @@ public class Redis {
 		};
 	}
 
+	private static final byte[] INCRBY = Encoder.encodeBulkString("INCRBY".getBytes());
+	private static final byte[] HINCRBY = Encoder.encodeBulkString("HINCRBY".getBytes());
+	private static final byte[] EXISTS = Encoder.encodeBulkString("EXISTS".getBytes());
+	private static final byte[] SISMEMBER = Encoder.encodeBulkString("SISMEMBER".getBytes());
+	private static final byte[] APPEND = Encoder.encodeBulkString("APPEND".getBytes());
+	private static final byte[] SETRANGE = Encoder.encodeBulkString("SETRANGE".getBytes());
+
+	/**
+	 * A pipeline for commands with integer replies, which are read into a long[] rather than a list of boxed Longs.
+	 * <p>
+	 * Commands are buffered and flushed once when read() is called. Error replies do not throw, but are reported
+	 * per slot.
+	 */
+	public final class LongBatch {
+		private int n = 0;
+		private Map<Integer, String> errors = null;
+
+		private LongBatch() {
+		}
+
+		/**
+		 * Write a command with an integer reply.
+		 *
+		 * @param args Command and arguments.
+		 * @return self for chaining
+		 * @throws IOException Propagated
+		 */
+		public LongBatch call(Object... args) throws IOException {
+			writer.write(Arrays.asList(args));
+			n++;
+			return this;
+		}
+
+		/**
+		 * @param key   Key (String or byte[])
+		 * @param delta Increment
+		 * @return self for chaining
+		 * @throws IOException Propagated
+		 */
+		public LongBatch incrBy(Object key, long delta) throws IOException {
+			writer.writeArrayHeader(3);
+			writer.writeEncoded(INCRBY);
+			writer.writeBulkString(Encoder.toBytes(key));
+			writer.writeBulkString(delta);
+			n++;
+			return this;
+		}
+
+		/**
+		 * @param key   Key (String or byte[])
+		 * @param field Hash field (String or byte[])
+		 * @param delta Increment
+		 * @return self for chaining
+		 * @throws IOException Propagated
+		 */
+		public LongBatch hincrBy(Object key, Object field, long delta) throws IOException {
+			writer.writeArrayHeader(4);
+			writer.writeEncoded(HINCRBY);
+			writer.writeBulkString(Encoder.toBytes(key));
+			writer.writeBulkString(Encoder.toBytes(field));
+			writer.writeBulkString(delta);
+			n++;
+			return this;
+		}
+
+		/**
+		 * @param key Key (String or byte[])
+		 * @return self for chaining
+		 * @throws IOException Propagated
+		 */
+		public LongBatch exists(Object key) throws IOException {
+			writer.writeArrayHeader(2);
+			writer.writeEncoded(EXISTS);
+			writer.writeBulkString(Encoder.toBytes(key));
+			n++;
+			return this;
+		}
+
+		/**
+		 * @param key    Key (String or byte[])
+		 * @param member Set member (String or byte[])
+		 * @return self for chaining
+		 * @throws IOException Propagated
+		 */
+		public LongBatch sismember(Object key, Object member) throws IOException {
+			writer.writeArrayHeader(3);
+			writer.writeEncoded(SISMEMBER);
+			writer.writeBulkString(Encoder.toBytes(key));
+			writer.writeBulkString(Encoder.toBytes(member));
+			n++;
+			return this;
+		}
+
+		/**
+		 * @return The number of commands written since the last read.
+		 */
+		public int size() {
+			return n;
+		}
+
+		/**
+		 * Flush all commands and read the replies into the results array.
+		 *
+		 * @param results Receives the reply of the i-th command at index i; must hold at least size() elements.
+		 * @return The number of commands which replied with an error, see {@link #getError(int)}.
+		 * @throws IOException Propagated
+		 */
+		public int read(long[] results) throws IOException {
+			if (results.length < n) {
+				throw new IllegalArgumentException("Expected room for " + n + " results");
+			}
+			writer.flush();
+			errors = null;
+			int numErrors = 0;
+			int count = n;
+			n = 0;
+			for (int i = 0; i < count; i++) {
+				String error = reader.readLong(results, i);
+				if (error != null) {
+					if (errors == null) {
+						errors = new HashMap<>();
+					}
+					errors.put(i, error);
+					numErrors++;
+				}
+			}
+			return numErrors;
+		}
+
+		/**
+		 * @param i Index of the command in the last read batch.
+		 * @return The error message of the i-th command, or null if it succeeded.
+		 */
+		public String getError(int i) {
+			return errors == null ? null : errors.get(i);
+		}
+
+	}
+
+	/**
+	 * Create a batch for commands with integer replies, such as INCRBY, HINCRBY, EXISTS and SISMEMBER.
+	 *
+	 * @return The batch, which can be reused after each read.
+	 */
+	public LongBatch longBatch() {
+		return new LongBatch();
+	}
+
 	@FunctionalInterface
 	public interface FailableConsumer<T, E extends Throwable> {
 		void accept(T t) throws E;
 	}
 
+	/**
+	 * Receives failures of background threads, which have no caller to throw them to.
+	 */
+	@FunctionalInterface
+	public interface ErrorHandler {
+		/**
+		 * @param e The failure; the background thread keeps running.
+		 */
+		void onError(Exception e);
+	}
+
 	/**
 	 * Utility method to execute some command with redis and close the connection directly after.
 	 *
@@ -172,11 +537,32 @@ public class Redis {
 	 * Autocloseable implementation of Redis.
 	 */
 	public abstract static class Managed extends Redis implements AutoCloseable {
+		/**
+		 * The underlying connection.
+		 */
+		private final Closeable transport;
+
 		Managed(Socket s) throws IOException {
 			super(s);
+			this.transport = s;
+		}
+
+		Managed(SocketChannel c) {
+			super(c);
+			this.transport = c;
 		}
 
 		abstract public void close() throws IOException;
+
+		/**
+		 * Close the underlying connection without a QUIT call, e.g. when the connection is out of sync or stuck
+		 * in a blocking read. A read blocked in another thread will fail with an IOException.
+		 *
+		 * @throws IOException Propagated
+		 */
+		public void abort() throws IOException {
+			transport.close();
+		}
 	}
 
 	/**
@@ -198,4 +584,29 @@ public class Redis {
 			}
 		};
 	}
+
+	/**
+	 * Create a "managed" connection over a Unix domain socket, for a Redis server on the same host. This avoids the
+	 * overhead of the TCP stack on loopback connections.
+	 *
+	 * @param path Path of the socket, as configured with "unixsocket" in redis.conf
+	 * @return The Autoclosable implementation
+	 * @throws IOException Propagated
+	 */
+	public static Managed connectUnix(Path path) throws IOException {
+		SocketChannel c = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			c.connect(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+		return new Managed(c) {
+			@Override
+			public void close() throws IOException {
+				call("QUIT");
+				c.close();
+			}
+		};
+	}
 }
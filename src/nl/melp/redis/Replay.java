@@ -0,0 +1,349 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.ChannelInputStream;
+import nl.melp.redis.protocol.Parser;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a file of RESP commands, such as an AOF file or a generated "redis-cli --pipe" dump, into a server.
+ * <p>
+ * The file is memory mapped and scanned for command boundaries without decoding the arguments; it is scanned
+ * completely before anything is sent, so a truncated or foreign file is rejected up front. Contiguous ranges of
+ * commands are sent with FileChannel.transferTo, so the data is not copied through the Java heap, while a separate
+ * thread reads and counts the replies. The number of commands without a reply is bounded by a window, so the
+ * server's output buffer for this client stays bounded as well.
+ * <p>
+ * Usage: java -cp ... nl.melp.redis.Replay FILE [HOST:PORT|SOCKET_PATH] [WINDOW]
+ */
+public class Replay {
+	/**
+	 * Statistics of a replay.
+	 */
+	public static class Result {
+		private final long commands;
+		private final long bytes;
+		private final long errors;
+		private final long nanos;
+		private final List<String> firstErrors;
+
+		Result(long commands, long bytes, long errors, long nanos, List<String> firstErrors) {
+			this.commands = commands;
+			this.bytes = bytes;
+			this.errors = errors;
+			this.nanos = nanos;
+			this.firstErrors = Collections.unmodifiableList(firstErrors);
+		}
+
+		/**
+		 * @return The number of commands sent.
+		 */
+		public long getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @return The number of bytes sent.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The number of error replies.
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return The first error replies (at most 10), prefixed with the index of the command.
+		 */
+		public List<String> getFirstErrors() {
+			return firstErrors;
+		}
+
+		/**
+		 * @return The duration of the replay in nanoseconds.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = nanos / 1e9;
+			return String.format(
+				"%d commands, %.2f MB in %.3f s (%.0f commands/s, %.2f MB/s), %d errors",
+				commands,
+				bytes / 1024d / 1024d,
+				seconds,
+				commands / seconds,
+				bytes / 1024d / 1024d / seconds,
+				errors
+			);
+		}
+	}
+
+	/**
+	 * Maximum size of a single transfer; larger ranges are split at command boundaries.
+	 */
+	private static final long MAX_TRANSFER = 1 << 20;
+
+	/**
+	 * Size of the memory mapped window on the file.
+	 */
+	private static final long MAP_SIZE = 1 << 28;
+
+	/**
+	 * Replay all commands of the file.
+	 *
+	 * @param file    The file with RESP commands.
+	 * @param channel A connected, blocking channel to the server.
+	 * @param window  Maximum number of commands sent without having read their reply.
+	 * @return Statistics
+	 * @throws IOException If the file contains something else than RESP commands, or propagated. If sending fails or
+	 *                     the calling thread is interrupted, the channel is closed to stop reading replies.
+	 */
+	public static Result replay(Path file, SocketChannel channel, int window) throws IOException {
+		try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			final Scanner scanner = new Scanner(fc);
+			for (long pos = 0; pos < scanner.size; ) {
+				pos = scanner.skipCommand(pos);
+			}
+
+			final Semaphore inFlight = new Semaphore(window);
+			// One permit per command sent, plus one once everything is sent, so the reader blocks until there is a
+			// reply to read or nothing is left.
+			final Semaphore unread = new Semaphore(0);
+			final AtomicLong sent = new AtomicLong(0);
+			final long[] counts = new long[2];
+			final List<String> firstErrors = new ArrayList<>();
+			final IOException[] readError = new IOException[1];
+			final long start = System.nanoTime();
+
+			Thread reader = new Thread(() -> {
+				Parser parser = new Parser(new ChannelInputStream(channel, 1 << 16));
+				long replies = 0;
+				try {
+					while (true) {
+						unread.acquireUninterruptibly();
+						if (replies == sent.get()) {
+							// The permit of the sender being done.
+							break;
+						}
+						try {
+							parser.parse();
+						} catch (Parser.ServerError e) {
+							synchronized (counts) {
+								if (firstErrors.size() < 10) {
+									firstErrors.add(replies + ": " + e.getMessage());
+								}
+								counts[1]++;
+							}
+						}
+						replies++;
+						inFlight.release();
+					}
+				} catch (IOException e) {
+					readError[0] = e;
+					// Unblock the sender.
+					inFlight.release(window);
+				}
+				synchronized (counts) {
+					counts[0] = replies;
+				}
+			}, Replay.class.getSimpleName() + "-reader");
+			reader.setDaemon(true);
+			reader.start();
+
+			final int batch = Math.max(1, window / 2);
+			long pos = 0;
+			boolean done = false;
+			try {
+				while (pos < scanner.size && readError[0] == null) {
+					long from = pos;
+					int n = 0;
+					while (pos < scanner.size && n < batch && pos - from < MAX_TRANSFER) {
+						pos = scanner.skipCommand(pos);
+						n++;
+					}
+					inFlight.acquireUninterruptibly(n);
+					sent.addAndGet(n);
+					unread.release(n);
+					for (long p = from; p < pos; ) {
+						p += fc.transferTo(p, pos - p, channel);
+					}
+				}
+				done = true;
+			} finally {
+				unread.release();
+				if (!done) {
+					// The replies of the commands sent may never arrive; interrupting the reader closes the channel.
+					reader.interrupt();
+				}
+				join(reader);
+			}
+
+			if (readError[0] != null) {
+				throw readError[0];
+			}
+			synchronized (counts) {
+				return new Result(counts[0], pos, counts[1], System.nanoTime() - start, new ArrayList<>(firstErrors));
+			}
+		}
+	}
+
+	/**
+	 * Wait for the reader to end. If interrupted, the reader is interrupted as well, which closes the channel, and the
+	 * interrupt flag is restored once it ended.
+	 */
+	private static void join(Thread reader) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				reader.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+				reader.interrupt();
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Finds command boundaries in a memory mapped file, remapping as the scan progresses.
+	 */
+	static class Scanner {
+		private final FileChannel fc;
+		final long size;
+		private MappedByteBuffer map;
+		private long mapStart = 0;
+		private long mapEnd = 0;
+
+		Scanner(FileChannel fc) throws IOException {
+			this.fc = fc;
+			this.size = fc.size();
+			if (size >= 5 && get(0) == 'R' && get(1) == 'E' && get(2) == 'D' && get(3) == 'I' && get(4) == 'S') {
+				throw new Parser.ProtocolException("File starts with an RDB preamble; only RESP command files are supported");
+			}
+		}
+
+		/**
+		 * @param pos Start of a command
+		 * @return The position just after the command.
+		 * @throws IOException If the data at pos is not a complete RESP command.
+		 */
+		long skipCommand(long pos) throws IOException {
+			pos = expect(pos, '*');
+			long[] num = new long[1];
+			pos = number(pos, num);
+			long args = num[0];
+			for (long i = 0; i < args; i++) {
+				pos = expect(pos, '$');
+				pos = number(pos, num);
+				if (num[0] < 0) {
+					throw new Parser.ProtocolException("Unexpected null argument at offset " + pos);
+				}
+				pos += num[0];
+				pos = expect(pos, '\r');
+				pos = expect(pos, '\n');
+			}
+			return pos;
+		}
+
+		private long expect(long pos, char c) throws IOException {
+			if (get(pos) != c) {
+				throw new Parser.ProtocolException("Expected '" + (c == '\r' ? "\\r" : c == '\n' ? "\\n" : c) + "' at offset " + pos);
+			}
+			return pos + 1;
+		}
+
+		private long number(long pos, long[] out) throws IOException {
+			boolean negative = get(pos) == '-';
+			if (negative) {
+				pos++;
+			}
+			// Accumulated negatively, since Long.MIN_VALUE has no positive counterpart.
+			long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+			long ret = 0;
+			long start = pos;
+			byte b;
+			while ((b = get(pos)) >= '0' && b <= '9') {
+				if (ret < limit / 10 || ret * 10 < limit + (b - '0')) {
+					throw new Parser.ProtocolException("Number out of range at offset " + start);
+				}
+				ret = ret * 10 - (b - '0');
+				pos++;
+			}
+			if (pos == start) {
+				throw new Parser.ProtocolException("Expected a number at offset " + pos);
+			}
+			out[0] = negative ? ret : -ret;
+			pos = expect(pos, '\r');
+			return expect(pos, '\n');
+		}
+
+		byte get(long pos) throws IOException {
+			if (pos < mapStart || pos >= mapEnd) {
+				if (pos >= size) {
+					throw new Parser.ProtocolException("Unexpected end of file; the last command is incomplete");
+				}
+				mapStart = pos;
+				mapEnd = Math.min(size, pos + MAP_SIZE);
+				map = fc.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+			}
+			return map.get((int) (pos - mapStart));
+		}
+	}
+
+	/**
+	 * Connect to a server.
+	 *
+	 * @param target "host:port", or the path of a Unix domain socket.
+	 * @return The connected channel
+	 * @throws IOException Propagated
+	 */
+	static SocketChannel connect(String target) throws IOException {
+		int colon = target.lastIndexOf(':');
+		if (colon > 0 && !target.contains("/")) {
+			return SocketChannel.open(new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1))));
+		}
+		SocketChannel c = SocketChannel.open(StandardProtocolFamily.UNIX);
+		c.connect(UnixDomainSocketAddress.of(target));
+		return c;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: " + Replay.class.getName() + " FILE [HOST:PORT|SOCKET_PATH] [WINDOW]");
+			System.exit(1);
+		}
+		String target = args.length > 1 ? args[1] : "127.0.0.1:6379";
+		int window = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		try (SocketChannel channel = connect(target)) {
+			Result result = replay(Paths.get(args[0]), channel, window);
+			System.out.println(result);
+			for (String error : result.getFirstErrors()) {
+				System.out.println("  " + error);
+			}
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.ChannelInputStream;
+import nl.melp.redis.protocol.ChannelOutputStream;
+import nl.melp.redis.protocol.Encoder;
+import nl.melp.redis.protocol.Parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the replication stream of a primary, like a replica does, for change data capture.
+ * <p>
+ * After the REPLCONF / PSYNC handshake, the primary either continues from the requested offset, or starts a full
+ * resynchronization by sending an RDB snapshot, which is handed to the listener as a stream. After that every write
+ * command executed on the primary is decoded and passed to the listener, together with the replication offset just
+ * after the command. Passing the last offset and the replication ID to {@link #run(Listener, String, long)} resumes
+ * the stream without a full resync, as long as the primary's backlog still contains it.
+ * <p>
+ * The replication offset is acknowledged periodically with REPLCONF ACK, and whenever the primary asks for it with
+ * REPLCONF GETACK. If the primary requires authentication, the socket should be authenticated before it is passed
+ * to this class.
+ */
+public class ReplicationStream implements AutoCloseable {
+	/**
+	 * Receives the snapshot and the commands of the replication stream.
+	 */
+	@FunctionalInterface
+	public interface Listener {
+		/**
+		 * Called when the primary starts a full resynchronization. The default implementation skips the snapshot.
+		 *
+		 * @param replicationId The replication ID of the primary.
+		 * @param offset        The replication offset of the snapshot.
+		 * @param rdb           The RDB file; bytes which are not read are skipped after this method returns.
+		 * @throws IOException Propagated
+		 */
+		default void onSnapshot(String replicationId, long offset, InputStream rdb) throws IOException {
+		}
+
+		/**
+		 * Called for every command in the stream, including PING and SELECT, but except REPLCONF.
+		 *
+		 * @param offset  The replication offset just after the command.
+		 * @param command The command name and arguments.
+		 * @throws IOException Propagated
+		 */
+		void onCommand(long offset, byte[][] command) throws IOException;
+	}
+
+	/**
+	 * Counts the bytes read, to keep track of the replication offset.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	private final CountingInputStream input;
+	private final Parser parser;
+	private final Encoder writer;
+	private final Closeable transport;
+	private int listeningPort;
+	private long ackIntervalMillis = 1000;
+	private volatile Redis.ErrorHandler errorHandler = Exception::printStackTrace;
+
+	private volatile String replicationId = null;
+	private volatile long offset = -1;
+	private volatile boolean closed = false;
+
+	/**
+	 * Construct the stream over a connected socket.
+	 *
+	 * @param socket Connected socket to the primary.
+	 * @throws IOException If a socket error occurs.
+	 */
+	public ReplicationStream(Socket socket) throws IOException {
+		this(
+			new BufferedInputStream(socket.getInputStream(), 1 << 16),
+			new BufferedOutputStream(socket.getOutputStream(), 1024),
+			socket
+		);
+		this.listeningPort = socket.getLocalPort();
+	}
+
+	/**
+	 * Construct the stream over a connected blocking channel, e.g. a Unix domain socket.
+	 *
+	 * @param channel Connected channel to the primary.
+	 */
+	public ReplicationStream(SocketChannel channel) {
+		this(new ChannelInputStream(channel, 1 << 16), new ChannelOutputStream(channel, 1024), channel);
+	}
+
+	ReplicationStream(InputStream in, OutputStream out, Closeable transport) {
+		this.input = new CountingInputStream(in);
+		this.parser = new Parser(input);
+		this.writer = new Encoder(out);
+		this.transport = transport;
+	}
+
+	/**
+	 * @param port The port reported to the primary, which shows up in INFO replication.
+	 * @return self for chaining
+	 */
+	public ReplicationStream setListeningPort(int port) {
+		this.listeningPort = port;
+		return this;
+	}
+
+	/**
+	 * @param millis Interval between REPLCONF ACK's. Must be lower than the primary's repl-timeout.
+	 * @return self for chaining
+	 */
+	public ReplicationStream setAckInterval(long millis) {
+		this.ackIntervalMillis = millis;
+		return this;
+	}
+
+	/**
+	 * @param errorHandler Receives failures to send an ACK from the background thread; a failure of the stream itself
+	 *                     is thrown by run(). By default they are printed.
+	 * @return self for chaining
+	 */
+	public ReplicationStream setErrorHandler(Redis.ErrorHandler errorHandler) {
+		this.errorHandler = errorHandler;
+		return this;
+	}
+
+	/**
+	 * @return The replication ID of the primary, known after the handshake.
+	 */
+	public String getReplicationId() {
+		return replicationId;
+	}
+
+	/**
+	 * @return The replication offset just after the last command that was received.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Start with a full resynchronization and follow the stream until it is closed.
+	 *
+	 * @param listener Receives the snapshot and the commands.
+	 * @throws IOException Propagated; an EOFException if the primary closed the connection.
+	 */
+	public void run(Listener listener) throws IOException {
+		run(listener, null, -1);
+	}
+
+	/**
+	 * Resume the stream after the specified offset and follow it until it is closed. If the primary can not
+	 * continue from the offset, it starts a full resynchronization.
+	 *
+	 * @param listener      Receives the snapshot and the commands.
+	 * @param replicationId The replication ID as returned by {@link #getReplicationId()}, or null for a full resync.
+	 * @param offset        The offset as returned by {@link #getOffset()}
+	 * @throws IOException Propagated; an EOFException if the primary closed the connection.
+	 */
+	public void run(Listener listener, String replicationId, long offset) throws IOException {
+		ScheduledExecutorService acks = null;
+		try {
+			handshake(listener, replicationId, offset);
+
+			acks = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, ReplicationStream.class.getSimpleName() + "-ack");
+				t.setDaemon(true);
+				return t;
+			});
+			acks.scheduleWithFixedDelay(() -> {
+				try {
+					sendAck(this.offset);
+				} catch (IOException | RuntimeException e) {
+					// Caught as well, since an exception would cancel the schedule.
+					if (!closed) {
+						reportError(e);
+					}
+				}
+			}, ackIntervalMillis, ackIntervalMillis, TimeUnit.MILLISECONDS);
+
+			final long base = this.offset;
+			while (true) {
+				long n = parser.readArrayLength();
+				byte[][] command = new byte[(int) n][];
+				for (int i = 0; i < n; i++) {
+					command[i] = parser.readBulkString();
+				}
+				long end = base + input.count;
+				if (n > 0 && isCommand(command[0], "REPLCONF")) {
+					if (n > 1 && isCommand(command[1], "GETACK")) {
+						// Like a replica, report the offset before the GETACK itself.
+						sendAck(this.offset);
+					}
+					this.offset = end;
+				} else {
+					this.offset = end;
+					listener.onCommand(end, command);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				throw e;
+			}
+		} finally {
+			if (acks != null) {
+				acks.shutdownNow();
+			}
+		}
+	}
+
+	private void reportError(Exception e) {
+		try {
+			errorHandler.onError(e);
+		} catch (RuntimeException handlerError) {
+			handlerError.printStackTrace();
+		}
+	}
+
+	private void handshake(Listener listener, String replicationId, long offset) throws IOException {
+		send("REPLCONF", "listening-port", String.valueOf(listeningPort));
+		parser.parse();
+		// Without "capa eof", the primary sends the snapshot with a length prefix, also with diskless sync.
+		send("REPLCONF", "capa", "psync2");
+		parser.parse();
+		if (replicationId == null) {
+			send("PSYNC", "?", "-1");
+		} else {
+			send("PSYNC", replicationId, String.valueOf(offset + 1));
+		}
+
+		String reply = readLine();
+		if (reply.startsWith("+FULLRESYNC ")) {
+			String[] parts = reply.split(" ");
+			this.replicationId = parts[1];
+			this.offset = Long.parseLong(parts[2]);
+			receiveSnapshot(listener);
+		} else if (reply.startsWith("+CONTINUE")) {
+			String[] parts = reply.split(" ");
+			// The ID changes if the primary was promoted from a replica.
+			this.replicationId = parts.length > 1 ? parts[1] : replicationId;
+			this.offset = offset;
+		} else {
+			throw new IOException("PSYNC failed: " + reply);
+		}
+		input.count = 0;
+	}
+
+	private void receiveSnapshot(Listener listener) throws IOException {
+		String header = readLine();
+		if (!header.startsWith("$") || header.startsWith("$EOF:")) {
+			throw new Parser.ProtocolException("Unexpected snapshot header " + header);
+		}
+		final long[] remaining = {Long.parseLong(header.substring(1))};
+		InputStream rdb = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				if (remaining[0] == 0) {
+					return -1;
+				}
+				int b = input.read();
+				if (b < 0) {
+					throw new EOFException("Unexpected end of snapshot");
+				}
+				remaining[0]--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining[0] == 0) {
+					return -1;
+				}
+				int n = input.read(b, off, (int) Math.min(len, remaining[0]));
+				if (n < 0) {
+					throw new EOFException("Unexpected end of snapshot");
+				}
+				remaining[0] -= n;
+				return n;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		listener.onSnapshot(replicationId, offset, rdb);
+		byte[] skip = new byte[8192];
+		while (rdb.read(skip) >= 0) {
+			// Skip the part that the listener did not read.
+		}
+	}
+
+	/**
+	 * Read a status line, skipping the newlines the primary sends to keep the connection alive while it prepares
+	 * the snapshot.
+	 */
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = input.read()) == '\n') {
+			// Keep alive
+		}
+		while (b != '\r') {
+			if (b < 0) {
+				throw new EOFException("Unexpected end of stream");
+			}
+			line.write(b);
+			b = input.read();
+		}
+		if (input.read() != '\n') {
+			throw new Parser.ProtocolException("Expected LF");
+		}
+		return line.toString(StandardCharsets.US_ASCII);
+	}
+
+	private void sendAck(long offset) throws IOException {
+		send("REPLCONF", "ACK", String.valueOf(offset));
+	}
+
+	private void send(Object... args) throws IOException {
+		synchronized (writer) {
+			writer.write(Arrays.asList(args));
+			writer.flush();
+		}
+	}
+
+	private static boolean isCommand(byte[] name, String expected) {
+		return name != null && new String(name, StandardCharsets.US_ASCII).equalsIgnoreCase(expected);
+	}
+
+	/**
+	 * Stop following the stream; {@link #run(Listener)} returns normally.
+	 *
+	 * @throws IOException Propagated
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		transport.close();
+	}
+}
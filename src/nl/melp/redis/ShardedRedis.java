@@ -0,0 +1,336 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.Parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe client for a set of independent Redis instances, which shards keys with a {@link HashRing}.
+ * <p>
+ * Single key commands are routed to the node which owns the key. The multi key commands MGET, MSET, DEL and
+ * EXISTS are split up per node, the parts are executed in parallel and the replies are merged, so the latency
+ * is that of the slowest node rather than the sum of all nodes.
+ * <p>
+ * Each node has its own pool of connections, which grows to the number of concurrent calls to that node.
+ */
+public class ShardedRedis implements AutoCloseable {
+	/**
+	 * A pool of connections to a single node.
+	 */
+	private static class Node {
+		private final Supplier<Redis> connector;
+		private final ConcurrentLinkedDeque<Redis> idle = new ConcurrentLinkedDeque<>();
+		private volatile boolean closed = false;
+
+		Node(Supplier<Redis> connector) {
+			this.connector = connector;
+		}
+
+		<T> T call(Object... args) throws IOException {
+			Redis redis = idle.poll();
+			if (redis == null) {
+				redis = connector.get();
+				if (redis == null) {
+					throw new IOException("Could not connect");
+				}
+			}
+			boolean reuse = false;
+			try {
+				T ret = redis.call(args);
+				reuse = true;
+				return ret;
+			} catch (Parser.ServerError e) {
+				// The error reply was read completely, so the connection is still in sync.
+				reuse = true;
+				throw e;
+			} finally {
+				if (reuse) {
+					release(redis);
+				} else {
+					// The connection may be out of sync; don't reuse it.
+					close(redis);
+				}
+			}
+		}
+
+		private void release(Redis redis) {
+			idle.push(redis);
+			// A call that completes after the node was removed must not leave its connection behind.
+			if (closed) {
+				closeIdle();
+			}
+		}
+
+		void close() {
+			closed = true;
+			closeIdle();
+		}
+
+		private void closeIdle() {
+			Redis redis;
+			while ((redis = idle.poll()) != null) {
+				close(redis);
+			}
+		}
+
+		private static void close(Redis redis) {
+			if (redis instanceof Redis.Managed) {
+				try {
+					((Redis.Managed) redis).close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * The ring and the nodes on it, which are replaced together so a call always sees a node for every name on the
+	 * ring.
+	 */
+	private static class Shards {
+		private final HashRing ring;
+		private final Map<String, Node> nodes;
+
+		Shards(HashRing ring, Map<String, Node> nodes) {
+			this.ring = ring;
+			this.nodes = Collections.unmodifiableMap(nodes);
+		}
+
+		Node nodeFor(Object key) {
+			return nodes.get(ring.nodeFor(key));
+		}
+	}
+
+	private final ExecutorService executor;
+	private volatile Shards shards;
+
+	/**
+	 * Construct the client with 160 virtual nodes per node.
+	 *
+	 * @param nodes Connection factories by node name. The names determine the positions on the ring, so they should
+	 *              be stable (e.g. "host:port") rather than derived from the order.
+	 */
+	public ShardedRedis(Map<String, Supplier<Redis>> nodes) {
+		this(nodes, 160);
+	}
+
+	/**
+	 * Construct the client.
+	 *
+	 * @param nodes        Connection factories by node name.
+	 * @param virtualNodes Number of points on the ring per node.
+	 */
+	public ShardedRedis(Map<String, Supplier<Redis>> nodes, int virtualNodes) {
+		Map<String, Node> pools = new HashMap<>();
+		for (Map.Entry<String, Supplier<Redis>> node : nodes.entrySet()) {
+			pools.put(node.getKey(), new Node(node.getValue()));
+		}
+		this.shards = new Shards(new HashRing(nodes.keySet(), virtualNodes), pools);
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, ShardedRedis.class.getSimpleName());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Add a node. Only the keys which map to the new node move.
+	 *
+	 * @param name      Node name
+	 * @param connector Connection factory
+	 */
+	public synchronized void addNode(String name, Supplier<Redis> connector) {
+		Map<String, Node> pools = new HashMap<>(shards.nodes);
+		Node previous = pools.put(name, new Node(connector));
+		shards = new Shards(shards.ring.with(name), pools);
+		if (previous != null) {
+			previous.close();
+		}
+	}
+
+	/**
+	 * Remove a node and close its connections; those in use by calls in progress are closed as the calls complete.
+	 *
+	 * @param name Node name
+	 */
+	public synchronized void removeNode(String name) {
+		Map<String, Node> pools = new HashMap<>(shards.nodes);
+		Node node = pools.remove(name);
+		shards = new Shards(shards.ring.without(name), pools);
+		if (node != null) {
+			node.close();
+		}
+	}
+
+	/**
+	 * @param key The key
+	 * @return The name of the node the key maps to.
+	 */
+	public String nodeFor(Object key) {
+		return shards.ring.nodeFor(key);
+	}
+
+	/**
+	 * Execute a single key command on the node owning the key, which must be the first argument after the command
+	 * name.
+	 *
+	 * @param args Command, key and arguments.
+	 * @param <T>  The expected result type
+	 * @return Result of redis.
+	 * @throws IOException Propagated
+	 */
+	public <T> T call(Object... args) throws IOException {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Expected a command and a key");
+		}
+		return shards.nodeFor(args[1]).call(args);
+	}
+
+	/**
+	 * @param keys Keys to get
+	 * @return The values in the order of the keys, null for missing keys.
+	 * @throws IOException Propagated
+	 */
+	public List<byte[]> mget(Object... keys) throws IOException {
+		byte[][] ret = new byte[keys.length][];
+		fanOut("MGET", keys, 1, (indices, reply) -> {
+			List<?> values = (List<?>) reply;
+			int i = 0;
+			for (Object value : values) {
+				ret[indices[i++]] = (byte[]) value;
+			}
+		});
+		return Arrays.asList(ret);
+	}
+
+	/**
+	 * Set multiple keys. Note that this is only atomic per node.
+	 *
+	 * @param keysAndValues Alternating keys and values
+	 * @throws IOException Propagated
+	 */
+	public void mset(Object... keysAndValues) throws IOException {
+		if (keysAndValues.length % 2 != 0) {
+			throw new IllegalArgumentException("Expected pairs of keys and values");
+		}
+		fanOut("MSET", keysAndValues, 2, (indices, reply) -> {});
+	}
+
+	/**
+	 * @param keys Keys to delete
+	 * @return The number of keys that were deleted.
+	 * @throws IOException Propagated
+	 */
+	public long del(Object... keys) throws IOException {
+		return sum("DEL", keys);
+	}
+
+	/**
+	 * @param keys Keys to check
+	 * @return The number of keys that exist.
+	 * @throws IOException Propagated
+	 */
+	public long exists(Object... keys) throws IOException {
+		return sum("EXISTS", keys);
+	}
+
+	private long sum(String command, Object[] keys) throws IOException {
+		long[] ret = new long[1];
+		fanOut(command, keys, 1, (indices, reply) -> {
+			synchronized (ret) {
+				ret[0] += (Long) reply;
+			}
+		});
+		return ret[0];
+	}
+
+	@FunctionalInterface
+	private interface Merger {
+		void merge(int[] indices, Object reply);
+	}
+
+	/**
+	 * Split the arguments per node, execute the parts in parallel and merge the replies.
+	 *
+	 * @param command The command
+	 * @param args    Arguments, in groups of stride, of which the first of each group is the key.
+	 * @param stride  Number of arguments per key.
+	 * @param merger  Receives the indices of the groups that were sent to a node, and that node's reply.
+	 */
+	private void fanOut(String command, Object[] args, int stride, Merger merger) throws IOException {
+		final Shards shards = this.shards;
+		final Map<Node, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < args.length / stride; i++) {
+			groups.computeIfAbsent(shards.nodeFor(args[i * stride]), k -> new ArrayList<>()).add(i);
+		}
+
+		List<Future<Void>> futures = new ArrayList<>(groups.size());
+		Map.Entry<Node, List<Integer>> local = null;
+		for (Map.Entry<Node, List<Integer>> group : groups.entrySet()) {
+			if (local == null) {
+				// The first part is executed by the calling thread
+				local = group;
+				continue;
+			}
+			futures.add(executor.submit(() -> {
+				execute(command, args, stride, group, merger);
+				return null;
+			}));
+		}
+		if (local != null) {
+			execute(command, args, stride, local, merger);
+		}
+
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+
+	private void execute(String command, Object[] args, int stride, Map.Entry<Node, List<Integer>> group, Merger merger) throws IOException {
+		List<Integer> indices = group.getValue();
+		Object[] part = new Object[1 + indices.size() * stride];
+		int[] idx = new int[indices.size()];
+		part[0] = command;
+		int n = 1;
+		for (int i = 0; i < idx.length; i++) {
+			idx[i] = indices.get(i);
+			System.arraycopy(args, idx[i] * stride, part, n, stride);
+			n += stride;
+		}
+		merger.merge(idx, group.getKey().call(part));
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	@Override
+	public void close() {
+		for (Node node : shards.nodes.values()) {
+			node.close();
+		}
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,273 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.BulkSource;
+import nl.melp.redis.protocol.Encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses concurrent identical reads into a single request.
+ * <p>
+ * Each thread calls with its own connection. The first caller of a command executes it, and callers that issue
+ * a command with identical bytes while it is in flight wait for that reply instead of sending their own request.
+ * This protects the server from a stampede of identical requests, e.g. when a hot key expires.
+ * <p>
+ * Commands are collapsed on their bytes alone, so all connections used with one instance must be equivalent: the
+ * same server, the same selected database and the same codec. Use a separate instance per database or codec.
+ * <p>
+ * Only commands on the command allowlist (by default GET, MGET, HGET, HMGET, HGETALL, SMEMBERS, LRANGE, ZRANGE
+ * and EXISTS) for keys on the key allowlist (by default all keys) are collapsed; others are executed directly, as are
+ * commands with a {@link BulkSource} argument, since it can only be read once.
+ * All waiters share the reply objects unless copying is enabled, so they must not be modified. An error reply is
+ * thrown to all waiters as the same exception instance.
+ */
+public class SingleFlight {
+	/**
+	 * Fills in a cache miss, i.e. a null reply.
+	 */
+	@FunctionalInterface
+	public interface Loader {
+		/**
+		 * Called by the one caller that executed the command; the result is passed to all waiters. It may use the
+		 * connection to store the loaded value, but must not call back into the SingleFlight for the same command.
+		 *
+		 * @param redis   The connection of the caller.
+		 * @param command The command and arguments that had a null reply.
+		 * @return The reply to use instead.
+		 * @throws IOException Propagated to all waiters.
+		 */
+		Object load(Redis redis, Object[] command) throws IOException;
+	}
+
+	/**
+	 * The encoded command, as the key of the in flight requests.
+	 */
+	private static final class Key {
+		private final byte[] bytes;
+		private final int hash;
+
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private final ConcurrentHashMap<Key, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+	private volatile Set<String> commands = toSet("GET", "MGET", "HGET", "HMGET", "HGETALL", "SMEMBERS", "LRANGE", "ZRANGE", "EXISTS");
+	private volatile List<byte[]> keyPrefixes = null;
+	private volatile Loader loader = null;
+	private volatile boolean copy = false;
+
+	private final LongAdder numCalls = new LongAdder();
+	private final LongAdder numExecuted = new LongAdder();
+	private final LongAdder numCollapsed = new LongAdder();
+	private final LongAdder numLoaded = new LongAdder();
+
+	/**
+	 * @param commands The commands that may be collapsed; they must not have side effects.
+	 * @return self for chaining
+	 */
+	public SingleFlight allowCommands(String... commands) {
+		this.commands = toSet(commands);
+		return this;
+	}
+
+	/**
+	 * @param prefixes Only collapse commands of which the first key starts with one of the prefixes.
+	 * @return self for chaining
+	 */
+	public SingleFlight allowKeyPrefixes(String... prefixes) {
+		List<byte[]> p = new ArrayList<>(prefixes.length);
+		for (String prefix : prefixes) {
+			p.add(prefix.getBytes());
+		}
+		this.keyPrefixes = p;
+		return this;
+	}
+
+	/**
+	 * @param loader Called on a null reply of a collapsed command, or null to disable.
+	 * @return self for chaining
+	 */
+	public SingleFlight setLoader(Loader loader) {
+		this.loader = loader;
+		return this;
+	}
+
+	/**
+	 * @param copy Whether every waiter receives its own copy of the byte arrays and lists in the reply.
+	 * @return self for chaining
+	 */
+	public SingleFlight setCopy(boolean copy) {
+		this.copy = copy;
+		return this;
+	}
+
+	/**
+	 * Execute a command, or wait for an identical command that is in flight.
+	 *
+	 * @param redis The connection of the calling thread.
+	 * @param args  Command and arguments
+	 * @param <T>   The expected result type
+	 * @return Result of redis, or of the loader.
+	 * @throws IOException Propagated, also from the request of another caller.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T call(Redis redis, Object... args) throws IOException {
+		numCalls.increment();
+		if (!isAllowed(args)) {
+			numExecuted.increment();
+			return redis.call(args);
+		}
+
+		Key key = new Key(encode(args));
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			numCollapsed.increment();
+			return (T) await(existing);
+		}
+
+		numExecuted.increment();
+		try {
+			Object reply = redis.call(args);
+			Loader loader = this.loader;
+			if (reply == null && loader != null) {
+				numLoaded.increment();
+				reply = loader.load(redis, args);
+			}
+			inFlight.remove(key, future);
+			future.complete(reply);
+			return (T) reply;
+		} catch (IOException | RuntimeException | Error e) {
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private Object await(CompletableFuture<Object> future) throws IOException {
+		try {
+			Object reply = future.get();
+			return copy ? copy(reply) : reply;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for reply");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	private boolean isAllowed(Object[] args) {
+		if (args.length < 2 || !commands.contains(toString(args[0]).toUpperCase())) {
+			return false;
+		}
+		for (Object arg : args) {
+			if (arg instanceof BulkSource) {
+				return false;
+			}
+		}
+		List<byte[]> prefixes = this.keyPrefixes;
+		if (prefixes == null) {
+			return true;
+		}
+		byte[] key = args[1] instanceof byte[] ? (byte[]) args[1] : toString(args[1]).getBytes();
+		for (byte[] prefix : prefixes) {
+			if (key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] encode(Object[] args) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(out);
+		encoder.write(Arrays.asList(args));
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+	private static Object copy(Object reply) {
+		if (reply instanceof byte[]) {
+			return ((byte[]) reply).clone();
+		}
+		if (reply instanceof List) {
+			List<?> list = (List<?>) reply;
+			List<Object> ret = new ArrayList<>(list.size());
+			for (Object o : list) {
+				ret.add(copy(o));
+			}
+			return ret;
+		}
+		return reply;
+	}
+
+	private static String toString(Object arg) {
+		return arg instanceof byte[] ? new String((byte[]) arg, StandardCharsets.UTF_8) : String.valueOf(arg);
+	}
+
+	private static Set<String> toSet(String... commands) {
+		Set<String> ret = new HashSet<>();
+		for (String command : commands) {
+			ret.add(command.toUpperCase());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The number of calls.
+	 */
+	public long getNumCalls() {
+		return numCalls.sum();
+	}
+
+	/**
+	 * @return The number of calls that were sent to the server.
+	 */
+	public long getNumExecuted() {
+		return numExecuted.sum();
+	}
+
+	/**
+	 * @return The number of calls that waited for the reply of another call.
+	 */
+	public long getNumCollapsed() {
+		return numCollapsed.sum();
+	}
+
+	/**
+	 * @return The number of calls to the loader.
+	 */
+	public long getNumLoaded() {
+		return numLoaded.sum();
+	}
+}
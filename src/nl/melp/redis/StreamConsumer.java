@@ -0,0 +1,519 @@
+package nl.melp.redis;
+
+import nl.melp.redis.protocol.Parser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A consumer group member for a Redis Stream.
+ * <p>
+ * A single reader thread fetches entries with XREADGROUP in batches of up to COUNT entries and hands
+ * them over to worker threads. Entries are decoded straight from the parser, without building the
+ * generic List representation of the reply. Handled entries are acknowledged with one XACK per batch,
+ * which is pipelined with the next XREADGROUP. Entries which remain pending for too long (e.g. because
+ * their consumer died) are periodically reclaimed with XAUTOCLAIM.
+ * <p>
+ * If the connection or a command fails, the reader reports the failure, waits for the workers to finish the
+ * entries it handed over, and reconnects after a short delay.
+ * <p>
+ * XAUTOCLAIM requires Redis 6.2 or higher.
+ */
+public class StreamConsumer implements AutoCloseable {
+	/**
+	 * The delay before a failed reader reconnects.
+	 */
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	/**
+	 * A single stream entry.
+	 */
+	public static class Entry {
+		private final byte[] id;
+		private final byte[][] fields;
+
+		Entry(byte[] id, byte[][] fields) {
+			this.id = id;
+			this.fields = fields;
+		}
+
+		/**
+		 * @return The entry ID as it was sent by the server.
+		 */
+		public byte[] getRawId() {
+			return id;
+		}
+
+		/**
+		 * @return The entry ID, e.g. "1526919030474-55"
+		 */
+		public String getId() {
+			return new String(id, StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * @return Whether the entry was deleted from the stream while it was pending.
+		 */
+		public boolean isDeleted() {
+			return fields == null;
+		}
+
+		/**
+		 * @return The number of field/value pairs.
+		 */
+		public int size() {
+			return fields == null ? 0 : fields.length / 2;
+		}
+
+		/**
+		 * @param i Index of the pair
+		 * @return The field name of the i-th pair.
+		 */
+		public byte[] getField(int i) {
+			return fields[i * 2];
+		}
+
+		/**
+		 * @param i Index of the pair
+		 * @return The value of the i-th pair.
+		 */
+		public byte[] getValue(int i) {
+			return fields[i * 2 + 1];
+		}
+
+		/**
+		 * @param field Field name
+		 * @return The value of the first pair with the specified field name, or null if there is none.
+		 */
+		public byte[] get(String field) {
+			byte[] name = field.getBytes();
+			for (int i = 0; i < size(); i++) {
+				if (Arrays.equals(name, getField(i))) {
+					return getValue(i);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the reply of XREADGROUP, i.e. an array of [stream name, entries] pairs or null.
+	 */
+	static final Redis.ReplyReader<List<Entry>> XREADGROUP_READER = (parser) -> {
+		long numStreams = parser.readArrayLength();
+		if (numStreams <= 0) {
+			return new ArrayList<>(0);
+		}
+		List<Entry> ret = null;
+		for (long i = 0; i < numStreams; i++) {
+			parser.readArrayLength();
+			parser.readBulkString();
+			List<Entry> entries = readEntries(parser);
+			if (ret == null) {
+				ret = entries;
+			} else {
+				ret.addAll(entries);
+			}
+		}
+		return ret;
+	};
+
+	/**
+	 * Decodes the reply of XAUTOCLAIM, i.e. [next start id, entries, (deleted ids)]. Deleted ids are returned as
+	 * deleted entries.
+	 */
+	static final Redis.ReplyReader<Claimed> XAUTOCLAIM_READER = (parser) -> {
+		long n = parser.readArrayLength();
+		byte[] next = parser.readBulkString();
+		List<Entry> entries = readEntries(parser);
+		if (n > 2) {
+			long numDeleted = parser.readArrayLength();
+			for (long i = 0; i < numDeleted; i++) {
+				entries.add(new Entry(parser.readBulkString(), null));
+			}
+		}
+		return new Claimed(next, entries);
+	};
+
+	static class Claimed {
+		final byte[] next;
+		final List<Entry> entries;
+
+		Claimed(byte[] next, List<Entry> entries) {
+			this.next = next;
+			this.entries = entries;
+		}
+	}
+
+	private static List<Entry> readEntries(Parser parser) throws IOException {
+		long numEntries = parser.readArrayLength();
+		List<Entry> ret = new ArrayList<>((int) Math.max(numEntries, 0));
+		for (long i = 0; i < numEntries; i++) {
+			if (parser.readArrayLength() == -1) {
+				continue;
+			}
+			byte[] id = parser.readBulkString();
+			long numFields = parser.readArrayLength();
+			byte[][] fields = null;
+			if (numFields >= 0) {
+				fields = new byte[(int) numFields][];
+				for (int j = 0; j < numFields; j++) {
+					fields[j] = parser.readBulkString();
+				}
+			}
+			ret.add(new Entry(id, fields));
+		}
+		return ret;
+	}
+
+	/**
+	 * Create the consumer group, including the stream itself if it does not exist yet. Does nothing if the group
+	 * already exists.
+	 *
+	 * @param redis   The connection to use.
+	 * @param stream  The stream key.
+	 * @param group   The group name.
+	 * @param startId The ID of the last entry considered delivered, e.g. "$" for new entries only or "0" for all entries.
+	 * @throws IOException Propagated
+	 */
+	public static void createGroup(Redis redis, String stream, String group, String startId) throws IOException {
+		try {
+			redis.call("XGROUP", "CREATE", stream, group, startId, "MKSTREAM");
+		} catch (IOException e) {
+			if (e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) {
+				throw e;
+			}
+		}
+	}
+
+	private final Supplier<Redis> connector;
+	private final String stream;
+	private final String group;
+	private final String consumer;
+
+	private int count = 1000;
+	private int blockMillis = 1000;
+	private int numWorkers = Runtime.getRuntime().availableProcessors();
+	private Function<Entry, Object> orderingKey = null;
+	private long claimMinIdleMillis = 60_000;
+	private long claimIntervalMillis = 10_000;
+	private volatile Redis.ErrorHandler errorHandler = Exception::printStackTrace;
+
+	private final ConcurrentLinkedQueue<byte[]> acks = new ConcurrentLinkedQueue<>();
+	private final AtomicLong handled = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong claimed = new AtomicLong(0);
+
+	private ExecutorService reader;
+	private ExecutorService[] workers;
+	private Semaphore inFlight;
+	private CountDownLatch closed;
+	private volatile boolean running = false;
+
+	/**
+	 * Construct the consumer; call start() to start consuming.
+	 *
+	 * @param connector Supplies the connection the entries are read with.
+	 * @param stream    The stream key.
+	 * @param group     The consumer group, see {@link #createGroup(Redis, String, String, String)}.
+	 * @param consumer  The name of this consumer within the group.
+	 */
+	public StreamConsumer(Supplier<Redis> connector, String stream, String group, String consumer) {
+		this.connector = connector;
+		this.stream = stream;
+		this.group = group;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * @param count Maximum number of entries read per XREADGROUP, defaults to 1000.
+	 * @return self for chaining
+	 */
+	public StreamConsumer setCount(int count) {
+		this.count = count;
+		return this;
+	}
+
+	/**
+	 * @param blockMillis Number of milliseconds XREADGROUP blocks if there are no new entries, defaults to 1000.
+	 * @return self for chaining
+	 */
+	public StreamConsumer setBlockMillis(int blockMillis) {
+		this.blockMillis = blockMillis;
+		return this;
+	}
+
+	/**
+	 * @param numWorkers Number of worker threads, defaults to the number of processors.
+	 * @return self for chaining
+	 */
+	public StreamConsumer setNumWorkers(int numWorkers) {
+		this.numWorkers = numWorkers;
+		return this;
+	}
+
+	/**
+	 * Entries with equal ordering keys are handled by the same worker in stream order. By default entries are
+	 * handled by any worker.
+	 *
+	 * @param orderingKey Extracts the ordering key from an entry. Entries with a null key are all handled by the
+	 *                    same worker.
+	 * @return self for chaining
+	 */
+	public StreamConsumer setOrderingKey(Function<Entry, Object> orderingKey) {
+		this.orderingKey = orderingKey;
+		return this;
+	}
+
+	/**
+	 * @param minIdleMillis  Entries pending for at least this long are claimed from other consumers, defaults to one minute.
+	 * @param intervalMillis Interval between claims, defaults to ten seconds. Use 0 to disable claiming.
+	 * @return self for chaining
+	 */
+	public StreamConsumer setClaim(long minIdleMillis, long intervalMillis) {
+		this.claimMinIdleMillis = minIdleMillis;
+		this.claimIntervalMillis = intervalMillis;
+		return this;
+	}
+
+	/**
+	 * @param errorHandler Receives failures of the reader, the handler and the ordering key. By default they are
+	 *                     printed.
+	 * @return self for chaining
+	 */
+	public StreamConsumer setErrorHandler(Redis.ErrorHandler errorHandler) {
+		this.errorHandler = errorHandler;
+		return this;
+	}
+
+	/**
+	 * Start reading and handling entries. Entries of which the handler or the ordering key throws an exception are
+	 * not acknowledged, so they will be reclaimed eventually.
+	 *
+	 * @param handler Handles each of the entries.
+	 * @return self for chaining
+	 */
+	public StreamConsumer start(Redis.FailableConsumer<Entry, Exception> handler) {
+		if (running) {
+			throw new IllegalStateException("Already started");
+		}
+		running = true;
+		inFlight = new Semaphore(count * 2);
+		closed = new CountDownLatch(1);
+		if (orderingKey == null) {
+			workers = new ExecutorService[]{Executors.newFixedThreadPool(numWorkers)};
+		} else {
+			workers = new ExecutorService[numWorkers];
+			for (int i = 0; i < numWorkers; i++) {
+				workers[i] = Executors.newSingleThreadExecutor();
+			}
+		}
+		reader = Executors.newSingleThreadExecutor();
+		reader.submit(() -> {
+			while (running) {
+				Redis redis = null;
+				try {
+					redis = connector.get();
+					if (redis == null) {
+						throw new IOException("Could not connect");
+					}
+					run(redis, handler);
+				} catch (InterruptedException e) {
+					return null;
+				} catch (IOException | RuntimeException e) {
+					if (running) {
+						reportError(e);
+					}
+				} finally {
+					if (redis instanceof Redis.Managed) {
+						try {
+							((Redis.Managed) redis).close();
+						} catch (IOException ignored) {
+						}
+					}
+				}
+				if (!running) {
+					return null;
+				}
+				// Pending entries are read again after reconnecting, so wait until none are being handled.
+				inFlight.acquire(count * 2);
+				inFlight.release(count * 2);
+				if (closed.await(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS)) {
+					return null;
+				}
+			}
+			return null;
+		});
+		return this;
+	}
+
+	private void reportError(Exception e) {
+		try {
+			errorHandler.onError(e);
+		} catch (RuntimeException handlerError) {
+			handlerError.printStackTrace();
+		}
+	}
+
+	private void run(Redis redis, Redis.FailableConsumer<Entry, Exception> handler) throws IOException, InterruptedException {
+		final String countArg = Integer.toString(count);
+		final String blockArg = Integer.toString(blockMillis);
+		final String minIdleArg = Long.toString(claimMinIdleMillis);
+
+		// Entries that were delivered to this consumer before, but never acknowledged (e.g. after a restart).
+		String lastPendingId = "0";
+		byte[] claimStart = "0-0".getBytes();
+		long nextClaim = System.currentTimeMillis() + claimIntervalMillis;
+
+		while (running) {
+			boolean acked = sendAcks(redis);
+
+			List<Entry> entries;
+			if (lastPendingId != null) {
+				redis.send("XREADGROUP", "GROUP", group, consumer, "COUNT", countArg, "STREAMS", stream, lastPendingId);
+				entries = read(redis, acked, XREADGROUP_READER);
+				lastPendingId = entries.isEmpty() ? null : entries.get(entries.size() - 1).getId();
+			} else if (claimIntervalMillis > 0 && System.currentTimeMillis() >= nextClaim) {
+				redis.send("XAUTOCLAIM", stream, group, consumer, minIdleArg, claimStart, "COUNT", countArg);
+				Claimed c = read(redis, acked, XAUTOCLAIM_READER);
+				entries = c.entries;
+				claimed.addAndGet(entries.size());
+				claimStart = c.next;
+				if (Arrays.equals(claimStart, "0-0".getBytes())) {
+					nextClaim = System.currentTimeMillis() + claimIntervalMillis;
+				}
+			} else {
+				redis.send("XREADGROUP", "GROUP", group, consumer, "COUNT", countArg, "BLOCK", blockArg, "STREAMS", stream, ">");
+				entries = read(redis, acked, XREADGROUP_READER);
+			}
+
+			dispatch(entries, handler);
+		}
+
+		inFlight.acquire(count * 2);
+		if (sendAcks(redis)) {
+			redis.flush();
+			redis.read();
+		}
+	}
+
+	private <T> T read(Redis redis, boolean acked, Redis.ReplyReader<T> reader) throws IOException {
+		redis.flush();
+		if (acked) {
+			redis.read();
+		}
+		return redis.read(reader);
+	}
+
+	private boolean sendAcks(Redis redis) throws IOException {
+		if (acks.isEmpty()) {
+			return false;
+		}
+		List<Object> args = new ArrayList<>(count + 3);
+		args.add("XACK");
+		args.add(stream);
+		args.add(group);
+		byte[] id;
+		while ((id = acks.poll()) != null) {
+			args.add(id);
+		}
+		redis.send(args.toArray());
+		return true;
+	}
+
+	private void dispatch(List<Entry> entries, Redis.FailableConsumer<Entry, Exception> handler) throws InterruptedException {
+		for (Entry entry : entries) {
+			if (entry.isDeleted()) {
+				acks.add(entry.getRawId());
+				continue;
+			}
+			ExecutorService worker = workers[0];
+			if (workers.length > 1) {
+				Object key;
+				try {
+					key = orderingKey.apply(entry);
+				} catch (RuntimeException e) {
+					failed.incrementAndGet();
+					reportError(e);
+					continue;
+				}
+				if (key != null) {
+					worker = workers[Math.floorMod(key.hashCode(), workers.length)];
+				}
+			}
+			inFlight.acquire();
+			worker.submit(() -> {
+				try {
+					handler.accept(entry);
+					handled.incrementAndGet();
+					acks.add(entry.getRawId());
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					reportError(e);
+				} finally {
+					inFlight.release();
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return The number of entries handled successfully so far.
+	 */
+	public long getHandled() {
+		return handled.get();
+	}
+
+	/**
+	 * @return The number of entries of which the handler or the ordering key failed so far.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The number of entries claimed from other consumers so far.
+	 */
+	public long getClaimed() {
+		return claimed.get();
+	}
+
+	/**
+	 * Stop reading, wait for the workers to finish and acknowledge the last handled entries.
+	 * <p>
+	 * If interrupted while waiting, this returns early with the interrupt flag of the thread set.
+	 */
+	@Override
+	public void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		closed.countDown();
+		reader.shutdown();
+		try {
+			reader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			for (ExecutorService worker : workers) {
+				worker.shutdown();
+				worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			for (ExecutorService worker : workers) {
+				worker.shutdown();
+			}
+			Thread.currentThread().interrupt();
+		}
+	}
+}
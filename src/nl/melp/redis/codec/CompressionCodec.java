@@ -0,0 +1,350 @@
+package nl.melp.redis.codec;
+
+import nl.melp.redis.protocol.ValueCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses values above a size threshold, and transparently decompresses them when they are read.
+ * <p>
+ * Compressed values are prefixed with a 7 byte header: a 2 byte magic (0x00 'Z'), the algorithm and the
+ * uncompressed length as a 4 byte big endian integer (-1 if unknown, for streamed values). Values which do not
+ * compress well enough are sent as-is, unless they happen to start with the magic, in which case they are sent
+ * with a "stored" header so they can be decoded unambiguously.
+ * <p>
+ * This only holds for values written through the codec. A value of 7 bytes or more that was written without it and
+ * happens to start with the magic is taken for a compressed value when it is read: with a "stored" tag its first 7
+ * bytes are stripped, with any other tag it is likely to fail to decode. Keys written with and without the codec
+ * should therefore not be mixed, or values which may start with a zero byte should always be written through it.
+ * <p>
+ * Note that when used as a connection codec (see {@link nl.melp.redis.Redis#setCodec(ValueCodec)}), only arguments
+ * wrapped in a {@link nl.melp.redis.protocol.Value} are compressed. Commands which operate on parts of a value
+ * (APPEND, GETRANGE, SETRANGE, STRLEN, etc.) will see the compressed value.
+ * <p>
+ * Decoding checks the uncompressed length in the header against the maximum expansion of the algorithm before
+ * allocating, so a corrupt or foreign value that happens to start with the magic fails with an IOException.
+ * <p>
+ * This class is thread safe, so one instance can be shared by all connections.
+ */
+public class CompressionCodec implements ValueCodec {
+	/**
+	 * The supported compression algorithms.
+	 */
+	public enum Algorithm {
+		/**
+		 * Very fast, moderate compression.
+		 */
+		LZF('L'),
+
+		/**
+		 * Slower, better compression.
+		 */
+		DEFLATE('D');
+
+		private final byte tag;
+
+		Algorithm(char tag) {
+			this.tag = (byte) tag;
+		}
+	}
+
+	private static final int HEADER_SIZE = 7;
+	private static final byte MAGIC_0 = 0;
+	private static final byte MAGIC_1 = 'Z';
+	private static final byte STORED = 'S';
+
+	/**
+	 * The maximum expansion of LZF: a 3 byte back reference copies at most 264 bytes.
+	 */
+	private static final int LZF_MAX_RATIO = 88;
+
+	/**
+	 * The maximum expansion of DEFLATE, about 1032:1, rounded up.
+	 */
+	private static final int DEFLATE_MAX_RATIO = 1100;
+
+	private final Algorithm algorithm;
+	private final int threshold;
+	private final double maxRatio;
+
+	private final LongAdder numCompressed = new LongAdder();
+	private final LongAdder numSkipped = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Construct an LZF codec which compresses values of 1 kB and up, if they compress to at most 90%.
+	 */
+	public CompressionCodec() {
+		this(Algorithm.LZF, 1024, 0.9);
+	}
+
+	/**
+	 * Construct the codec.
+	 *
+	 * @param algorithm The algorithm to compress with. Values compressed with any algorithm can be decompressed.
+	 * @param threshold Values smaller than this number of bytes are not compressed.
+	 * @param maxRatio  Values which do not compress to at most this fraction of the original size are sent as-is.
+	 */
+	public CompressionCodec(Algorithm algorithm, int threshold, double maxRatio) {
+		this.algorithm = algorithm;
+		this.threshold = Math.max(threshold, HEADER_SIZE);
+		this.maxRatio = maxRatio;
+	}
+
+	@Override
+	public byte[] encode(byte[] value) {
+		if (value.length < threshold) {
+			return isTagged(value) ? store(value) : value;
+		}
+
+		int max = (int) (value.length * maxRatio);
+		byte[] out = new byte[HEADER_SIZE + max];
+		int len = algorithm == Algorithm.LZF
+			? Lzf.compress(value, 0, value.length, out, HEADER_SIZE, max)
+			: deflate(value, out, HEADER_SIZE, max);
+		if (len <= 0) {
+			numSkipped.increment();
+			return isTagged(value) ? store(value) : value;
+		}
+
+		writeHeader(out, algorithm.tag, value.length);
+		numCompressed.increment();
+		bytesIn.add(value.length);
+		bytesOut.add(HEADER_SIZE + len);
+		return len == max ? out : Arrays.copyOf(out, HEADER_SIZE + len);
+	}
+
+	@Override
+	public byte[] decode(byte[] value) throws IOException {
+		if (value == null || !isTagged(value)) {
+			return value;
+		}
+		int len = ((value[3] & 0xff) << 24) | ((value[4] & 0xff) << 16) | ((value[5] & 0xff) << 8) | (value[6] & 0xff);
+		long compressed = value.length - HEADER_SIZE;
+		switch (value[2]) {
+			case STORED:
+				return Arrays.copyOfRange(value, HEADER_SIZE, value.length);
+			case 'L': {
+				if (len < 0 || len > compressed * LZF_MAX_RATIO) {
+					throw new IOException("Corrupt LZF header: " + compressed + " bytes can not decompress to " + len + " bytes");
+				}
+				byte[] out = new byte[len];
+				Lzf.decompress(value, HEADER_SIZE, value.length - HEADER_SIZE, out, 0, len);
+				return out;
+			}
+			case 'D':
+				// -1 marks a streamed value of unknown length.
+				if (len < -1 || len > compressed * DEFLATE_MAX_RATIO) {
+					throw new IOException("Corrupt DEFLATE header: " + compressed + " bytes can not decompress to " + len + " bytes");
+				}
+				return inflate(value, len);
+			default:
+				throw new IOException("Unsupported compression algorithm " + (char) value[2]);
+		}
+	}
+
+	/**
+	 * Compress a stream of unknown length with DEFLATE, so large values do not have to be held in memory.
+	 * The result can be decoded with {@link #decode(byte[])} or {@link #decompress(InputStream)}.
+	 *
+	 * @param in  The uncompressed data
+	 * @param out Receives the header and the compressed data.
+	 * @return The number of uncompressed bytes read.
+	 * @throws IOException Propagated
+	 */
+	public long compress(InputStream in, OutputStream out) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		writeHeader(header, Algorithm.DEFLATE.tag, -1);
+		out.write(header);
+
+		Deflater d = new Deflater(Deflater.BEST_SPEED);
+		long total = 0;
+		CountingOutputStream counter = new CountingOutputStream(out);
+		try (DeflaterOutputStream deflated = new DeflaterOutputStream(counter, d, 1 << 16) {
+			@Override
+			public void close() throws IOException {
+				// finish, but leave the target stream open.
+				finish();
+			}
+		}) {
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				deflated.write(buf, 0, n);
+				total += n;
+			}
+		} finally {
+			d.end();
+		}
+		numCompressed.increment();
+		bytesIn.add(total);
+		bytesOut.add(HEADER_SIZE + counter.count);
+		return total;
+	}
+
+	/**
+	 * Wrap a stream of a (possibly) compressed value so it is decompressed while it is read. Untagged values
+	 * are passed through.
+	 *
+	 * @param in The value as stored in Redis.
+	 * @return The decompressed value.
+	 * @throws IOException Propagated
+	 */
+	public InputStream decompress(InputStream in) throws IOException {
+		PushbackInputStream pin = new PushbackInputStream(in, HEADER_SIZE);
+		byte[] header = new byte[HEADER_SIZE];
+		int n = 0;
+		int r;
+		while (n < HEADER_SIZE && (r = pin.read(header, n, HEADER_SIZE - n)) > 0) {
+			n += r;
+		}
+		if (n < HEADER_SIZE || !isTagged(header)) {
+			pin.unread(header, 0, n);
+			return pin;
+		}
+		switch (header[2]) {
+			case STORED:
+				return pin;
+			case 'D':
+				return new InflaterInputStream(pin);
+			default:
+				// Not a streaming format, so decompress it as a whole.
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				buf.write(header);
+				byte[] chunk = new byte[1 << 16];
+				while ((r = pin.read(chunk)) > 0) {
+					buf.write(chunk, 0, r);
+				}
+				return new ByteArrayInputStream(decode(buf.toByteArray()));
+		}
+	}
+
+	/**
+	 * @return The number of values that were compressed.
+	 */
+	public long getNumCompressed() {
+		return numCompressed.sum();
+	}
+
+	/**
+	 * @return The number of values above the threshold that were not compressed because of a poor ratio.
+	 */
+	public long getNumSkipped() {
+		return numSkipped.sum();
+	}
+
+	/**
+	 * @return The total number of bytes saved by compression, including header overhead.
+	 */
+	public long getBytesSaved() {
+		return bytesIn.sum() - bytesOut.sum();
+	}
+
+	private int deflate(byte[] value, byte[] out, int pos, int max) {
+		Deflater d = deflater.get();
+		d.reset();
+		d.setInput(value);
+		d.finish();
+		int len = 0;
+		while (!d.finished()) {
+			if (len == max) {
+				return 0;
+			}
+			len += d.deflate(out, pos + len, max - len);
+		}
+		return len;
+	}
+
+	private byte[] inflate(byte[] value, int len) throws IOException {
+		Inflater i = inflater.get();
+		i.reset();
+		i.setInput(value, HEADER_SIZE, value.length - HEADER_SIZE);
+		ByteArrayOutputStream unknown = len < 0 ? new ByteArrayOutputStream() : null;
+		byte[] out = new byte[len < 0 ? 1 << 16 : len];
+		int n = 0;
+		try {
+			while (!i.finished()) {
+				if (n == out.length) {
+					if (unknown == null) {
+						throw new IOException("Corrupt DEFLATE data: more than " + len + " bytes");
+					}
+					unknown.write(out, 0, n);
+					n = 0;
+				}
+				int r = i.inflate(out, n, out.length - n);
+				if (r == 0 && (i.needsInput() || i.needsDictionary())) {
+					throw new IOException("Corrupt DEFLATE data: truncated");
+				}
+				n += r;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt DEFLATE data", e);
+		}
+		if (unknown != null) {
+			unknown.write(out, 0, n);
+			return unknown.toByteArray();
+		}
+		if (n != len) {
+			throw new IOException("Corrupt DEFLATE data: expected " + len + " bytes, got " + n);
+		}
+		return out;
+	}
+
+	private static boolean isTagged(byte[] value) {
+		return value.length >= HEADER_SIZE && value[0] == MAGIC_0 && value[1] == MAGIC_1;
+	}
+
+	private static byte[] store(byte[] value) {
+		byte[] out = new byte[HEADER_SIZE + value.length];
+		writeHeader(out, STORED, value.length);
+		System.arraycopy(value, 0, out, HEADER_SIZE, value.length);
+		return out;
+	}
+
+	private static void writeHeader(byte[] out, byte tag, int len) {
+		out[0] = MAGIC_0;
+		out[1] = MAGIC_1;
+		out[2] = tag;
+		out[3] = (byte) (len >>> 24);
+		out[4] = (byte) (len >>> 16);
+		out[5] = (byte) (len >>> 8);
+		out[6] = (byte) len;
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
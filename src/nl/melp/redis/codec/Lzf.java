@@ -0,0 +1,160 @@
+package nl.melp.redis.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZF format, as used by liblzf and by Redis for compressing strings in RDB files.
+ * <p>
+ * The format is a sequence of chunks, each starting with a control byte. A control byte below 32 is followed by
+ * control + 1 literal bytes. Otherwise the upper 3 bits hold the length of a back reference minus 2 (if all bits are
+ * set, an extra byte adds to the length) and the lower 5 bits plus the next byte hold the offset minus 1.
+ */
+public final class Lzf {
+	private static final int HASH_LOG = 14;
+	private static final int MAX_LITERAL = 32;
+	private static final int MAX_OFFSET = 1 << 13;
+	private static final int MAX_MATCH = (1 << 8) + (1 << 3);
+
+	private Lzf() {
+	}
+
+	/**
+	 * Compress the input into the output buffer.
+	 *
+	 * @param in     Input buffer
+	 * @param inPos  Start of the input
+	 * @param inLen  Number of bytes to compress
+	 * @param out    Output buffer
+	 * @param outPos Position in the output buffer to start writing
+	 * @param outLen Maximum number of bytes to write
+	 * @return The number of bytes written, or 0 if the output did not fit.
+	 */
+	public static int compress(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+		final int[] table = new int[1 << HASH_LOG];
+		Arrays.fill(table, -1);
+		final int end = inPos + inLen;
+		final int outEnd = outPos + outLen;
+
+		int ip = inPos;
+		int op = outPos;
+		int lit = 0;
+		int litPos = op++;
+
+		while (ip < end) {
+			if (ip < end - 2) {
+				int h = hash(in, ip);
+				int ref = table[h];
+				table[h] = ip;
+				int off = ip - ref - 1;
+				if (ref >= inPos && off < MAX_OFFSET
+					&& in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]
+				) {
+					int max = Math.min(end - ip, MAX_MATCH);
+					int len = 3;
+					while (len < max && in[ref + len] == in[ip + len]) {
+						len++;
+					}
+
+					if (lit > 0) {
+						out[litPos] = (byte) (lit - 1);
+					} else {
+						op--;
+					}
+					if (op + 4 > outEnd) {
+						return 0;
+					}
+					int l = len - 2;
+					if (l < 7) {
+						out[op++] = (byte) ((l << 5) | (off >>> 8));
+					} else {
+						out[op++] = (byte) ((7 << 5) | (off >>> 8));
+						out[op++] = (byte) (l - 7);
+					}
+					out[op++] = (byte) off;
+
+					ip += len;
+					lit = 0;
+					litPos = op++;
+					continue;
+				}
+			}
+
+			if (op >= outEnd) {
+				return 0;
+			}
+			out[op++] = in[ip++];
+			if (++lit == MAX_LITERAL) {
+				out[litPos] = (byte) (MAX_LITERAL - 1);
+				lit = 0;
+				litPos = op++;
+			}
+		}
+
+		if (lit > 0) {
+			out[litPos] = (byte) (lit - 1);
+		} else {
+			op--;
+		}
+		return op - outPos;
+	}
+
+	/**
+	 * Decompress the input into the output buffer.
+	 *
+	 * @param in     Input buffer
+	 * @param inPos  Start of the compressed data
+	 * @param inLen  Length of the compressed data
+	 * @param out    Output buffer
+	 * @param outPos Position in the output buffer to start writing
+	 * @param outLen Expected length of the decompressed data
+	 * @throws IOException If the data is corrupt or does not decompress to exactly outLen bytes.
+	 */
+	public static void decompress(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) throws IOException {
+		final int end = inPos + inLen;
+		final int outEnd = outPos + outLen;
+		int ip = inPos;
+		int op = outPos;
+
+		while (ip < end) {
+			int ctrl = in[ip++] & 0xff;
+			if (ctrl < MAX_LITERAL) {
+				int len = ctrl + 1;
+				if (op + len > outEnd || ip + len > end) {
+					throw new IOException("Corrupt LZF data: literal run out of bounds");
+				}
+				System.arraycopy(in, ip, out, op, len);
+				ip += len;
+				op += len;
+			} else {
+				int len = ctrl >>> 5;
+				if (len == 7) {
+					if (ip >= end) {
+						throw new IOException("Corrupt LZF data: truncated back reference");
+					}
+					len += in[ip++] & 0xff;
+				}
+				if (ip >= end) {
+					throw new IOException("Corrupt LZF data: truncated back reference");
+				}
+				int ref = op - ((ctrl & 0x1f) << 8) - 1 - (in[ip++] & 0xff);
+				len += 2;
+				if (ref < outPos || op + len > outEnd) {
+					throw new IOException("Corrupt LZF data: back reference out of bounds");
+				}
+				// byte by byte, since source and destination may overlap
+				for (int i = 0; i < len; i++) {
+					out[op++] = out[ref++];
+				}
+			}
+		}
+		if (op != outEnd) {
+			throw new IOException("Corrupt LZF data: expected " + outLen + " bytes, got " + (op - outPos));
+		}
+	}
+
+	private static int hash(byte[] in, int p) {
+		int v = ((in[p] & 0xff) << 16) | ((in[p + 1] & 0xff) << 8) | (in[p + 2] & 0xff);
+		return (v * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
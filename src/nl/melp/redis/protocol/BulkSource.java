@@ -0,0 +1,225 @@
+package nl.melp.redis.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An argument of known length whose content is streamed into the request, so large values do not have to be held
+ * in memory. It can be passed wherever a String or byte[] argument is accepted, e.g. to Redis.call() and
+ * Pipeline.call().
+ * <p>
+ * On connections over a channel (see {@link ChannelOutputStream}), file regions are sent with FileChannel.transferTo
+ * and buffers with a gathering write, without copying them through the Java heap. The codec of the connection is
+ * not applied to streamed arguments.
+ * <p>
+ * If the content ends before the declared length, an EOFException is thrown and the connection is out of sync; it
+ * must be discarded.
+ */
+public abstract class BulkSource {
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @return The number of bytes that will be written.
+	 */
+	public abstract long length();
+
+	/**
+	 * Write exactly length() bytes.
+	 *
+	 * @param out The stream of the connection.
+	 * @throws IOException Propagated
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * Split the content into consecutive parts, e.g. to send it with multiple APPEND commands. Parts of a stream or
+	 * channel read from the same source, so they must be written in order and without gaps.
+	 *
+	 * @param offset Offset of the part
+	 * @param length Length of the part
+	 * @return The part
+	 */
+	public abstract BulkSource slice(long offset, long length);
+
+	/**
+	 * @param in     The content; it is not closed.
+	 * @param length The number of bytes to read from the stream.
+	 * @return The source
+	 */
+	public static BulkSource of(InputStream in, long length) {
+		return new BulkSource() {
+			@Override
+			public long length() {
+				return length;
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				byte[] buffer = new byte[(int) Math.min(length, COPY_BUFFER_SIZE)];
+				long remaining = length;
+				while (remaining > 0) {
+					int n = in.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+					if (n < 0) {
+						throw new EOFException("Stream ended " + remaining + " bytes early");
+					}
+					out.write(buffer, 0, n);
+					remaining -= n;
+				}
+			}
+
+			@Override
+			public BulkSource slice(long offset, long length) {
+				return of(in, length);
+			}
+		};
+	}
+
+	/**
+	 * @param channel The content; it is not closed.
+	 * @param length  The number of bytes to read from the channel.
+	 * @return The source
+	 */
+	public static BulkSource of(ReadableByteChannel channel, long length) {
+		return new BulkSource() {
+			@Override
+			public long length() {
+				return length;
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, COPY_BUFFER_SIZE));
+				long remaining = length;
+				while (remaining > 0) {
+					buffer.clear().limit((int) Math.min(remaining, buffer.capacity()));
+					int n = channel.read(buffer);
+					if (n < 0) {
+						throw new EOFException("Channel ended " + remaining + " bytes early");
+					}
+					out.write(buffer.array(), 0, n);
+					remaining -= n;
+				}
+			}
+
+			@Override
+			public BulkSource slice(long offset, long length) {
+				return of(channel, length);
+			}
+		};
+	}
+
+	/**
+	 * @param file     The file; it is not closed, and its position is not used nor changed.
+	 * @param position Start of the region in the file
+	 * @param length   Length of the region
+	 * @return The source
+	 */
+	public static BulkSource of(FileChannel file, long position, long length) {
+		return new BulkSource() {
+			@Override
+			public long length() {
+				return length;
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				if (out instanceof ChannelOutputStream) {
+					((ChannelOutputStream) out).transferFrom(file, position, length);
+					return;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, COPY_BUFFER_SIZE));
+				long done = 0;
+				while (done < length) {
+					buffer.clear().limit((int) Math.min(length - done, buffer.capacity()));
+					int n = file.read(buffer, position + done);
+					if (n < 0) {
+						throw new EOFException("File ended " + (length - done) + " bytes early");
+					}
+					out.write(buffer.array(), 0, n);
+					done += n;
+				}
+			}
+
+			@Override
+			public BulkSource slice(long offset, long length) {
+				return of(file, position + offset, length);
+			}
+		};
+	}
+
+	/**
+	 * @param buffers The content, from the position to the limit of each buffer. The buffers are not modified, so
+	 *                the source can be written more than once.
+	 * @return The source
+	 */
+	public static BulkSource of(ByteBuffer... buffers) {
+		long total = 0;
+		for (ByteBuffer buffer : buffers) {
+			total += buffer.remaining();
+		}
+		final long length = total;
+		return new BulkSource() {
+			@Override
+			public long length() {
+				return length;
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				ByteBuffer[] copies = new ByteBuffer[buffers.length];
+				for (int i = 0; i < buffers.length; i++) {
+					copies[i] = buffers[i].duplicate();
+				}
+				if (out instanceof ChannelOutputStream) {
+					((ChannelOutputStream) out).write(copies);
+					return;
+				}
+				byte[] scratch = null;
+				for (ByteBuffer b : copies) {
+					if (b.hasArray()) {
+						out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+						continue;
+					}
+					if (scratch == null) {
+						scratch = new byte[COPY_BUFFER_SIZE];
+					}
+					while (b.hasRemaining()) {
+						int n = Math.min(b.remaining(), scratch.length);
+						b.get(scratch, 0, n);
+						out.write(scratch, 0, n);
+					}
+				}
+			}
+
+			@Override
+			public BulkSource slice(long offset, long length) {
+				List<ByteBuffer> parts = new ArrayList<>();
+				long skip = offset;
+				long remaining = length;
+				for (ByteBuffer buffer : buffers) {
+					if (remaining == 0) {
+						break;
+					}
+					if (skip >= buffer.remaining()) {
+						skip -= buffer.remaining();
+						continue;
+					}
+					ByteBuffer part = buffer.duplicate();
+					part.position(part.position() + (int) skip);
+					part.limit(part.position() + (int) Math.min(remaining, part.remaining()));
+					remaining -= part.remaining();
+					skip = 0;
+					parts.add(part);
+				}
+				return of(parts.toArray(new ByteBuffer[0]));
+			}
+		};
+	}
+}
@@ -0,0 +1,74 @@
+package nl.melp.redis.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered InputStream on top of a blocking channel.
+ * <p>
+ * Unlike the streams of java.nio.channels.Channels, reads do not synchronize on the channel's blocking lock, so a
+ * thread blocked in a read does not block another thread writing to the same channel.
+ */
+public class ChannelInputStream extends InputStream {
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param channel    The channel to read from, which must be in blocking mode.
+	 * @param bufferSize The buffer size in bytes.
+	 */
+	public ChannelInputStream(ReadableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.buffer.flip();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!buffer.hasRemaining() && fill() == -1) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			if (len >= buffer.capacity()) {
+				// Large reads bypass the buffer.
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+			if (fill() == -1) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private int fill() throws IOException {
+		buffer.clear();
+		int n;
+		do {
+			n = channel.read(buffer);
+		} while (n == 0);
+		buffer.flip();
+		return n;
+	}
+}
@@ -0,0 +1,142 @@
+package nl.melp.redis.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered OutputStream on top of a blocking channel.
+ * <p>
+ * Unlike the streams of java.nio.channels.Channels, writes do not synchronize on the channel's blocking lock, so a
+ * thread blocked in a read does not block another thread writing to the same channel.
+ */
+public class ChannelOutputStream extends OutputStream {
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param channel    The channel to write to, which must be in blocking mode.
+	 * @param bufferSize The buffer size in bytes.
+	 */
+	public ChannelOutputStream(WritableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flushBuffer();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.remaining()) {
+			flushBuffer();
+			if (len >= buffer.capacity()) {
+				// Large writes bypass the buffer.
+				writeFully(ByteBuffer.wrap(b, off, len));
+				return;
+			}
+		}
+		buffer.put(b, off, len);
+	}
+
+	/**
+	 * Write buffers with a gathering write, without copying them into the buffer if they do not fit.
+	 *
+	 * @param buffers The buffers; their positions are advanced to their limits.
+	 * @throws IOException Propagated
+	 */
+	public void write(ByteBuffer[] buffers) throws IOException {
+		long len = 0;
+		for (ByteBuffer b : buffers) {
+			len += b.remaining();
+		}
+		if (len <= buffer.remaining()) {
+			for (ByteBuffer b : buffers) {
+				buffer.put(b);
+			}
+			return;
+		}
+		flushBuffer();
+		if (!(channel instanceof GatheringByteChannel)) {
+			for (ByteBuffer b : buffers) {
+				writeFully(b);
+			}
+			return;
+		}
+		GatheringByteChannel gathering = (GatheringByteChannel) channel;
+		while (len > 0) {
+			len -= gathering.write(buffers);
+		}
+	}
+
+	/**
+	 * Write a region of a file. Regions that do not fit in the buffer are sent with FileChannel.transferTo, which
+	 * lets the kernel copy from the page cache to the socket without passing through the Java heap.
+	 *
+	 * @param file     The file
+	 * @param position Start of the region
+	 * @param count    Length of the region
+	 * @throws EOFException If the file ends before the end of the region.
+	 * @throws IOException  Propagated
+	 */
+	public void transferFrom(FileChannel file, long position, long count) throws IOException {
+		if (count <= buffer.remaining()) {
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + (int) count);
+			try {
+				while (buffer.hasRemaining()) {
+					if (file.read(buffer, position + count - buffer.remaining()) < 0) {
+						throw new EOFException("File ended " + buffer.remaining() + " bytes early");
+					}
+				}
+			} finally {
+				buffer.limit(limit);
+			}
+			return;
+		}
+		flushBuffer();
+		long done = 0;
+		while (done < count) {
+			long n = file.transferTo(position + done, count - done, channel);
+			if (n == 0 && position + done >= file.size()) {
+				throw new EOFException("File ended " + (count - done) + " bytes early");
+			}
+			done += n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		writeFully(buffer);
+		buffer.clear();
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			channel.write(b);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package nl.melp.redis.protocol;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -18,6 +19,16 @@ public class Encoder {
 	 */
 	private final OutputStream out;
 
+	/**
+	 * Applied to arguments wrapped in a {@link Value}, if set.
+	 */
+	private ValueCodec codec = null;
+
+	/**
+	 * Scratch space for formatting numbers without allocating.
+	 */
+	private final byte[] digits = new byte[20];
+
 	/**
 	 * Construct the encoder with the passed output stream the encoder will write to.
 	 *
@@ -27,6 +38,15 @@ public class Encoder {
 		this.out = out;
 	}
 
+	/**
+	 * Set the codec to apply to arguments wrapped in a {@link Value}.
+	 *
+	 * @param codec The codec, or null to disable.
+	 */
+	public void setCodec(ValueCodec codec) {
+		this.codec = codec;
+	}
+
 	/**
 	 * Write a byte array in the "RESP Bulk String" format.
 	 *
@@ -36,7 +56,7 @@ public class Encoder {
 	 */
 	void write(byte[] value) throws IOException {
 		out.write('$');
-		out.write(Long.toString(value.length).getBytes());
+		writeDecimal(value.length);
 		out.write(CRLF);
 		out.write(value);
 		out.write(CRLF);
@@ -51,21 +71,150 @@ public class Encoder {
 	 */
 	void write(long val) throws IOException {
 		out.write(':');
-		out.write(Long.toString(val).getBytes());
+		writeDecimal(val);
 		out.write(CRLF);
 	}
 
+	/**
+	 * Write the header of a "RESP Array", to be followed by exactly the specified number of elements. This allows
+	 * writing a command element by element rather than building a list first.
+	 *
+	 * @param size The number of elements
+	 * @throws IOException Propagated from the output stream.
+	 */
+	public void writeArrayHeader(long size) throws IOException {
+		out.write('*');
+		writeDecimal(size);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Write a single argument as a "RESP Bulk String", to be used after {@link #writeArrayHeader(long)}.
+	 * The codec is not applied.
+	 *
+	 * @param value The value
+	 * @throws IOException Propagated from the output stream.
+	 */
+	public void writeBulkString(byte[] value) throws IOException {
+		write(value);
+	}
+
+	/**
+	 * Write a number as a "RESP Bulk String", to be used after {@link #writeArrayHeader(long)}.
+	 *
+	 * @param value The value
+	 * @throws IOException Propagated from the output stream.
+	 */
+	public void writeBulkString(long value) throws IOException {
+		int len = formatDecimal(value);
+		out.write('$');
+		writeDecimal(len);
+		out.write(CRLF);
+		// writeDecimal() above overwrote the digits, so format again.
+		formatDecimal(value);
+		out.write(digits, digits.length - len, len);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Write a streamed argument as a "RESP Bulk String", to be used after {@link #writeArrayHeader(long)}.
+	 * The codec is not applied.
+	 *
+	 * @param value The value
+	 * @throws IOException Propagated from the output stream or the source.
+	 */
+	public void writeBulkString(BulkSource value) throws IOException {
+		out.write('$');
+		writeDecimal(value.length());
+		out.write(CRLF);
+		value.writeTo(out);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Write a value as a "RESP Bulk String", to be used after {@link #writeArrayHeader(long)}. The codec is applied,
+	 * just like to arguments wrapped in a {@link Value}.
+	 *
+	 * @param value The value
+	 * @throws IOException Propagated from the output stream.
+	 */
+	public void writeValue(byte[] value) throws IOException {
+		write(codec == null ? value : codec.encode(value));
+	}
+
+	/**
+	 * Write a number as a value, see {@link #writeValue(byte[])}. Without a codec nothing is allocated.
+	 *
+	 * @param value The value
+	 * @throws IOException Propagated from the output stream.
+	 */
+	public void writeValue(long value) throws IOException {
+		if (codec == null) {
+			writeBulkString(value);
+		} else {
+			writeValue(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * Write data which is already encoded, e.g. by {@link #encodeBulkString(byte[])}.
+	 *
+	 * @param encoded The encoded data
+	 * @throws IOException Propagated from the output stream.
+	 */
+	public void writeEncoded(byte[] encoded) throws IOException {
+		out.write(encoded);
+	}
+
+	/**
+	 * Encode a value as a "RESP Bulk String" up front, so constant arguments such as command names can be
+	 * written with {@link #writeEncoded(byte[])} without encoding them again.
+	 *
+	 * @param value The value
+	 * @return The encoded value.
+	 */
+	public static byte[] encodeBulkString(byte[] value) {
+		byte[] len = Long.toString(value.length).getBytes();
+		byte[] ret = new byte[1 + len.length + 2 + value.length + 2];
+		ret[0] = '$';
+		System.arraycopy(len, 0, ret, 1, len.length);
+		ret[1 + len.length] = '\r';
+		ret[2 + len.length] = '\n';
+		System.arraycopy(value, 0, ret, 3 + len.length, value.length);
+		ret[ret.length - 2] = '\r';
+		ret[ret.length - 1] = '\n';
+		return ret;
+	}
+
+	/**
+	 * Convert a key or other plain argument to the bytes that are sent for it.
+	 *
+	 * @param value A String, byte[], Long or Integer.
+	 * @return The bytes; a byte[] is returned as is.
+	 * @throws IllegalArgumentException If the value has another type.
+	 */
+	public static byte[] toBytes(Object value) throws IllegalArgumentException {
+		if (value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		if (value instanceof String || value instanceof Long || value instanceof Integer) {
+			return value.toString().getBytes();
+		}
+		throw new IllegalArgumentException("Unexpected type " + (value == null ? null : value.getClass().getCanonicalName()));
+	}
+
 	/**
 	 * Write a list of objects in the "RESP Arrays" format.
 	 *
-	 * @param list A list of objects that contains Strings, Longs, Integers and (recursively) Lists.
+	 * @param list A list of objects that contains Strings, byte arrays, Values, Longs, Integers, BulkSources and
+	 *             (recursively) Lists. The codec is only applied to Values.
 	 * @throws IOException              Propagated from the output stream.
 	 * @throws IllegalArgumentException If the list contains unencodable objects.
 	 * @link https://redis.io/topics/protocol#resp-arrays
 	 */
 	public void write(List<?> list) throws IOException, IllegalArgumentException {
 		out.write('*');
-		out.write(Long.toString(list.size()).getBytes());
+		writeDecimal(list.size());
 		out.write(CRLF);
 
 		for (Object o : list) {
@@ -73,10 +222,14 @@ public class Encoder {
 				write((byte[]) o);
 			} else if (o instanceof String) {
 				write(((String) o).getBytes());
+			} else if (o instanceof Value) {
+				writeValue(((Value) o).getBytes());
 			} else if (o instanceof Long) {
 				write((Long) o);
 			} else if (o instanceof Integer) {
 				write(((Integer) o).longValue());
+			} else if (o instanceof BulkSource) {
+				writeBulkString((BulkSource) o);
 			} else if (o instanceof List) {
 				write((List<?>) o);
 			} else {
@@ -85,6 +238,42 @@ public class Encoder {
 		}
 	}
 
+	/**
+	 * Write the decimal representation of a number without allocating.
+	 *
+	 * @param value The number
+	 * @throws IOException Propagated from the output stream.
+	 */
+	private void writeDecimal(long value) throws IOException {
+		int len = formatDecimal(value);
+		out.write(digits, digits.length - len, len);
+	}
+
+	/**
+	 * Format a number into the end of the digits buffer.
+	 *
+	 * @param value The number
+	 * @return The number of bytes used.
+	 */
+	private int formatDecimal(long value) {
+		if (value == Long.MIN_VALUE) {
+			byte[] min = Long.toString(value).getBytes();
+			System.arraycopy(min, 0, digits, digits.length - min.length, min.length);
+			return min.length;
+		}
+		boolean negative = value < 0;
+		long v = negative ? -value : value;
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+		if (negative) {
+			digits[--pos] = '-';
+		}
+		return digits.length - pos;
+	}
+
 	public void flush() throws IOException {
 		out.flush();
 	}
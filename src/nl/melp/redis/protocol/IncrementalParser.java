@@ -0,0 +1,338 @@
+package nl.melp.redis.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A resumable parser which is fed chunks of data as they arrive, e.g. from a non-blocking channel.
+ * <p>
+ * In contrast to {@link Parser}, which blocks on its stream until a complete reply was read, this parser keeps its
+ * progress between calls to {@link #feed(ByteBuffer)} and queues replies as soon as they are complete. Nested arrays
+ * are tracked on an explicit stack rather than by recursion, and the nesting depth, the number of elements per reply
+ * and the length of bulk strings are limited to protect against runaway replies.
+ * <p>
+ * Replies are represented in the same way as by {@link Parser}, except that error replies nested in arrays are
+ * represented by a {@link Parser.ServerError} element. A top level error reply is thrown by {@link #next()}, as is
+ * the failure of the codec for any value of a reply; the reply is still read completely, so later replies are not
+ * affected.
+ * <p>
+ * After a ProtocolException the parser is unusable, since it can not know where the next reply starts.
+ */
+public class IncrementalParser {
+	private enum State {
+		TYPE, LINE, BULK, BULK_CR, BULK_LF, FAILED
+	}
+
+	private final int maxDepth;
+	private final long maxElements;
+	private final int maxBulkLength;
+
+	/**
+	 * Maximum length of simple strings, errors and headers, which are collected byte by byte.
+	 */
+	private final int maxLineLength;
+
+	/**
+	 * Lines are at most this long unless the maximum bulk string length is smaller.
+	 */
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private State state = State.TYPE;
+
+	/**
+	 * The type marker of the value being parsed.
+	 */
+	private int type;
+
+	/**
+	 * Collects the line of a simple value or header; reused.
+	 */
+	private byte[] line = new byte[64];
+	private int lineLength = 0;
+	private boolean sawCr = false;
+
+	/**
+	 * The bulk string being read.
+	 */
+	private byte[] bulk;
+	private int bulkRead;
+
+	/**
+	 * The arrays being filled, and the number of elements each of them still expects.
+	 */
+	private final List<List<Object>> stack = new ArrayList<>();
+	private long[] remaining = new long[8];
+
+	/**
+	 * Number of elements in the reply currently being parsed.
+	 */
+	private long elements = 0;
+
+	private final ArrayDeque<Object> replies = new ArrayDeque<>();
+	private ValueCodec codec = null;
+
+	/**
+	 * The first value of the reply currently being parsed that the codec failed to decode.
+	 */
+	private IOException decodeError = null;
+
+	/**
+	 * Sentinel in the reply queue for null replies, since ArrayDeque does not accept null.
+	 */
+	private static final Object NULL = new Object();
+
+	/**
+	 * Construct the parser with limits of 128 nesting levels, 16M elements per reply and 512MB bulk strings
+	 * (the server's proto-max-bulk-len default).
+	 */
+	public IncrementalParser() {
+		this(128, 1 << 24, 512 * 1024 * 1024);
+	}
+
+	/**
+	 * Construct the parser with the specified limits.
+	 *
+	 * @param maxDepth      Maximum nesting level of arrays.
+	 * @param maxElements   Maximum total number of array elements per reply.
+	 * @param maxBulkLength Maximum length of a bulk string. Simple strings and errors are limited to 64kB, or to this
+	 *                      length if it is smaller.
+	 */
+	public IncrementalParser(int maxDepth, long maxElements, int maxBulkLength) {
+		this.maxDepth = maxDepth;
+		this.maxElements = maxElements;
+		this.maxBulkLength = maxBulkLength;
+		this.maxLineLength = Math.min(maxBulkLength, MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * Set the codec to apply to all bulk strings.
+	 *
+	 * @param codec The codec, or null to disable.
+	 */
+	public void setCodec(ValueCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Consume all remaining bytes of the chunk.
+	 *
+	 * @param chunk The data; its position is moved to its limit.
+	 * @throws Parser.ProtocolException If unexpected bytes are encountered or a limit is exceeded.
+	 */
+	public void feed(ByteBuffer chunk) throws Parser.ProtocolException {
+		try {
+			while (chunk.hasRemaining()) {
+				switch (state) {
+					case TYPE:
+						type = chunk.get();
+						if (type != '+' && type != '-' && type != ':' && type != '$' && type != '*') {
+							throw new Parser.ProtocolException("Unexpected input: " + (byte) type);
+						}
+						lineLength = 0;
+						sawCr = false;
+						state = State.LINE;
+						break;
+					case LINE:
+						readLine(chunk);
+						break;
+					case BULK: {
+						int n = Math.min(chunk.remaining(), bulk.length - bulkRead);
+						chunk.get(bulk, bulkRead, n);
+						bulkRead += n;
+						if (bulkRead == bulk.length) {
+							state = State.BULK_CR;
+						}
+						break;
+					}
+					case BULK_CR:
+						if (chunk.get() != '\r') {
+							throw new Parser.ProtocolException("Expected CR");
+						}
+						state = State.BULK_LF;
+						break;
+					case BULK_LF:
+						if (chunk.get() != '\n') {
+							throw new Parser.ProtocolException("Expected LF");
+						}
+						byte[] value = bulk;
+						bulk = null;
+						state = State.TYPE;
+						complete(codec == null ? value : decode(value));
+						break;
+					case FAILED:
+						throw new Parser.ProtocolException("Parser failed earlier");
+				}
+			}
+		} catch (Parser.ProtocolException e) {
+			state = State.FAILED;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Whether a complete reply is available.
+	 */
+	public boolean hasNext() {
+		return !replies.isEmpty();
+	}
+
+	/**
+	 * @return The next complete reply.
+	 * @throws Parser.ServerError     If the reply is an error.
+	 * @throws IOException            If the codec failed to decode a value of the reply.
+	 * @throws NoSuchElementException If no complete reply is available.
+	 */
+	public Object next() throws IOException {
+		Object ret = replies.remove();
+		if (ret instanceof IOException) {
+			throw (IOException) ret;
+		}
+		return ret == NULL ? null : ret;
+	}
+
+	/**
+	 * @return The number of array levels of the reply currently being parsed.
+	 */
+	public int getDepth() {
+		return stack.size();
+	}
+
+	private void readLine(ByteBuffer chunk) throws Parser.ProtocolException {
+		while (chunk.hasRemaining()) {
+			byte b = chunk.get();
+			if (sawCr) {
+				if (b != '\n') {
+					throw new Parser.ProtocolException("Expected LF");
+				}
+				state = State.TYPE;
+				onLine();
+				return;
+			}
+			if (b == '\r') {
+				sawCr = true;
+				continue;
+			}
+			if (lineLength == line.length) {
+				if (lineLength >= maxLineLength) {
+					throw new Parser.ProtocolException("Line exceeds " + maxLineLength + " bytes");
+				}
+				line = Arrays.copyOf(line, Math.min(maxLineLength, line.length * 2));
+			}
+			line[lineLength++] = b;
+		}
+	}
+
+	private void onLine() throws Parser.ProtocolException {
+		switch (type) {
+			case '+':
+				complete(Arrays.copyOf(line, lineLength));
+				break;
+			case '-':
+				complete(new Parser.ServerError(new String(line, 0, lineLength)));
+				break;
+			case ':':
+				complete(parseNumber());
+				break;
+			case '$': {
+				long len = parseNumber();
+				if (len == -1) {
+					complete(null);
+				} else if (len < 0 || len > maxBulkLength) {
+					throw new Parser.ProtocolException("Unsupported bulk string length " + len);
+				} else {
+					bulk = new byte[(int) len];
+					bulkRead = 0;
+					state = len == 0 ? State.BULK_CR : State.BULK;
+				}
+				break;
+			}
+			case '*': {
+				long len = parseNumber();
+				if (len == -1) {
+					complete(null);
+				} else if (len < 0) {
+					throw new Parser.ProtocolException("Unsupported array length " + len);
+				} else if (len == 0) {
+					complete(new ArrayList<>(0));
+				} else {
+					if (stack.size() >= maxDepth) {
+						throw new Parser.ProtocolException("Reply exceeds maximum depth of " + maxDepth);
+					}
+					elements += len;
+					if (elements > maxElements) {
+						throw new Parser.ProtocolException("Reply exceeds maximum of " + maxElements + " elements");
+					}
+					if (stack.size() == remaining.length) {
+						remaining = Arrays.copyOf(remaining, remaining.length * 2);
+					}
+					remaining[stack.size()] = len;
+					// Don't trust the length for pre-sizing beyond a sane amount.
+					stack.add(new ArrayList<>((int) Math.min(len, 1024)));
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Add a complete value to the array on top of the stack, or to the replies if the stack is empty. Arrays that
+	 * are complete as a result are popped and added to their parent in turn.
+	 */
+	private void complete(Object value) {
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			stack.get(top).add(value);
+			if (--remaining[top] > 0) {
+				return;
+			}
+			value = stack.remove(top);
+		}
+		elements = 0;
+		if (decodeError != null) {
+			value = decodeError;
+			decodeError = null;
+		}
+		replies.add(value == null ? NULL : value);
+	}
+
+	/**
+	 * Apply the codec to a value. A failure replaces the reply once it is complete, and the raw bytes are kept
+	 * meanwhile.
+	 */
+	private byte[] decode(byte[] value) {
+		try {
+			return codec.decode(value);
+		} catch (IOException e) {
+			if (decodeError == null) {
+				decodeError = e;
+			}
+			return value;
+		}
+	}
+
+	private long parseNumber() throws Parser.ProtocolException {
+		boolean negative = lineLength > 0 && line[0] == '-';
+		if (lineLength == (negative ? 1 : 0)) {
+			throw new Parser.ProtocolException("Expected a number");
+		}
+		// Accumulated negatively, since Long.MIN_VALUE has no positive counterpart.
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long ret = 0;
+		for (int i = negative ? 1 : 0; i < lineLength; i++) {
+			int d = line[i] - '0';
+			if (d < 0 || d > 9) {
+				throw new Parser.ProtocolException("Expected a number");
+			}
+			if (ret < limit / 10 || ret * 10 < limit + d) {
+				throw new Parser.ProtocolException("Number out of range");
+			}
+			ret = ret * 10 - d;
+		}
+		return negative ? ret : -ret;
+	}
+}
@@ -1,5 +1,6 @@
 package nl.melp.redis.protocol;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -13,8 +14,8 @@ public class Parser {
 	/**
 	 * Thrown whenever data could not be parsed.
 	 */
-	static class ProtocolException extends IOException {
-		ProtocolException(String msg) {
+	public static class ProtocolException extends IOException {
+		public ProtocolException(String msg) {
 			super(msg);
 		}
 	}
@@ -22,7 +23,7 @@ public class Parser {
 	/**
 	 * Thrown whenever an error string is decoded.
 	 */
-	static class ServerError extends IOException {
+	public static class ServerError extends IOException {
 		ServerError(String msg) {
 			super(msg);
 		}
@@ -33,6 +34,16 @@ public class Parser {
 	 */
 	private final InputStream input;
 
+	/**
+	 * Applied to all bulk strings, if set.
+	 */
+	private ValueCodec codec = null;
+
+	/**
+	 * The first value of the current reply that the codec failed to decode, thrown once the whole reply is read.
+	 */
+	private IOException decodeError = null;
+
 	/**
 	 * Constructor.
 	 *
@@ -42,19 +53,59 @@ public class Parser {
 		this.input = input;
 	}
 
+	/**
+	 * Set the codec to apply to all bulk strings.
+	 *
+	 * @param codec The codec, or null to disable.
+	 */
+	public void setCodec(ValueCodec codec) {
+		this.codec = codec;
+	}
+
 	/**
 	 * Parse incoming data from the stream.
 	 * <p>
 	 * Based on each of the markers which will identify the type of data being sent, the parsing
 	 * is delegated to the type-specific methods.
+	 * <p>
+	 * If the codec fails to decode a value, the rest of the reply is still read so the stream stays in sync, and the
+	 * failure is thrown afterwards.
 	 *
 	 * @return The parsed object
-	 * @throws IOException       Propagated from the stream
+	 * @throws IOException       Propagated from the stream or the codec
 	 * @throws ProtocolException In case unexpected bytes are encountered.
 	 */
 	public Object parse() throws IOException, ProtocolException {
+		Object ret = parse(this.input.read());
+		checkDecoded();
+		return ret;
+	}
+
+	/**
+	 * Throw the failure of the codec for a value read since the last check, if any. Readers that use readBulkString()
+	 * should call this once the whole reply is read, since readBulkString() returns the raw bytes of a value that could
+	 * not be decoded to keep the stream in sync.
+	 *
+	 * @throws IOException The failure of the codec.
+	 */
+	public void checkDecoded() throws IOException {
+		IOException e = this.decodeError;
+		if (e != null) {
+			this.decodeError = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Parse the value of which the type marker was already read.
+	 *
+	 * @param read The type marker
+	 * @return The parsed object
+	 * @throws IOException       Propagated from the stream
+	 * @throws ProtocolException In case unexpected bytes are encountered.
+	 */
+	private Object parse(int read) throws IOException, ProtocolException {
 		Object ret;
-		int read = this.input.read();
 		switch (read) {
 			case '+':
 				ret = this.parseSimpleString();
@@ -74,7 +125,7 @@ public class Parser {
 				} else {
 					List<Object> arr = new LinkedList<>();
 					for (long i = 0; i < len; i++) {
-						arr.add(this.parse());
+						arr.add(this.parse(this.input.read()));
 					}
 					ret = arr;
 				}
@@ -88,6 +139,100 @@ public class Parser {
 		return ret;
 	}
 
+	/**
+	 * Read the header of a "RESP Array" without reading its elements, so the caller can decode the elements
+	 * one by one without building intermediate lists.
+	 *
+	 * @return The number of elements, or -1 for a null array.
+	 * @throws IOException       Propagated from the stream
+	 * @throws ServerError       If the server responded with an error instead.
+	 * @throws ProtocolException If the next value is not an array.
+	 */
+	public long readArrayLength() throws IOException {
+		expect('*');
+		return this.parseNumber();
+	}
+
+	/**
+	 * Read a "RESP Bulk String" or "RESP Simple String".
+	 *
+	 * @return The string, or null for a null bulk string.
+	 * @throws IOException       Propagated from the stream
+	 * @throws ServerError       If the server responded with an error instead.
+	 * @throws ProtocolException If the next value is not a string.
+	 */
+	public byte[] readBulkString() throws IOException {
+		if (expect('$', '+') == '+') {
+			return this.parseSimpleString();
+		}
+		return this.parseBulkString();
+	}
+
+	/**
+	 * Read a "RESP Integer".
+	 *
+	 * @return The number.
+	 * @throws IOException       Propagated from the stream
+	 * @throws ServerError       If the server responded with an error instead.
+	 * @throws ProtocolException If the next value is not an integer.
+	 */
+	public long readLong() throws IOException {
+		expect(':');
+		return this.parseNumber();
+	}
+
+	/**
+	 * Read a "RESP Integer" into an array slot without boxing it. Error replies are returned rather than thrown, so a
+	 * batch of replies can be read without exceptions. Other types of replies are consumed and reported as an error,
+	 * so the stream stays in sync.
+	 *
+	 * @param out   Receives the number.
+	 * @param index The index in out.
+	 * @return null if a number was read, the error message otherwise.
+	 * @throws IOException       Propagated from the stream
+	 * @throws ProtocolException In case unexpected bytes are encountered.
+	 */
+	public String readLong(long[] out, int index) throws IOException {
+		int read = this.input.read();
+		switch (read) {
+			case ':':
+				out[index] = this.parseNumber();
+				return null;
+			case '-':
+				return new String(this.parseSimpleString());
+			case -1:
+				throw new EOFException("Unexpected end of stream");
+			default:
+				this.parse(read);
+				this.decodeError = null;
+				return "Unexpected reply type " + (char) read;
+		}
+	}
+
+	/**
+	 * Read the type marker of the next value and check if it is one of the expected markers.
+	 *
+	 * @param markers Expected markers
+	 * @return The marker that was read.
+	 * @throws IOException Propagated from the stream, or ServerError / ProtocolException if the marker does not match.
+	 */
+	private int expect(char... markers) throws IOException {
+		int read = this.input.read();
+		for (char marker : markers) {
+			if (read == marker) {
+				return read;
+			}
+		}
+		switch (read) {
+			case '-':
+				throw new ServerError(new String(this.parseSimpleString()));
+			case -1:
+				throw new EOFException("Unexpected end of stream");
+			default:
+				throw new ProtocolException("Unexpected input: " + (byte) read);
+		}
+	}
+
 	/**
 	 * Parse "RESP Bulk string" as a String object.
 	 *
@@ -106,7 +251,11 @@ public class Parser {
 		final byte[] buffer = new byte[numBytes];
 		int read = 0;
 		while (read < expectedLength) {
-			read += input.read(buffer, read, numBytes - read);
+			int n = input.read(buffer, read, numBytes - read);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of stream");
+			}
+			read += n;
 		}
 		if (input.read() != '\r') {
 			throw new ProtocolException("Expected CR");
@@ -115,7 +264,25 @@ public class Parser {
 			throw new ProtocolException("Expected LF");
 		}
 
-		return buffer;
+		return codec == null ? buffer : decode(buffer);
+	}
+
+	/**
+	 * Apply the codec to a value. A failure is kept until the whole reply is read, and the raw bytes are returned
+	 * meanwhile.
+	 *
+	 * @param value The raw value.
+	 * @return The decoded value.
+	 */
+	private byte[] decode(byte[] value) {
+		try {
+			return codec.decode(value);
+		} catch (IOException e) {
+			if (this.decodeError == null) {
+				this.decodeError = e;
+			}
+			return value;
+		}
 	}
 
 	/**
@@ -134,7 +301,34 @@ public class Parser {
 	 * @throws IOException Propagated from underlying stream
 	 */
 	private long parseNumber() throws IOException {
-		return Long.parseLong(new String(scanCr()));
+		// Parsed digit by digit rather than through a String, since numbers are read for every value.
+		int ch = input.read();
+		boolean negative = ch == '-';
+		if (negative) {
+			ch = input.read();
+		}
+		// Accumulated negatively, since Long.MIN_VALUE has no positive counterpart.
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long ret = 0;
+		int digits = 0;
+		while (ch >= '0' && ch <= '9') {
+			if (ret < limit / 10 || ret * 10 < limit + (ch - '0')) {
+				throw new ProtocolException("Number out of range");
+			}
+			ret = ret * 10 - (ch - '0');
+			digits++;
+			ch = input.read();
+		}
+		if (ch == -1) {
+			throw new EOFException("Unexpected end of stream");
+		}
+		if (ch != '\r' || digits == 0) {
+			throw new ProtocolException("Expected a number");
+		}
+		if (input.read() != '\n') {
+			throw new ProtocolException("Expected LF");
+		}
+		return negative ? ret : -ret;
 	}
 
 	/**
@@ -149,6 +343,9 @@ public class Parser {
 		int ch;
 		byte[] buffer = new byte[size];
 		while ((ch = input.read()) != '\r') {
+			if (ch == -1) {
+				throw new EOFException("Unexpected end of stream");
+			}
 			buffer[idx++] = (byte) ch;
 			if (idx == size) {
 				// increase buffer size.
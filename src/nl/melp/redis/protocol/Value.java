@@ -0,0 +1,44 @@
+package nl.melp.redis.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Marks a command argument as a value, to which the codec of the connection is applied.
+ * <p>
+ * All other arguments, such as keys, fields, scripts and options, are sent as-is, so the codec can not change the
+ * name a value is stored under or make a command unreadable for the server:
+ * <pre>
+ * redis.call("SET", "blob", Value.of(json));
+ * redis.call("HSET", "user:1", "avatar", Value.of(image));
+ * </pre>
+ */
+public final class Value {
+	private final byte[] bytes;
+
+	private Value(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param bytes The value
+	 * @return The marked value
+	 */
+	public static Value of(byte[] bytes) {
+		return new Value(bytes);
+	}
+
+	/**
+	 * @param value The value, encoded as UTF-8
+	 * @return The marked value
+	 */
+	public static Value of(String value) {
+		return new Value(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return The value as passed in, before the codec is applied.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,27 @@
+package nl.melp.redis.protocol;
+
+import java.io.IOException;
+
+/**
+ * Transforms values on their way to and from the server, e.g. for compression.
+ * <p>
+ * The encoder applies it to arguments wrapped in a {@link Value}, the parser to all bulk string replies. Decoding
+ * must therefore pass through anything that was not produced by encode() untouched.
+ * <p>
+ * A failure to decode fails the reply the value is part of, but only once the whole reply is read, so the connection
+ * stays usable.
+ */
+public interface ValueCodec {
+	/**
+	 * @param value The value as passed to the encoder
+	 * @return The value as it is sent to the server.
+	 */
+	byte[] encode(byte[] value);
+
+	/**
+	 * @param value The value as it was received from the server
+	 * @return The decoded value.
+	 * @throws IOException If the value could not be decoded.
+	 */
+	byte[] decode(byte[] value) throws IOException;
+}
@@ -0,0 +1,245 @@
+package nl.melp.redis.rdb;
+
+import nl.melp.redis.protocol.Parser;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes the compact encodings which are stored as a single string in the RDB file: listpacks, ziplists,
+ * intsets and zipmaps. Integers are returned in their decimal representation, like the server does.
+ */
+final class Compact {
+	private static final int UNKNOWN_COUNT = 0xffff;
+
+	private Compact() {
+	}
+
+	/**
+	 * @return The number of elements in a listpack.
+	 */
+	static long listpackCount(byte[] lp) throws Parser.ProtocolException {
+		int count = (int) le(lp, 4, 2);
+		return count == UNKNOWN_COUNT ? listpack(lp, null) : count;
+	}
+
+	/**
+	 * Walk the elements of a listpack.
+	 *
+	 * @param out Receives the elements, or null to only count them.
+	 * @return The number of elements.
+	 */
+	static long listpack(byte[] lp, List<byte[]> out) throws Parser.ProtocolException {
+		int i = 6;
+		long n = 0;
+		while (true) {
+			check(lp, i, 1);
+			int b = lp[i] & 0xff;
+			if (b == 0xff) {
+				return n;
+			}
+			int start = i;
+			if ((b & 0x80) == 0) {
+				add(out, Cursor.decimal(b));
+				i += 1;
+			} else if ((b & 0xc0) == 0x80) {
+				int len = b & 0x3f;
+				i = string(lp, i + 1, len, out);
+			} else if ((b & 0xe0) == 0xc0) {
+				check(lp, i, 2);
+				long v = ((b & 0x1f) << 8) | (lp[i + 1] & 0xff);
+				add(out, Cursor.decimal(v >= 1 << 12 ? v - (1 << 13) : v));
+				i += 2;
+			} else if ((b & 0xf0) == 0xe0) {
+				check(lp, i, 2);
+				int len = ((b & 0x0f) << 8) | (lp[i + 1] & 0xff);
+				i = string(lp, i + 2, len, out);
+			} else if (b == 0xf0) {
+				long len = le(lp, i + 1, 4);
+				i = string(lp, i + 5, len, out);
+			} else if (b >= 0xf1 && b <= 0xf4) {
+				int size = b == 0xf1 ? 2 : b == 0xf2 ? 3 : b == 0xf3 ? 4 : 8;
+				add(out, Cursor.decimal(signed(le(lp, i + 1, size), size)));
+				i += 1 + size;
+			} else {
+				throw new Parser.ProtocolException("Unknown listpack encoding " + b);
+			}
+			// Skip the back length, which encodes the size of the entry in 7 bit groups. The thresholds are those of
+			// lpEncodeBacklen() in the server, which uses one byte more than needed at the upper bound of each group.
+			int size = i - start;
+			i += size <= 127 ? 1 : size < 16383 ? 2 : size < 2097151 ? 3 : size < 268435455 ? 4 : 5;
+			n++;
+		}
+	}
+
+	/**
+	 * @return The number of elements in a ziplist.
+	 */
+	static long ziplistCount(byte[] zl) throws Parser.ProtocolException {
+		int count = (int) le(zl, 8, 2);
+		return count == UNKNOWN_COUNT ? ziplist(zl, null) : count;
+	}
+
+	/**
+	 * Walk the elements of a ziplist.
+	 *
+	 * @param out Receives the elements, or null to only count them.
+	 * @return The number of elements.
+	 */
+	static long ziplist(byte[] zl, List<byte[]> out) throws Parser.ProtocolException {
+		int i = 10;
+		long n = 0;
+		while (true) {
+			check(zl, i, 1);
+			int b = zl[i] & 0xff;
+			if (b == 0xff) {
+				return n;
+			}
+			// Skip the length of the previous entry.
+			i += b < 254 ? 1 : 5;
+			check(zl, i, 1);
+			b = zl[i] & 0xff;
+			switch (b >> 6) {
+				case 0:
+					i = string(zl, i + 1, b & 0x3f, out);
+					break;
+				case 1:
+					check(zl, i, 2);
+					i = string(zl, i + 2, ((b & 0x3f) << 8) | (zl[i + 1] & 0xff), out);
+					break;
+				case 2: {
+					check(zl, i, 5);
+					long len = 0;
+					for (int j = 1; j <= 4; j++) {
+						len = (len << 8) | (zl[i + j] & 0xff);
+					}
+					i = string(zl, i + 5, len, out);
+					break;
+				}
+				default: {
+					int size;
+					switch (b) {
+						case 0xc0:
+							size = 2;
+							break;
+						case 0xd0:
+							size = 4;
+							break;
+						case 0xe0:
+							size = 8;
+							break;
+						case 0xf0:
+							size = 3;
+							break;
+						case 0xfe:
+							size = 1;
+							break;
+						default:
+							if (b < 0xf1 || b > 0xfd) {
+								throw new Parser.ProtocolException("Unknown ziplist encoding " + b);
+							}
+							// Immediate value 0..12
+							add(out, Cursor.decimal((b & 0x0f) - 1));
+							i += 1;
+							n++;
+							continue;
+					}
+					add(out, Cursor.decimal(signed(le(zl, i + 1, size), size)));
+					i += 1 + size;
+				}
+			}
+			n++;
+		}
+	}
+
+	/**
+	 * @return The number of elements in an intset.
+	 */
+	static long intsetCount(byte[] is) throws Parser.ProtocolException {
+		return le(is, 4, 4);
+	}
+
+	static void intset(byte[] is, List<byte[]> out) throws Parser.ProtocolException {
+		int size = (int) le(is, 0, 4);
+		long count = le(is, 4, 4);
+		check(is, 8, count * size);
+		for (int i = 0; i < count; i++) {
+			out.add(Cursor.decimal(signed(le(is, 8 + i * size, size), size)));
+		}
+	}
+
+	/**
+	 * @return The number of field/value pairs in a zipmap.
+	 */
+	static long zipmapCount(byte[] zm) throws Parser.ProtocolException {
+		check(zm, 0, 1);
+		int count = zm[0] & 0xff;
+		return count < 254 ? count : zipmap(zm, null) / 2;
+	}
+
+	/**
+	 * Walk the fields and values of a zipmap.
+	 *
+	 * @param out Receives the fields and values, or null to only count them.
+	 * @return The number of fields plus the number of values.
+	 */
+	static long zipmap(byte[] zm, List<byte[]> out) throws Parser.ProtocolException {
+		int i = 1;
+		long n = 0;
+		while (true) {
+			check(zm, i, 1);
+			int b = zm[i] & 0xff;
+			if (b == 0xff) {
+				return n;
+			}
+			long len = b;
+			i++;
+			if (b == 254) {
+				len = le(zm, i, 4);
+				i += 4;
+			}
+			int free = 0;
+			if (n % 2 == 1) {
+				// Values are followed by unused bytes.
+				check(zm, i, 1);
+				free = zm[i++] & 0xff;
+			}
+			i = string(zm, i, len, out) + free;
+			n++;
+		}
+	}
+
+	private static int string(byte[] data, int i, long len, List<byte[]> out) throws Parser.ProtocolException {
+		check(data, i, len);
+		if (out != null) {
+			out.add(Arrays.copyOfRange(data, i, i + (int) len));
+		}
+		return i + (int) len;
+	}
+
+	private static void add(List<byte[]> out, byte[] value) {
+		if (out != null) {
+			out.add(value);
+		}
+	}
+
+	private static long le(byte[] data, int i, int n) throws Parser.ProtocolException {
+		check(data, i, n);
+		long ret = 0;
+		for (int j = 0; j < n; j++) {
+			ret |= (data[i + j] & 0xffL) << (j * 8);
+		}
+		return ret;
+	}
+
+	private static long signed(long value, int size) {
+		int shift = 64 - size * 8;
+		return (value << shift) >> shift;
+	}
+
+	private static void check(byte[] data, int i, long len) throws Parser.ProtocolException {
+		if (len < 0 || i + len > data.length) {
+			throw new Parser.ProtocolException("Truncated compact encoding");
+		}
+	}
+}
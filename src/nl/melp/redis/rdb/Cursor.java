@@ -0,0 +1,219 @@
+package nl.melp.redis.rdb;
+
+import nl.melp.redis.codec.Lzf;
+import nl.melp.redis.protocol.Parser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the primitives of the RDB format, i.e. length encodings and (compressed) strings, at a position in a
+ * mapped file.
+ */
+final class Cursor {
+	/**
+	 * Flag in the result of {@link #readLengthOrEncoding()} for strings in a special encoding.
+	 */
+	static final long ENCODED = Long.MIN_VALUE;
+	static final int ENC_INT8 = 0;
+	static final int ENC_INT16 = 1;
+	static final int ENC_INT32 = 2;
+	static final int ENC_LZF = 3;
+
+	private final MappedFile file;
+	long pos;
+
+	Cursor(MappedFile file, long pos) {
+		this.file = file;
+		this.pos = pos;
+	}
+
+	private void require(long n) throws Parser.ProtocolException {
+		if (n < 0 || pos + n > file.size()) {
+			throw new Parser.ProtocolException("Unexpected end of file at offset " + pos);
+		}
+	}
+
+	int readByte() throws Parser.ProtocolException {
+		require(1);
+		return file.get(pos++) & 0xff;
+	}
+
+	byte[] readBytes(long n) throws Parser.ProtocolException {
+		require(n);
+		if (n > Integer.MAX_VALUE - 8) {
+			throw new Parser.ProtocolException("Unsupported string length " + n);
+		}
+		byte[] ret = new byte[(int) n];
+		file.get(pos, ret, 0, ret.length);
+		pos += n;
+		return ret;
+	}
+
+	void skip(long n) throws Parser.ProtocolException {
+		require(n);
+		pos += n;
+	}
+
+	/**
+	 * @param n Number of bytes, up to 8.
+	 * @return A little endian unsigned number.
+	 */
+	long readLittleEndian(int n) throws Parser.ProtocolException {
+		require(n);
+		long ret = 0;
+		for (int i = 0; i < n; i++) {
+			ret |= (file.get(pos++) & 0xffL) << (i * 8);
+		}
+		return ret;
+	}
+
+	long readBigEndian(int n) throws Parser.ProtocolException {
+		require(n);
+		long ret = 0;
+		for (int i = 0; i < n; i++) {
+			ret = (ret << 8) | (file.get(pos++) & 0xffL);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The length, or ENCODED combined with the type of encoding.
+	 */
+	long readLengthOrEncoding() throws Parser.ProtocolException {
+		int b = readByte();
+		switch (b >> 6) {
+			case 0:
+				return b & 0x3f;
+			case 1:
+				return ((b & 0x3f) << 8) | readByte();
+			case 2:
+				if (b == 0x80) {
+					return readBigEndian(4);
+				} else if (b == 0x81) {
+					return readBigEndian(8);
+				}
+				throw new Parser.ProtocolException("Unknown length encoding " + b + " at offset " + (pos - 1));
+			default:
+				return ENCODED | (b & 0x3f);
+		}
+	}
+
+	long readLength() throws Parser.ProtocolException {
+		long len = readLengthOrEncoding();
+		if ((len & ENCODED) != 0) {
+			throw new Parser.ProtocolException("Expected a length at offset " + (pos - 1));
+		}
+		return len;
+	}
+
+	byte[] readString() throws IOException {
+		long len = readLengthOrEncoding();
+		if ((len & ENCODED) == 0) {
+			return readBytes(len);
+		}
+		switch ((int) (len & ~ENCODED)) {
+			case ENC_INT8:
+				return decimal((byte) readLittleEndian(1));
+			case ENC_INT16:
+				return decimal((short) readLittleEndian(2));
+			case ENC_INT32:
+				return decimal((int) readLittleEndian(4));
+			case ENC_LZF: {
+				long compressedLength = readLength();
+				long length = readLength();
+				byte[] compressed = readBytes(compressedLength);
+				if (length > Integer.MAX_VALUE - 8) {
+					throw new Parser.ProtocolException("Unsupported string length " + length);
+				}
+				byte[] ret = new byte[(int) length];
+				Lzf.decompress(compressed, 0, compressed.length, ret, 0, ret.length);
+				return ret;
+			}
+			default:
+				throw new Parser.ProtocolException("Unknown string encoding at offset " + (pos - 1));
+		}
+	}
+
+	/**
+	 * @return The length of the next string without decoding it.
+	 */
+	long readStringLength() throws IOException {
+		long start = pos;
+		long len = readLengthOrEncoding();
+		if ((len & ENCODED) == 0) {
+			pos = start;
+			skipString();
+			return len;
+		}
+		if ((len & ~ENCODED) == ENC_LZF) {
+			long compressedLength = readLength();
+			long length = readLength();
+			skip(compressedLength);
+			return length;
+		}
+		pos = start;
+		return readString().length;
+	}
+
+	void skipString() throws Parser.ProtocolException {
+		long len = readLengthOrEncoding();
+		if ((len & ENCODED) == 0) {
+			skip(len);
+			return;
+		}
+		switch ((int) (len & ~ENCODED)) {
+			case ENC_INT8:
+				skip(1);
+				break;
+			case ENC_INT16:
+				skip(2);
+				break;
+			case ENC_INT32:
+				skip(4);
+				break;
+			case ENC_LZF:
+				long compressedLength = readLength();
+				readLength();
+				skip(compressedLength);
+				break;
+			default:
+				throw new Parser.ProtocolException("Unknown string encoding at offset " + (pos - 1));
+		}
+	}
+
+	/**
+	 * @return A score in the textual encoding of the old ZSET type.
+	 */
+	byte[] readTextDouble() throws Parser.ProtocolException {
+		int len = readByte();
+		switch (len) {
+			case 253:
+				return "nan".getBytes(StandardCharsets.US_ASCII);
+			case 254:
+				return "inf".getBytes(StandardCharsets.US_ASCII);
+			case 255:
+				return "-inf".getBytes(StandardCharsets.US_ASCII);
+			default:
+				return readBytes(len);
+		}
+	}
+
+	void skipTextDouble() throws Parser.ProtocolException {
+		int len = readByte();
+		if (len < 253) {
+			skip(len);
+		}
+	}
+
+	static byte[] decimal(long value) {
+		return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	static byte[] decimal(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e17) {
+			return decimal((long) value);
+		}
+		return Double.toString(value).getBytes(StandardCharsets.US_ASCII);
+	}
+}
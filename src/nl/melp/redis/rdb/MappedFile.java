@@ -0,0 +1,50 @@
+package nl.melp.redis.rdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read only memory mapping of a whole file, in chunks of 1GB since a single mapping is limited to 2GB.
+ * <p>
+ * Only absolute reads are used, so the mapping can be shared by multiple threads.
+ */
+final class MappedFile {
+	private static final int SHIFT = 30;
+	private static final long MASK = (1L << SHIFT) - 1;
+
+	private final ByteBuffer[] chunks;
+	private final long size;
+
+	MappedFile(FileChannel channel) throws IOException {
+		this.size = channel.size();
+		this.chunks = new ByteBuffer[(int) ((size + MASK) >>> SHIFT)];
+		for (int i = 0; i < chunks.length; i++) {
+			long start = (long) i << SHIFT;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << SHIFT));
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	byte get(long pos) {
+		return chunks[(int) (pos >>> SHIFT)].get((int) (pos & MASK));
+	}
+
+	/**
+	 * Copy a range, which may span multiple chunks.
+	 */
+	void get(long pos, byte[] dst, int off, int len) {
+		while (len > 0) {
+			ByteBuffer chunk = chunks[(int) (pos >>> SHIFT)];
+			int index = (int) (pos & MASK);
+			int n = Math.min(len, chunk.limit() - index);
+			chunk.get(index, dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,446 @@
+package nl.melp.redis.rdb;
+
+import nl.melp.redis.protocol.Parser;
+import nl.melp.redis.protocol.ValueCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A key in an RDB file. The value is not decoded until it is asked for, so scanning for key sizes, types and
+ * expiries is cheap. The entry stays valid while its {@link RdbReader} is open, and may be used by any thread.
+ */
+public final class RdbEntry {
+	/**
+	 * The data type of the value, regardless of its encoding.
+	 */
+	public enum Type {
+		STRING, LIST, SET, ZSET, HASH, STREAM, MODULE
+	}
+
+	static final int STRING = 0;
+	static final int LIST = 1;
+	static final int SET = 2;
+	static final int ZSET = 3;
+	static final int HASH = 4;
+	static final int ZSET_2 = 5;
+	static final int MODULE_2 = 7;
+	static final int HASH_ZIPMAP = 9;
+	static final int LIST_ZIPLIST = 10;
+	static final int SET_INTSET = 11;
+	static final int ZSET_ZIPLIST = 12;
+	static final int HASH_ZIPLIST = 13;
+	static final int LIST_QUICKLIST = 14;
+	static final int STREAM_LISTPACKS = 15;
+	static final int HASH_LISTPACK = 16;
+	static final int ZSET_LISTPACK = 17;
+	static final int LIST_QUICKLIST_2 = 18;
+	static final int STREAM_LISTPACKS_2 = 19;
+	static final int SET_LISTPACK = 20;
+	static final int STREAM_LISTPACKS_3 = 21;
+
+	private static final int QUICKLIST_NODE_PLAIN = 1;
+
+	private final MappedFile file;
+	private final ValueCodec codec;
+	private final int db;
+	private final byte[] key;
+	private final int encoding;
+	private final long expireAt;
+	private final long start;
+	private final long end;
+
+	RdbEntry(MappedFile file, ValueCodec codec, int db, byte[] key, int encoding, long expireAt, long start, long end) {
+		this.file = file;
+		this.codec = codec;
+		this.db = db;
+		this.key = key;
+		this.encoding = encoding;
+		this.expireAt = expireAt;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return The database number.
+	 */
+	public int getDb() {
+		return db;
+	}
+
+	/**
+	 * @return The key.
+	 */
+	public byte[] getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The data type.
+	 */
+	public Type getType() {
+		switch (encoding) {
+			case STRING:
+				return Type.STRING;
+			case LIST:
+			case LIST_ZIPLIST:
+			case LIST_QUICKLIST:
+			case LIST_QUICKLIST_2:
+				return Type.LIST;
+			case SET:
+			case SET_INTSET:
+			case SET_LISTPACK:
+				return Type.SET;
+			case ZSET:
+			case ZSET_2:
+			case ZSET_ZIPLIST:
+			case ZSET_LISTPACK:
+				return Type.ZSET;
+			case HASH:
+			case HASH_ZIPMAP:
+			case HASH_ZIPLIST:
+			case HASH_LISTPACK:
+				return Type.HASH;
+			case STREAM_LISTPACKS:
+			case STREAM_LISTPACKS_2:
+			case STREAM_LISTPACKS_3:
+				return Type.STREAM;
+			default:
+				return Type.MODULE;
+		}
+	}
+
+	/**
+	 * @return The RDB type identifier, which also identifies the encoding, e.g. 16 for a hash in a listpack.
+	 */
+	public int getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return The expiry as a unix timestamp in milliseconds, or -1 if the key does not expire.
+	 */
+	public long getExpireAt() {
+		return expireAt;
+	}
+
+	/**
+	 * @return The number of bytes of the value in the file, which is a lower bound of its size in memory.
+	 */
+	public long getSerializedSize() {
+		return end - start;
+	}
+
+	/**
+	 * The length of the value: the number of bytes of a string, the number of elements of a list or set, the number
+	 * of pairs of a hash or sorted set and the number of entries of a stream. Only the headers of the value are
+	 * decoded, except for compressed strings and the nodes of a quicklist.
+	 *
+	 * @return The length, or -1 for module types.
+	 * @throws IOException If the value is corrupt.
+	 */
+	public long getLength() throws IOException {
+		Cursor c = new Cursor(file, start);
+		switch (encoding) {
+			case STRING:
+				return c.readStringLength();
+			case LIST:
+			case SET:
+			case ZSET:
+			case ZSET_2:
+			case HASH:
+				return c.readLength();
+			case HASH_ZIPMAP:
+				return Compact.zipmapCount(c.readString());
+			case LIST_ZIPLIST:
+				return Compact.ziplistCount(c.readString());
+			case ZSET_ZIPLIST:
+			case HASH_ZIPLIST:
+				return Compact.ziplistCount(c.readString()) / 2;
+			case SET_INTSET:
+				return Compact.intsetCount(c.readString());
+			case SET_LISTPACK:
+				return Compact.listpackCount(c.readString());
+			case HASH_LISTPACK:
+			case ZSET_LISTPACK:
+				return Compact.listpackCount(c.readString()) / 2;
+			case LIST_QUICKLIST: {
+				long nodes = c.readLength();
+				long ret = 0;
+				for (long i = 0; i < nodes; i++) {
+					ret += Compact.ziplistCount(c.readString());
+				}
+				return ret;
+			}
+			case LIST_QUICKLIST_2: {
+				long nodes = c.readLength();
+				long ret = 0;
+				for (long i = 0; i < nodes; i++) {
+					if (c.readLength() == QUICKLIST_NODE_PLAIN) {
+						c.skipString();
+						ret++;
+					} else {
+						ret += Compact.listpackCount(c.readString());
+					}
+				}
+				return ret;
+			}
+			case STREAM_LISTPACKS:
+			case STREAM_LISTPACKS_2:
+			case STREAM_LISTPACKS_3: {
+				long nodes = c.readLength();
+				for (long i = 0; i < nodes; i++) {
+					c.skipString();
+					c.skipString();
+				}
+				return c.readLength();
+			}
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * @return The value of a string key, decoded with the reader's codec.
+	 * @throws IOException If the value is corrupt.
+	 */
+	public byte[] getString() throws IOException {
+		if (encoding != STRING) {
+			throw new UnsupportedOperationException("Not a string: " + getType());
+		}
+		return decode(new Cursor(file, start).readString());
+	}
+
+	/**
+	 * The elements of a list or set, or the alternating fields and values of a hash, or the alternating members
+	 * and scores of a sorted set. Integers and scores are represented in decimal. The elements of lists and sets, the
+	 * values of hashes and the members of sorted sets are decoded with the reader's codec.
+	 *
+	 * @return The elements.
+	 * @throws IOException If the value is corrupt.
+	 */
+	public List<byte[]> getElements() throws IOException {
+		Cursor c = new Cursor(file, start);
+		List<byte[]> ret = new ArrayList<>();
+		switch (encoding) {
+			case LIST:
+			case SET: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					ret.add(c.readString());
+				}
+				break;
+			}
+			case HASH: {
+				long n = c.readLength() * 2;
+				for (long i = 0; i < n; i++) {
+					ret.add(c.readString());
+				}
+				break;
+			}
+			case ZSET: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					ret.add(c.readString());
+					ret.add(c.readTextDouble());
+				}
+				break;
+			}
+			case ZSET_2: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					ret.add(c.readString());
+					ret.add(Cursor.decimal(Double.longBitsToDouble(c.readLittleEndian(8))));
+				}
+				break;
+			}
+			case HASH_ZIPMAP:
+				Compact.zipmap(c.readString(), ret);
+				break;
+			case LIST_ZIPLIST:
+			case ZSET_ZIPLIST:
+			case HASH_ZIPLIST:
+				Compact.ziplist(c.readString(), ret);
+				break;
+			case SET_INTSET:
+				Compact.intset(c.readString(), ret);
+				break;
+			case SET_LISTPACK:
+			case HASH_LISTPACK:
+			case ZSET_LISTPACK:
+				Compact.listpack(c.readString(), ret);
+				break;
+			case LIST_QUICKLIST: {
+				long nodes = c.readLength();
+				for (long i = 0; i < nodes; i++) {
+					Compact.ziplist(c.readString(), ret);
+				}
+				break;
+			}
+			case LIST_QUICKLIST_2: {
+				long nodes = c.readLength();
+				for (long i = 0; i < nodes; i++) {
+					if (c.readLength() == QUICKLIST_NODE_PLAIN) {
+						ret.add(c.readString());
+					} else {
+						Compact.listpack(c.readString(), ret);
+					}
+				}
+				break;
+			}
+			default:
+				throw new UnsupportedOperationException("Elements of " + getType() + " can not be decoded");
+		}
+		if (codec != null) {
+			// Hash fields and sorted set scores are not values, so they were never encoded.
+			Type type = getType();
+			int first = type == Type.HASH ? 1 : 0;
+			int step = type == Type.HASH || type == Type.ZSET ? 2 : 1;
+			for (int i = first; i < ret.size(); i += step) {
+				ret.set(i, codec.decode(ret.get(i)));
+			}
+		}
+		return ret;
+	}
+
+	private byte[] decode(byte[] value) throws IOException {
+		return codec == null ? value : codec.decode(value);
+	}
+
+	/**
+	 * Move the cursor past a value without decoding it.
+	 *
+	 * @param c        Cursor at the start of the value
+	 * @param encoding The RDB type identifier
+	 * @throws Parser.ProtocolException If the type is not supported or the value is truncated.
+	 */
+	static void skip(Cursor c, int encoding) throws Parser.ProtocolException {
+		switch (encoding) {
+			case STRING:
+			case HASH_ZIPMAP:
+			case LIST_ZIPLIST:
+			case SET_INTSET:
+			case ZSET_ZIPLIST:
+			case HASH_ZIPLIST:
+			case HASH_LISTPACK:
+			case ZSET_LISTPACK:
+			case SET_LISTPACK:
+				c.skipString();
+				break;
+			case LIST:
+			case SET:
+			case LIST_QUICKLIST: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					c.skipString();
+				}
+				break;
+			}
+			case HASH: {
+				long n = c.readLength() * 2;
+				for (long i = 0; i < n; i++) {
+					c.skipString();
+				}
+				break;
+			}
+			case ZSET: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					c.skipString();
+					c.skipTextDouble();
+				}
+				break;
+			}
+			case ZSET_2: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					c.skipString();
+					c.skip(8);
+				}
+				break;
+			}
+			case LIST_QUICKLIST_2: {
+				long n = c.readLength();
+				for (long i = 0; i < n; i++) {
+					c.readLength();
+					c.skipString();
+				}
+				break;
+			}
+			case MODULE_2:
+				c.readLength();
+				skipModuleValue(c);
+				break;
+			case STREAM_LISTPACKS:
+			case STREAM_LISTPACKS_2:
+			case STREAM_LISTPACKS_3:
+				skipStream(c, encoding);
+				break;
+			default:
+				throw new Parser.ProtocolException("Unsupported value type " + encoding + " at offset " + (c.pos - 1));
+		}
+	}
+
+	private static void skipStream(Cursor c, int encoding) throws Parser.ProtocolException {
+		long nodes = c.readLength();
+		for (long i = 0; i < nodes; i++) {
+			c.skipString();
+			c.skipString();
+		}
+		// Length and last ID, followed by first ID, max deleted ID and entries added since version 2.
+		for (int i = 0; i < (encoding >= STREAM_LISTPACKS_2 ? 8 : 3); i++) {
+			c.readLength();
+		}
+		long groups = c.readLength();
+		for (long i = 0; i < groups; i++) {
+			c.skipString();
+			c.readLength();
+			c.readLength();
+			if (encoding >= STREAM_LISTPACKS_2) {
+				c.readLength();
+			}
+			long pending = c.readLength();
+			for (long j = 0; j < pending; j++) {
+				// ID, delivery time and delivery count
+				c.skip(16 + 8);
+				c.readLength();
+			}
+			long consumers = c.readLength();
+			for (long j = 0; j < consumers; j++) {
+				c.skipString();
+				// Seen time, and active time since version 3
+				c.skip(encoding >= STREAM_LISTPACKS_3 ? 16 : 8);
+				c.skip(16 * c.readLength());
+			}
+		}
+	}
+
+	/**
+	 * Skip the self describing serialization of module values, up to its EOF marker.
+	 */
+	static void skipModuleValue(Cursor c) throws Parser.ProtocolException {
+		while (true) {
+			long opcode = c.readLength();
+			switch ((int) opcode) {
+				case 0:
+					return;
+				case 1:
+				case 2:
+					c.readLength();
+					break;
+				case 3:
+					c.skip(4);
+					break;
+				case 4:
+					c.skip(8);
+					break;
+				case 5:
+					c.skipString();
+					break;
+				default:
+					throw new Parser.ProtocolException("Unknown module opcode " + opcode + " at offset " + c.pos);
+			}
+		}
+	}
+}
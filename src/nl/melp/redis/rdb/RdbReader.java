@@ -0,0 +1,230 @@
+package nl.melp.redis.rdb;
+
+import nl.melp.redis.protocol.Parser;
+import nl.melp.redis.protocol.ValueCodec;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A streaming reader for RDB snapshot files, e.g. for memory audits or migrations, without loading the snapshot
+ * into a server.
+ * <p>
+ * The file is memory mapped and scanned for keys. Values are skipped using their length prefixes, and only decoded
+ * when the visitor asks an {@link RdbEntry} for them. Since only the scan is sequential, decoding can be spread over
+ * multiple threads with {@link #read(RdbVisitor, int)}.
+ * <p>
+ * Supports RDB versions up to 11 (Redis 7.2). The checksum at the end of the file is not verified.
+ */
+public class RdbReader implements AutoCloseable {
+	private static final int AUX = 0xfa;
+	private static final int RESIZEDB = 0xfb;
+	private static final int EXPIRETIME_MS = 0xfc;
+	private static final int EXPIRETIME = 0xfd;
+	private static final int SELECTDB = 0xfe;
+	private static final int EOF = 0xff;
+	private static final int MODULE_AUX = 0xf9;
+	private static final int IDLE = 0xf8;
+	private static final int FREQ = 0xf7;
+	private static final int FUNCTION2 = 0xf6;
+	private static final int SLOT_INFO = 0xf4;
+
+	/**
+	 * The latest supported version; later versions may contain types or opcodes which can not be skipped.
+	 */
+	private static final int MAX_VERSION = 11;
+
+	private final FileChannel channel;
+	private final MappedFile file;
+	private final int version;
+	private ValueCodec codec = null;
+
+	/**
+	 * Open and map the file.
+	 *
+	 * @param path The RDB file
+	 * @throws IOException If the file is not an RDB file or its version is not supported, or propagated.
+	 */
+	public RdbReader(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			this.file = new MappedFile(channel);
+			byte[] header = new Cursor(file, 0).readBytes(9);
+			String magic = new String(header, StandardCharsets.US_ASCII);
+			if (!magic.startsWith("REDIS") || !magic.substring(5).chars().allMatch(c -> c >= '0' && c <= '9')) {
+				throw new Parser.ProtocolException("Not an RDB file");
+			}
+			this.version = Integer.parseInt(magic.substring(5));
+			if (version > MAX_VERSION) {
+				throw new Parser.ProtocolException("Unsupported RDB version " + version + "; versions up to " + MAX_VERSION + " are supported");
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Set the codec to decode values with, if they were written by a client with a codec, e.g. a
+	 * {@link nl.melp.redis.codec.CompressionCodec}. Keys are never encoded.
+	 *
+	 * @param codec The codec, or null to disable.
+	 * @return self for chaining
+	 */
+	public RdbReader setCodec(ValueCodec codec) {
+		this.codec = codec;
+		return this;
+	}
+
+	/**
+	 * @return The RDB format version.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Visit the whole file in the calling thread.
+	 *
+	 * @param visitor Receives the contents.
+	 * @throws IOException If the file is corrupt, or propagated from the visitor.
+	 */
+	public void read(RdbVisitor visitor) throws IOException {
+		read(visitor, 1);
+	}
+
+	/**
+	 * Visit the whole file, calling {@link RdbVisitor#onEntry(RdbEntry)} from multiple threads.
+	 *
+	 * @param visitor    Receives the contents; must be thread safe if numThreads is more than 1.
+	 * @param numThreads The number of threads that visit the entries, besides the thread that scans the file.
+	 * @throws IOException If the file is corrupt, or propagated from the visitor.
+	 */
+	public void read(RdbVisitor visitor, int numThreads) throws IOException {
+		final AtomicReference<IOException> error = new AtomicReference<>();
+		ThreadPoolExecutor executor = null;
+		if (numThreads > 1) {
+			// A bounded queue keeps the scan from running far ahead; when it is full the scanner visits entries itself.
+			executor = new ThreadPoolExecutor(
+				numThreads,
+				numThreads,
+				0,
+				TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(numThreads * 64),
+				r -> {
+					Thread t = new Thread(r, RdbReader.class.getSimpleName());
+					t.setDaemon(true);
+					return t;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy()
+			);
+		}
+
+		try {
+			Cursor c = new Cursor(file, 9);
+			visitor.onHeader(version);
+			int db = 0;
+			long expireAt = -1;
+			while (error.get() == null) {
+				int op = c.readByte();
+				switch (op) {
+					case AUX:
+						visitor.onAux(c.readString(), c.readString());
+						break;
+					case RESIZEDB:
+						visitor.onResizeDb(db, c.readLength(), c.readLength());
+						break;
+					case EXPIRETIME_MS:
+						expireAt = c.readLittleEndian(8);
+						break;
+					case EXPIRETIME:
+						expireAt = c.readLittleEndian(4) * 1000;
+						break;
+					case SELECTDB:
+						db = (int) c.readLength();
+						visitor.onDatabase(db);
+						break;
+					case MODULE_AUX:
+						// Module ID, "when" opcode and "when"
+						c.readLength();
+						c.readLength();
+						c.readLength();
+						RdbEntry.skipModuleValue(c);
+						break;
+					case IDLE:
+						c.readLength();
+						break;
+					case FREQ:
+						c.readByte();
+						break;
+					case FUNCTION2:
+						visitor.onFunction(c.readString());
+						break;
+					case SLOT_INFO:
+						c.readLength();
+						c.readLength();
+						c.readLength();
+						break;
+					case EOF:
+						if (executor != null) {
+							executor.shutdown();
+							awaitTermination(executor);
+						}
+						if (error.get() != null) {
+							throw error.get();
+						}
+						visitor.onEnd();
+						return;
+					default: {
+						byte[] key = c.readString();
+						long start = c.pos;
+						RdbEntry.skip(c, op);
+						RdbEntry entry = new RdbEntry(file, codec, db, key, op, expireAt, start, c.pos);
+						expireAt = -1;
+						if (executor == null) {
+							visitor.onEntry(entry);
+						} else {
+							executor.execute(() -> {
+								try {
+									if (error.get() == null) {
+										visitor.onEntry(entry);
+									}
+								} catch (IOException e) {
+									error.compareAndSet(null, e);
+								} catch (RuntimeException e) {
+									error.compareAndSet(null, new IOException(e));
+								}
+							});
+						}
+					}
+				}
+			}
+			throw error.get();
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private static void awaitTermination(ThreadPoolExecutor executor) throws IOException {
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
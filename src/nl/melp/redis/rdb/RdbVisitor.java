@@ -0,0 +1,66 @@
+package nl.melp.redis.rdb;
+
+import java.io.IOException;
+
+/**
+ * Receives the contents of an RDB file. Only {@link #onEntry(RdbEntry)} has to be implemented.
+ * <p>
+ * When the file is read with multiple threads, onEntry is called concurrently and out of order, while the other
+ * events are called by the thread that scans the file.
+ */
+@FunctionalInterface
+public interface RdbVisitor {
+	/**
+	 * @param version The RDB format version, e.g. 11 for Redis 7.2
+	 * @throws IOException Propagated
+	 */
+	default void onHeader(int version) throws IOException {
+	}
+
+	/**
+	 * @param key   Auxiliary field, e.g. "redis-ver" or "used-mem"
+	 * @param value Its value
+	 * @throws IOException Propagated
+	 */
+	default void onAux(byte[] key, byte[] value) throws IOException {
+	}
+
+	/**
+	 * Called when the keys of the next database start.
+	 *
+	 * @param db The database number
+	 * @throws IOException Propagated
+	 */
+	default void onDatabase(int db) throws IOException {
+	}
+
+	/**
+	 * @param db          The database number
+	 * @param size        The number of keys in the database.
+	 * @param expiresSize The number of keys with an expiry.
+	 * @throws IOException Propagated
+	 */
+	default void onResizeDb(int db, long size, long expiresSize) throws IOException {
+	}
+
+	/**
+	 * @param code The source code of a function library.
+	 * @throws IOException Propagated
+	 */
+	default void onFunction(byte[] code) throws IOException {
+	}
+
+	/**
+	 * @param entry A key and its lazily decoded value.
+	 * @throws IOException Propagated
+	 */
+	void onEntry(RdbEntry entry) throws IOException;
+
+	/**
+	 * Called after all entries were visited.
+	 *
+	 * @throws IOException Propagated
+	 */
+	default void onEnd() throws IOException {
+	}
+}
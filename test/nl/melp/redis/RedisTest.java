@@ -1,20 +1,58 @@
 package nl.melp.redis;
 
+import nl.melp.redis.codec.CompressionCodec;
+import nl.melp.redis.codec.Lzf;
+import nl.melp.redis.protocol.BulkSource;
+import nl.melp.redis.protocol.ChannelInputStream;
+import nl.melp.redis.protocol.ChannelOutputStream;
+import nl.melp.redis.protocol.Encoder;
+import nl.melp.redis.protocol.IncrementalParser;
 import nl.melp.redis.protocol.Parser;
+import nl.melp.redis.protocol.Value;
+import nl.melp.redis.rdb.RdbEntry;
+import nl.melp.redis.rdb.RdbReader;
+import nl.melp.redis.rdb.RdbVisitor;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -22,6 +60,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -39,12 +78,37 @@ public class RedisTest {
 	public static void main(String[] args) throws IOException, InterruptedException {
 		if (args.length == 0) {
 			testParse();
+			testStreamDecode();
+			testCompression();
+			testHashRing();
+			testShardedConnections();
+			testUnixSocket();
+			testIncrementalParse();
+			testLongReplies();
+			testReplay();
+			testReplicationStream();
+			testConsumerPool();
+			testStreamConsumer();
+			testDeadlineClient();
+			testRdbReader();
+			testListpackBackLength();
+			testSingleFlight();
+			testCounterAggregator();
+			testStreamingUpload();
+			testLoadGenerator();
 			binaryTest();
 			managedTest();
 			integrationTest();
 			bufferSizePerformanceTest();
 			socketManagementPerformanceTest();
 			subscribeTest();
+			queueTest();
+			streamTest();
+			deadlineTest();
+			compressionTest();
+			shardedTest();
+			hashMapperTest();
+			longBatchTest();
 
 			System.out.println("\nEverything seems to be alright.");
 		}
@@ -99,6 +163,1480 @@ public class RedisTest {
 		System.out.println("Tests passed successfully: testParse");
 	}
 
+	private static void testStreamDecode() throws IOException {
+		String reply = "*1\r\n*2\r\n$6\r\nstream\r\n*2\r\n"
+			+ "*2\r\n$3\r\n1-0\r\n*4\r\n$1\r\na\r\n$1\r\n1\r\n$1\r\nb\r\n$1\r\n2\r\n"
+			+ "*2\r\n$3\r\n2-0\r\n*-1\r\n";
+		List<StreamConsumer.Entry> entries = StreamConsumer.XREADGROUP_READER.read(new Parser(new ByteArrayInputStream(reply.getBytes())));
+		assertEqual(entries.size(), 2);
+		assertEqual(entries.get(0).getId(), "1-0");
+		assertEqual(entries.get(0).size(), 2);
+		assertEqual(new String(entries.get(0).get("b")), "2");
+		assertTrue(entries.get(1).isDeleted());
+		assertTrue(StreamConsumer.XREADGROUP_READER.read(new Parser(new ByteArrayInputStream("*-1\r\n".getBytes()))).isEmpty());
+
+		String claimed = "*3\r\n$3\r\n0-0\r\n*1\r\n*2\r\n$3\r\n3-0\r\n*2\r\n$1\r\na\r\n$1\r\n3\r\n*1\r\n$3\r\n4-0\r\n";
+		StreamConsumer.Claimed c = StreamConsumer.XAUTOCLAIM_READER.read(new Parser(new ByteArrayInputStream(claimed.getBytes())));
+		assertEqual(new String(c.next), "0-0");
+		assertEqual(c.entries.size(), 2);
+		assertEqual(new String(c.entries.get(0).get("a")), "3");
+		assertTrue(c.entries.get(1).isDeleted());
+		System.out.println("Tests passed successfully: testStreamDecode");
+	}
+
+	private static void testCompression() throws IOException {
+		byte[] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		byte[] tagged = new byte[]{0, 'Z', 'x', 'y', 'z', '1', '2', '3'};
+
+		for (CompressionCodec.Algorithm algorithm : CompressionCodec.Algorithm.values()) {
+			CompressionCodec codec = new CompressionCodec(algorithm, 512, 0.9);
+			for (String value : strings) {
+				byte[] encoded = codec.encode(value.getBytes());
+				assertTrue(value.length() < 512 || encoded.length < value.length());
+				assertEqual(value, new String(codec.decode(encoded)));
+			}
+			assertTrue(codec.encode(random) == random);
+			assertEqual(1, codec.getNumSkipped());
+			assertTrue(codec.getBytesSaved() > 0);
+			assertTrue(Arrays.equals(tagged, codec.decode(codec.encode(tagged))));
+			assertEqual("foo", new String(codec.decode("foo".getBytes())));
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			codec.compress(new ByteArrayInputStream(strings[2].getBytes()), out);
+			assertEqual(strings[2], new String(codec.decode(out.toByteArray())));
+			assertEqual(strings[2], new String(codec.decompress(new ByteArrayInputStream(out.toByteArray())).readAllBytes()));
+		}
+
+		// Only arguments marked as values are encoded; keys and scripts above the threshold are sent as-is.
+		CompressionCodec codec = new CompressionCodec();
+		String script = "return redis.call('SET', KEYS[1], ARGV[1]) -- " + "padding ".repeat(200);
+		String key = "key:" + "k".repeat(2000);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(actual);
+		encoder.setCodec(codec);
+		encoder.write(Arrays.asList("EVAL", script, "1", key, Value.of(strings[2])));
+		encoder.flush();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new Encoder(expected).write(Arrays.asList("EVAL", script, "1", key, codec.encode(strings[2].getBytes())));
+		assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+		assertTrue(codec.encode(strings[2].getBytes()).length < strings[2].length());
+
+		// Headers with a length which the data can not decompress to are rejected before allocating.
+		for (byte[] corrupt : new byte[][]{
+			{0, 'Z', 'L', (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2},
+			{0, 'Z', 'L', 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2},
+			{0, 'Z', 'D', (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe, 1, 2},
+			{0, 'Z', 'D', 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2},
+		}) {
+			try {
+				codec.decode(corrupt);
+				throw new RuntimeException("Expected an IOException");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().startsWith("Corrupt"));
+			}
+		}
+
+		// A value that fails to decode fails its reply only once the whole reply is read, so the next one still parses.
+		ByteArrayOutputStream replies = new ByteArrayOutputStream();
+		replies.write("*3\r\n".getBytes());
+		replies.write(Encoder.encodeBulkString("foo".getBytes()));
+		replies.write(Encoder.encodeBulkString(new byte[]{0, 'Z', 'L', 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2}));
+		replies.write(Encoder.encodeBulkString("bar".getBytes()));
+		replies.write("+OK\r\n".getBytes());
+		Parser parser = new Parser(new ByteArrayInputStream(replies.toByteArray()));
+		parser.setCodec(codec);
+		try {
+			parser.parse();
+			throw new RuntimeException("Expected an IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Corrupt"));
+		}
+		assertEqual("OK", new String((byte[]) parser.parse()));
+		IncrementalParser incremental = new IncrementalParser();
+		incremental.setCodec(codec);
+		incremental.feed(ByteBuffer.wrap(replies.toByteArray()));
+		try {
+			incremental.next();
+			throw new RuntimeException("Expected an IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Corrupt"));
+		}
+		assertEqual("OK", new String((byte[]) incremental.next()));
+
+		// Mapped objects are written through the codec just like they are read, while field names and keys are not.
+		Map<String, byte[]> hash = new ConcurrentHashMap<>();
+		try (FakeServer server = new FakeServer((command, out) -> {
+			switch (new String((byte[]) command.get(0))) {
+				case "HSET":
+					for (int i = 2; i < command.size(); i += 2) {
+						hash.put(new String((byte[]) command.get(i)), (byte[]) command.get(i + 1));
+					}
+					out.write((":" + (command.size() - 2) / 2 + "\r\n").getBytes());
+					break;
+				case "HGETALL":
+					out.write(("*" + hash.size() * 2 + "\r\n").getBytes());
+					for (Map.Entry<String, byte[]> e : hash.entrySet()) {
+						out.write(Encoder.encodeBulkString(e.getKey().getBytes()));
+						out.write(Encoder.encodeBulkString(e.getValue()));
+					}
+					break;
+				case "QUIT":
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			return true;
+		}); Redis.Managed redis = Redis.connectUnix(server.getPath())) {
+			redis.setCodec(codec);
+			UserRecord user = new UserRecord(strings[2], 42, Role.ADMIN, true, 1.5);
+			HashMapper<UserRecord> mapper = HashMapper.of(UserRecord.class);
+			assertEqual(5, mapper.save(redis, key, user));
+			assertTrue(Arrays.equals(codec.encode(strings[2].getBytes()), hash.get("name")));
+			assertEqual("42", new String(hash.get("age")));
+			assertEqual(user.toString(), mapper.load(redis, key).toString());
+			assertTrue(mapper.load(redis, key, new String[0]) == null);
+
+			// Values that do not fit the property are rejected, and the connection stays usable.
+			HashMapper<Grade> grades = HashMapper.of(Grade.class);
+			for (String[] invalid : new String[][]{
+				{"age", "2147483648"}, {"age", "-"}, {"age", ""}, {"level", "128"}, {"level", "-129"}, {"grade", ""},
+			}) {
+				hash.clear();
+				hash.put("grade", "A".getBytes());
+				hash.put("level", "1".getBytes());
+				hash.put("age", "1".getBytes());
+				hash.put(invalid[0], invalid[1].getBytes());
+				try {
+					if (invalid[0].equals("age")) {
+						mapper.load(redis, key);
+					} else {
+						grades.load(redis, key);
+					}
+					throw new RuntimeException("Expected an IllegalArgumentException for " + Arrays.toString(invalid));
+				} catch (IllegalArgumentException rejected) {
+				}
+			}
+			hash.put("grade", "B".getBytes());
+			hash.put("level", "-128".getBytes());
+			assertEqual(new Grade('B', Byte.MIN_VALUE).toString(), grades.load(redis, key).toString());
+		}
+		System.out.println("Tests passed successfully: testCompression");
+	}
+
+	private static void testHashRing() {
+		HashRing three = new HashRing(new LinkedHashSet<>(Arrays.asList("a", "b", "c")), 160);
+		HashRing four = three.with("d");
+		Map<String, Integer> counts = new HashMap<>();
+		int moved = 0;
+		final int numKeys = 100000;
+		for (int i = 0; i < numKeys; i++) {
+			String key = "key:" + i;
+			String before = three.nodeFor(key);
+			String after = four.nodeFor(key);
+			counts.merge(after, 1, Integer::sum);
+			if (!before.equals(after)) {
+				assertEqual("d", after);
+				moved++;
+			}
+		}
+		// roughly a quarter of the keys should move to the new node, and nodes should be roughly balanced.
+		assertTrue(moved > numKeys / 5 && moved < numKeys / 3);
+		for (int count : counts.values()) {
+			assertTrue(count > numKeys / 5 && count < numKeys / 3);
+		}
+		assertEqual(four.nodeFor("{user:1}:profile"), four.nodeFor("{user:1}:sessions"));
+		assertEqual(four.without("d").nodeFor("key:1"), three.nodeFor("key:1"));
+		System.out.println("Tests passed successfully: testHashRing");
+	}
+
+	private static void testShardedConnections() throws IOException {
+		AtomicInteger connects = new AtomicInteger(0);
+		try (FakeServer server = new FakeServer((command, out) -> {
+			if (new String((byte[]) command.get(0)).equals("QUIT")) {
+				out.write("+OK\r\n".getBytes());
+				return false;
+			}
+			out.write("$-1\r\n".getBytes());
+			return true;
+		}); ShardedRedis redis = new ShardedRedis(Collections.singletonMap("a", () -> {
+			connects.incrementAndGet();
+			try {
+				return Redis.connectUnix(server.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}))) {
+			assertTrue(redis.call("GET", "k") == null);
+			assertTrue(redis.call("GET", "k") == null);
+			assertEqual(1, connects.get());
+
+			// A connection of which the call failed halfway is not reused.
+			try {
+				redis.call("GET", "k", new Object());
+				throw new RuntimeException("Expected an IllegalArgumentException");
+			} catch (IllegalArgumentException expected) {
+			}
+			assertTrue(redis.call("GET", "k") == null);
+			assertEqual(2, connects.get());
+
+			// A connector without a connection fails the call rather than the caller with a NullPointerException.
+			redis.addNode("b", () -> null);
+			redis.removeNode("a");
+			try {
+				redis.call("GET", "k");
+				throw new RuntimeException("Expected an IOException");
+			} catch (IOException e) {
+				assertEqual("Could not connect", e.getMessage());
+			}
+		}
+		System.out.println("Tests passed successfully: testShardedConnections");
+	}
+
+	private static void testUnixSocket() throws IOException {
+		// A minimal server which echoes the first argument of every command.
+		try (FakeServer server = new FakeServer((command, out) -> {
+			out.write(Encoder.encodeBulkString(command.size() > 1 ? (byte[]) command.get(1) : "OK".getBytes()));
+			return true;
+		})) {
+			try (Redis.Managed redis = Redis.connectUnix(server.getPath())) {
+				assertEqual("hello", new String(redis.<byte[]>call("ECHO", "hello")));
+				List<Object> result = redis.pipeline().call("ECHO", "a").call("ECHO", msg).read();
+				assertEqual("a", new String((byte[]) result.get(0)));
+				assertEqual(msg, new String((byte[]) result.get(1)));
+			}
+		}
+		System.out.println("Tests passed successfully: testUnixSocket");
+	}
+
+	private static void testIncrementalParse() throws IOException {
+		byte[] data = (
+			"+OK\r\n:1000\r\n$-1\r\n$12\r\n01234\r\n56789\r\n*-1\r\n*0\r\n"
+				+ "*3\r\n:1\r\n*2\r\n$1\r\na\r\n-ERR nested\r\n$0\r\n\r\n-ERR top\r\n"
+		).getBytes();
+
+		// Feeding byte by byte must give the same result as feeding everything at once.
+		for (int chunkSize : new int[]{1, 3, data.length}) {
+			IncrementalParser parser = new IncrementalParser();
+			for (int i = 0; i < data.length; i += chunkSize) {
+				parser.feed(ByteBuffer.wrap(data, i, Math.min(chunkSize, data.length - i)));
+			}
+			assertEqual("OK", new String((byte[]) parser.next()));
+			assertEqual(1000, (Long) parser.next());
+			assertTrue(parser.next() == null);
+			assertEqual("01234\r\n56789", new String((byte[]) parser.next()));
+			assertTrue(parser.next() == null);
+			assertEqual(0, ((List<?>) parser.next()).size());
+			List<?> arr = (List<?>) parser.next();
+			assertEqual(3, arr.size());
+			assertEqual(1, (Long) arr.get(0));
+			assertEqual("a", new String((byte[]) ((List<?>) arr.get(1)).get(0)));
+			assertTrue(((List<?>) arr.get(1)).get(1) instanceof Parser.ServerError);
+			assertEqual(0, ((byte[]) arr.get(2)).length);
+			try {
+				parser.next();
+				throw new RuntimeException("Expected server error");
+			} catch (Parser.ServerError e) {
+				assertEqual("ERR top", e.getMessage());
+			}
+			assertTrue(!parser.hasNext());
+		}
+
+		// Partial replies are kept until they are complete.
+		IncrementalParser parser = new IncrementalParser();
+		parser.feed(ByteBuffer.wrap("*2\r\n$5\r\nhel".getBytes()));
+		assertTrue(!parser.hasNext());
+		assertEqual(1, parser.getDepth());
+		parser.feed(ByteBuffer.wrap("lo\r\n:2\r\n".getBytes()));
+		assertEqual("hello", new String((byte[]) ((List<?>) parser.next()).get(0)));
+
+		// Deep nesting does not use up the stack, but is subject to the limit.
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			deep.append("*1\r\n");
+		}
+		deep.append(":1\r\n");
+		parser = new IncrementalParser(100000, 1 << 20, 1 << 20);
+		parser.feed(ByteBuffer.wrap(deep.toString().getBytes()));
+		assertTrue(parser.next() instanceof List);
+		parser = new IncrementalParser(10, 10, 1024);
+		parser.feed(ByteBuffer.wrap(":9223372036854775807\r\n:-9223372036854775808\r\n".getBytes()));
+		// Lines have their own limit, well below the default bulk string limit.
+		try {
+			new IncrementalParser().feed(ByteBuffer.wrap(("+" + "x".repeat(1 << 20)).getBytes()));
+			throw new RuntimeException("Expected protocol exception");
+		} catch (Parser.ProtocolException e) {
+			assertEqual("Line exceeds 65536 bytes", e.getMessage());
+		}
+		assertEqual(Long.MAX_VALUE, (Long) parser.next());
+		assertEqual(Long.MIN_VALUE, (Long) parser.next());
+		for (String limited : new String[]{deep.toString(), "*100\r\n", "$100000000\r\n", ":9223372036854775808\r\n", ":-9223372036854775809\r\n", "$18446744073709551617\r\n", "$-\r\n", ":-\r\n", "+" + "x".repeat(1025) + "\r\n"}) {
+			try {
+				new IncrementalParser(10, 10, 1024).feed(ByteBuffer.wrap(limited.getBytes()));
+				throw new RuntimeException("Expected protocol exception");
+			} catch (Parser.ProtocolException expected) {
+			}
+		}
+		System.out.println("Tests passed successfully: testIncrementalParse");
+	}
+
+	private static void testLongReplies() throws IOException {
+		Parser parser = new Parser(new ByteArrayInputStream(":1\r\n-ERR wrong type\r\n+OK\r\n:-5\r\n:0\r\n".getBytes()));
+		long[] results = new long[5];
+		assertTrue(parser.readLong(results, 0) == null);
+		assertEqual("ERR wrong type", parser.readLong(results, 1));
+		assertTrue(parser.readLong(results, 2) != null);
+		assertTrue(parser.readLong(results, 3) == null);
+		assertTrue(parser.readLong(results, 4) == null);
+		assertEqual(1, results[0]);
+		assertEqual(-5, results[3]);
+		assertEqual(0, results[4]);
+
+		parser = new Parser(new ByteArrayInputStream(":9223372036854775807\r\n:-9223372036854775808\r\n".getBytes()));
+		assertEqual(Long.MAX_VALUE, parser.readLong());
+		assertEqual(Long.MIN_VALUE, parser.readLong());
+		for (String overflow : new String[]{":9223372036854775808\r\n", ":-9223372036854775809\r\n", ":99999999999999999999\r\n", "*18446744073709551617\r\n"}) {
+			try {
+				new Parser(new ByteArrayInputStream(overflow.getBytes())).readLong(results, 0);
+				throw new RuntimeException("Expected protocol exception");
+			} catch (Parser.ProtocolException expected) {
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(out);
+		encoder.writeArrayHeader(4);
+		encoder.writeBulkString("INCRBY".getBytes());
+		encoder.writeBulkString(0);
+		encoder.writeBulkString(-123);
+		encoder.writeBulkString(Long.MIN_VALUE);
+		encoder.flush();
+		assertEqual("*4\r\n$6\r\nINCRBY\r\n$1\r\n0\r\n$4\r\n-123\r\n$20\r\n-9223372036854775808\r\n", out.toString());
+		System.out.println("Tests passed successfully: testLongReplies");
+	}
+
+	private static void testReplay() throws IOException {
+		Path dir = Files.createTempDirectory("redis");
+		Path file = dir.resolve("appendonly.aof");
+		int numCommands = 50000;
+		try (OutputStream out = Files.newOutputStream(file)) {
+			Encoder encoder = new Encoder(out);
+			for (int i = 0; i < numCommands; i++) {
+				encoder.write(Arrays.asList((i % 1000 == 0 ? "FAIL" : "SET").getBytes(), ("key:" + i).getBytes(), new byte[i % 100]));
+			}
+			encoder.flush();
+		}
+
+		AtomicInteger received = new AtomicInteger(0);
+
+		// A minimal server which replies +OK, or an error for FAIL commands.
+		try (FakeServer server = new FakeServer((command, out) -> {
+			received.incrementAndGet();
+			out.write(new String((byte[]) command.get(0)).equals("FAIL") ? "-ERR unknown command\r\n".getBytes() : "+OK\r\n".getBytes());
+			return true;
+		})) {
+			try (SocketChannel channel = Replay.connect(server.getPath().toString())) {
+				Replay.Result result = Replay.replay(file, channel, 1000);
+				assertEqual(numCommands, result.getCommands());
+				assertEqual(Files.size(file), result.getBytes());
+				assertEqual(numCommands / 1000, result.getErrors());
+				assertEqual("0: ERR unknown command", result.getFirstErrors().get(0));
+			}
+			assertEqual(numCommands, received.get());
+
+			// Truncated files, even if only the last command is, RDB preambles and numbers that overflow are
+			// rejected before anything is sent.
+			String get = "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n";
+			for (String content : new String[]{
+				get.repeat(10000) + "*2\r\n$3\r\nGET\r\n$3\r\nke",
+				"REDIS0011",
+				get + "*2\r\n$3\r\nGET\r\n$18446744073709551619\r\nkey\r\n",
+			}) {
+				Files.write(file, content.getBytes());
+				try (SocketChannel channel = Replay.connect(server.getPath().toString())) {
+					Replay.replay(file, channel, 10);
+					throw new RuntimeException("Expected protocol exception");
+				} catch (Parser.ProtocolException expected) {
+				}
+			}
+		}
+		assertEqual(numCommands, received.get());
+		Files.delete(file);
+		Files.delete(dir);
+		System.out.println("Tests passed successfully: testReplay");
+	}
+
+	private static void testReplicationStream() throws IOException {
+		byte[] set = "*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$1\r\nv\r\n".getBytes();
+		byte[] getAck = "*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n".getBytes();
+		List<String> acks = Collections.synchronizedList(new LinkedList<>());
+
+		String[] psyncs = {"+FULLRESYNC abc 100\r\n\n\n$5\r\nREDIS", "+CONTINUE def\r\n"};
+		AtomicInteger numPsyncs = new AtomicInteger(0);
+
+		// A minimal primary which does a full resync on the first connection, and continues on the second. It
+		// closes the connection once the GETACK is answered.
+		FakeServer server = new FakeServer((command, out) -> {
+			String name = new String((byte[]) command.get(0));
+			if (name.equals("PSYNC")) {
+				acks.add(new String((byte[]) command.get(1)) + " " + new String((byte[]) command.get(2)));
+				out.write(psyncs[numPsyncs.getAndIncrement()].getBytes());
+				out.write(set);
+				out.write(getAck);
+				out.write(set);
+			} else if (new String((byte[]) command.get(1)).equals("ACK")) {
+				acks.add(new String((byte[]) command.get(2)));
+				return false;
+			} else {
+				out.write("+OK\r\n".getBytes());
+			}
+			return true;
+		});
+
+		List<String> received = new LinkedList<>();
+		ReplicationStream.Listener listener = new ReplicationStream.Listener() {
+			@Override
+			public void onSnapshot(String replicationId, long offset, InputStream rdb) throws IOException {
+				received.add(replicationId + " " + offset + " " + new String(rdb.readAllBytes()));
+			}
+
+			@Override
+			public void onCommand(long offset, byte[][] command) {
+				received.add(offset + " " + new String(command[0]));
+			}
+		};
+		String replicationId;
+		long offset;
+		try (ReplicationStream stream = new ReplicationStream(Replay.connect(server.getPath().toString()))) {
+			stream.run(listener);
+			throw new RuntimeException("Expected end of stream");
+		} catch (EOFException expected) {
+		}
+		assertEqual(Arrays.asList("abc 100 REDIS", (100 + set.length) + " SET", (100 + 2 * set.length + getAck.length) + " SET").toString(), received.toString());
+
+		received.clear();
+		try (ReplicationStream stream = new ReplicationStream(Replay.connect(server.getPath().toString()))) {
+			try {
+				stream.run(listener, "abc", 100 + 2 * set.length + getAck.length);
+				throw new RuntimeException("Expected end of stream");
+			} catch (EOFException expected) {
+			}
+			replicationId = stream.getReplicationId();
+			offset = stream.getOffset();
+		}
+		server.close();
+		assertEqual("def", replicationId);
+		assertEqual(100 + 4 * set.length + 2 * getAck.length, offset);
+		assertEqual(Arrays.asList((100 + 3 * set.length + getAck.length) + " SET", offset + " SET").toString(), received.toString());
+		// The first PSYNC argument of each connection, and the offset in the reply to GETACK.
+		assertEqual(Arrays.asList("? -1", 100 + set.length, "abc " + (101 + 2 * set.length + getAck.length), 100 + 3 * set.length + getAck.length).toString(), acks.toString());
+		System.out.println("Tests passed successfully: testReplicationStream");
+	}
+
+	private static void testConsumerPool() throws IOException, InterruptedException {
+		int numValues = 1000;
+		ConcurrentLinkedQueue<String> list = new ConcurrentLinkedQueue<>();
+		for (int i = 0; i < numValues; i++) {
+			list.add(Integer.toString(i));
+		}
+		AtomicBoolean busy = new AtomicBoolean(false);
+
+		// A minimal server with a single list, which rejects the first LPOP.
+		FakeServer server = new FakeServer((command, out) -> {
+			switch (new String((byte[]) command.get(0))) {
+				case "LPOP":
+					if (busy.compareAndSet(false, true)) {
+						out.write("-ERR busy\r\n".getBytes());
+						break;
+					}
+					List<String> values = new ArrayList<>();
+					String value;
+					while (values.size() < Integer.parseInt(new String((byte[]) command.get(2))) && (value = list.poll()) != null) {
+						values.add(value);
+					}
+					out.write((values.isEmpty() ? "*-1\r\n" : "*" + values.size() + "\r\n").getBytes());
+					for (String v : values) {
+						out.write(Encoder.encodeBulkString(v.getBytes()));
+					}
+					break;
+				case "BLPOP":
+					Thread.sleep(20);
+					out.write("*-1\r\n".getBytes());
+					break;
+				case "QUIT":
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			return true;
+		});
+
+		// The first connection attempt fails and the first poll is rejected; neither may stop the consumer.
+		AtomicBoolean connected = new AtomicBoolean(false);
+		List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+		Set<String> handled = ConcurrentHashMap.newKeySet();
+		ListQueue.ConsumerPool pool = new ListQueue("queue", null, 100).consume(() -> {
+			if (connected.compareAndSet(false, true)) {
+				throw new RuntimeException("No connection");
+			}
+			try {
+				return Redis.connectUnix(server.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, 1, 4, 1, value -> {
+			if (new String(value).equals("13")) {
+				throw new IllegalStateException("Unlucky");
+			}
+			handled.add(new String(value));
+		}, errors::add);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getHandled() + pool.getFailed() < numValues && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		pool.close();
+		server.close();
+
+		assertEqual(numValues - 1, pool.getHandled());
+		assertEqual(1, pool.getFailed());
+		assertEqual(numValues - 1, handled.size());
+		assertEqual(3, errors.size());
+		assertEqual("No connection", errors.get(0).getMessage());
+		assertEqual("ERR busy", errors.get(1).getMessage());
+		assertEqual("Unlucky", errors.get(2).getMessage());
+
+		// In reliable mode, a failure while acknowledging does not lose the acknowledgements: they are sent over the
+		// next connection. An empty queue is probed with a single LMOVE rather than a full batch.
+		for (int i = 0; i < numValues; i++) {
+			list.add(Integer.toString(i));
+		}
+		List<String> processing = Collections.synchronizedList(new LinkedList<>());
+		AtomicInteger emptyMoves = new AtomicInteger(0);
+		AtomicBoolean failed = new AtomicBoolean(false);
+		FakeServer reliableServer = new FakeServer((command, out) -> {
+			switch (new String((byte[]) command.get(0))) {
+				case "LMOVE": {
+					String value = list.poll();
+					if (value == null) {
+						emptyMoves.incrementAndGet();
+						out.write("$-1\r\n".getBytes());
+					} else {
+						processing.add(value);
+						out.write(Encoder.encodeBulkString(value.getBytes()));
+					}
+					break;
+				}
+				case "LLEN":
+					out.write((":" + list.size() + "\r\n").getBytes());
+					break;
+				case "BLMOVE":
+					Thread.sleep(20);
+					out.write("$-1\r\n".getBytes());
+					break;
+				case "LREM":
+					if (failed.compareAndSet(false, true)) {
+						out.write("-ERR busy\r\n".getBytes());
+						return false;
+					}
+					processing.remove(new String((byte[]) command.get(3)));
+					out.write(":1\r\n".getBytes());
+					break;
+				case "QUIT":
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			return true;
+		});
+		errors.clear();
+		pool = new ListQueue("queue", "processing", 100).consume(() -> {
+			try {
+				return Redis.connectUnix(reliableServer.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, 1, 4, 1, value -> {
+		}, errors::add);
+		deadline = System.currentTimeMillis() + 10000;
+		while ((!processing.isEmpty() || !list.isEmpty()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		pool.close();
+		reliableServer.close();
+
+		assertEqual(numValues, pool.getHandled());
+		assertEqual(0, processing.size());
+		assertEqual(1, errors.size());
+		assertTrue(emptyMoves.get() <= 5);
+		System.out.println("Tests passed successfully: testConsumerPool");
+	}
+
+	private static void testStreamConsumer() throws IOException, InterruptedException {
+		int numEntries = 200;
+		ConcurrentLinkedQueue<Integer> unread = new ConcurrentLinkedQueue<>();
+		for (int i = 0; i < numEntries; i++) {
+			unread.add(i);
+		}
+		Set<String> acked = ConcurrentHashMap.newKeySet();
+		AtomicBoolean busy = new AtomicBoolean(false);
+
+		// A minimal server with a single stream, which rejects the first read of new entries. Every fifth entry has
+		// no "key" field.
+		FakeServer server = new FakeServer((command, out) -> {
+			switch (new String((byte[]) command.get(0))) {
+				case "XREADGROUP": {
+					String id = new String((byte[]) command.get(command.size() - 1));
+					if (id.equals("0")) {
+						out.write("*1\r\n*2\r\n$6\r\nstream\r\n*0\r\n".getBytes());
+						break;
+					}
+					if (busy.compareAndSet(false, true)) {
+						out.write("-ERR busy\r\n".getBytes());
+						break;
+					}
+					List<Integer> entries = new ArrayList<>();
+					Integer n;
+					while (entries.size() < Integer.parseInt(new String((byte[]) command.get(5))) && (n = unread.poll()) != null) {
+						entries.add(n);
+					}
+					if (entries.isEmpty()) {
+						Thread.sleep(20);
+						out.write("*-1\r\n".getBytes());
+						break;
+					}
+					out.write(("*1\r\n*2\r\n$6\r\nstream\r\n*" + entries.size() + "\r\n").getBytes());
+					for (int i : entries) {
+						out.write("*2\r\n".getBytes());
+						out.write(Encoder.encodeBulkString(("1-" + i).getBytes()));
+						out.write((i % 5 == 0 ? "*2\r\n" : "*4\r\n$3\r\nkey\r\n$1\r\n" + (i % 3) + "\r\n").getBytes());
+						out.write("$1\r\nn\r\n".getBytes());
+						out.write(Encoder.encodeBulkString(Integer.toString(i).getBytes()));
+					}
+					break;
+				}
+				case "XACK":
+					for (Object id : command.subList(3, command.size())) {
+						acked.add(new String((byte[]) id));
+					}
+					out.write((":" + (command.size() - 3) + "\r\n").getBytes());
+					break;
+				case "QUIT":
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			return true;
+		});
+
+		// The first connection attempt fails and the first read is rejected; neither may stop the reader.
+		AtomicBoolean connected = new AtomicBoolean(false);
+		List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+		Map<String, Integer> last = new ConcurrentHashMap<>();
+		AtomicBoolean ordered = new AtomicBoolean(true);
+		StreamConsumer consumer = new StreamConsumer(() -> {
+			if (connected.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return Redis.connectUnix(server.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, "stream", "group", "consumer")
+			.setCount(10)
+			.setNumWorkers(3)
+			.setClaim(0, 0)
+			.setOrderingKey(entry -> {
+				if (new String(entry.get("n")).equals("7")) {
+					throw new IllegalStateException("Bad key");
+				}
+				byte[] key = entry.get("key");
+				return key == null ? null : new String(key);
+			})
+			.setErrorHandler(errors::add)
+			.start(entry -> {
+				int n = Integer.parseInt(new String(entry.get("n")));
+				if (n == 13) {
+					throw new IllegalStateException("Unlucky");
+				}
+				byte[] key = entry.get("key");
+				Integer prev = last.put(key == null ? "" : new String(key), n);
+				if (prev != null && prev > n) {
+					ordered.set(false);
+				}
+			});
+		long deadline = System.currentTimeMillis() + 10000;
+		while (consumer.getHandled() + consumer.getFailed() < numEntries && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		consumer.close();
+		server.close();
+
+		assertEqual(numEntries - 2, consumer.getHandled());
+		assertEqual(2, consumer.getFailed());
+		assertEqual(numEntries - 2, acked.size());
+		assertTrue(!acked.contains("1-7") && !acked.contains("1-13"));
+		assertTrue(ordered.get());
+		assertEqual(4, errors.size());
+		assertEqual("Could not connect", errors.get(0).getMessage());
+		assertEqual("ERR busy", errors.get(1).getMessage());
+		Set<String> messages = new TreeSet<>();
+		for (Exception e : errors.subList(2, 4)) {
+			messages.add(e.getMessage());
+		}
+		assertEqual("[Bad key, Unlucky]", messages.toString());
+		System.out.println("Tests passed successfully: testStreamConsumer");
+	}
+
+	private static void testDeadlineClient() throws IOException, InterruptedException {
+		AtomicInteger numConnections = new AtomicInteger(0);
+		AtomicInteger numQuits = new AtomicInteger(0);
+
+		// A minimal server which replies OK, after a delay for SLEEP commands.
+		FakeServer server = new FakeServer((command, out) -> {
+			switch (new String((byte[]) command.get(0))) {
+				case "SLEEP":
+					Thread.sleep(Long.parseLong(new String((byte[]) command.get(1))));
+					break;
+				case "QUIT":
+					numQuits.incrementAndGet();
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			out.write("+OK\r\n".getBytes());
+			return true;
+		});
+
+		DeadlineClient client = new DeadlineClient(() -> {
+			try {
+				numConnections.incrementAndGet();
+				return Redis.connectUnix(server.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, 5000);
+		for (int i = 0; i < 16; i++) {
+			client.call(1000, "PING");
+		}
+		assertTrue(client.getHedgeDelayMicros() < Long.MAX_VALUE);
+
+		// An interrupt while waiting for the hedge delay fails the call right away. The sleep lets the last PING
+		// return its connection, so the interrupted thread does not have to connect.
+		Thread.sleep(100);
+		long start = System.nanoTime();
+		Thread.currentThread().interrupt();
+		try {
+			client.hedgedCall(5000, "SLEEP", "500");
+			throw new RuntimeException("Expected an InterruptedIOException");
+		} catch (InterruptedIOException expected) {
+		}
+		assertTrue(Thread.interrupted());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+
+		try {
+			client.call(100, "SLEEP", "300");
+			throw new RuntimeException("Expected deadline to be exceeded");
+		} catch (DeadlineClient.DeadlineExceeded expected) {
+		}
+
+		// Closing waits for both calls in progress, and closes their connections as well.
+		client.close();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+		server.close();
+		assertTrue(numConnections.get() >= 2);
+		assertEqual(numConnections.get(), numQuits.get());
+		try {
+			client.call(100, "PING");
+			throw new RuntimeException("Expected the client to be closed");
+		} catch (IOException expected) {
+			assertEqual("Client is closed", expected.getMessage());
+		}
+		System.out.println("Tests passed successfully: testDeadlineClient");
+	}
+
+	private static void testRdbReader() throws IOException {
+		ByteArrayOutputStream rdb = new ByteArrayOutputStream();
+		rdb.write("REDIS0011".getBytes());
+		rdb.write(0xfa);
+		rdbString(rdb, "redis-ver".getBytes());
+		rdbString(rdb, "7.2.0".getBytes());
+		rdb.write(new byte[]{(byte) 0xfe, 0, (byte) 0xfb, 6, 1});
+		rdb.write(0);
+		rdbString(rdb, "s1".getBytes());
+		rdbString(rdb, "hello".getBytes());
+
+		// An integer encoded string which expires
+		rdb.write(0xfc);
+		rdb.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(1700000000000L).array());
+		rdb.write(0);
+		rdbString(rdb, "num".getBytes());
+		rdb.write(new byte[]{(byte) 0xc1, (byte) 0xd2, 0x04});
+
+		// An LZF compressed string
+		byte[] big = "abcdefgh".repeat(250).getBytes();
+		byte[] compressed = new byte[big.length];
+		int compressedLength = Lzf.compress(big, 0, big.length, compressed, 0, compressed.length);
+		rdb.write(0);
+		rdbString(rdb, "big".getBytes());
+		rdb.write(0xc3);
+		rdbLength(rdb, compressedLength);
+		rdbLength(rdb, big.length);
+		rdb.write(compressed, 0, compressedLength);
+
+		// A hash in a listpack: f1 => v1, n => 5
+		rdb.write(16);
+		rdbString(rdb, "h".getBytes());
+		rdbString(rdb, listpack(4, new byte[]{(byte) 0x82, 'f', '1', 3, (byte) 0x82, 'v', '1', 3, (byte) 0x81, 'n', 2, 5, 1}));
+
+		// An intset with 16 bit integers
+		rdb.write(11);
+		rdbString(rdb, "is".getBytes());
+		rdbString(rdb, new byte[]{2, 0, 0, 0, 3, 0, 0, 0, 1, 0, (byte) 0xfe, (byte) 0xff, 0x2c, 0x01});
+
+		// A quicklist with a plain node and a listpack node with "a" and the 13 bit integer 1000
+		rdb.write(18);
+		rdbString(rdb, "l".getBytes());
+		rdb.write(new byte[]{2, 1});
+		rdbString(rdb, "plain".getBytes());
+		rdb.write(2);
+		rdbString(rdb, listpack(2, new byte[]{(byte) 0x81, 'a', 2, (byte) 0xc3, (byte) 0xe8, 2}));
+
+		// A sorted set with a binary score
+		rdb.write(5);
+		rdbString(rdb, "z".getBytes());
+		rdb.write(1);
+		rdbString(rdb, "m".getBytes());
+		rdb.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putDouble(1.5).array());
+
+		// A list in a ziplist with "x" and the immediate integer 7, in another database.
+		rdb.write(new byte[]{(byte) 0xfe, 1, 10});
+		rdbString(rdb, "zl".getBytes());
+		rdbString(rdb, new byte[]{14, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 1, 'x', 3, (byte) 0xf8, (byte) 0xff});
+		rdb.write(0xff);
+		rdb.write(new byte[8]);
+
+		Path file = Files.createTempFile("dump", ".rdb");
+		Files.write(file, rdb.toByteArray());
+		Map<String, String> expectedEntries = new HashMap<>();
+		expectedEntries.put("s1", "0 STRING 5 -1 hello");
+		expectedEntries.put("num", "0 STRING 4 1700000000000 1234");
+		expectedEntries.put("big", "0 STRING 2000 -1 " + new String(big));
+		expectedEntries.put("h", "0 HASH 2 -1 [f1, v1, n, 5]");
+		expectedEntries.put("is", "0 SET 3 -1 [1, -2, 300]");
+		expectedEntries.put("l", "0 LIST 3 -1 [plain, a, 1000]");
+		expectedEntries.put("z", "0 ZSET 1 -1 [m, 1.5]");
+		expectedEntries.put("zl", "1 LIST 2 -1 [x, 7]");
+
+		try (RdbReader reader = new RdbReader(file)) {
+			assertEqual(11, reader.getVersion());
+			for (int numThreads : new int[]{1, 4}) {
+				Map<String, String> visited = new ConcurrentHashMap<>();
+				List<String> aux = new LinkedList<>();
+				reader.read(new RdbVisitor() {
+					@Override
+					public void onAux(byte[] key, byte[] value) {
+						aux.add(new String(key) + "=" + new String(value));
+					}
+
+					@Override
+					public void onEntry(RdbEntry entry) throws IOException {
+						String value;
+						if (entry.getType() == RdbEntry.Type.STRING) {
+							value = new String(entry.getString());
+						} else {
+							List<String> elements = new LinkedList<>();
+							for (byte[] element : entry.getElements()) {
+								elements.add(new String(element));
+							}
+							value = elements.toString();
+						}
+						visited.put(new String(entry.getKey()), entry.getDb() + " " + entry.getType() + " " + entry.getLength() + " " + entry.getExpireAt() + " " + value);
+					}
+				}, numThreads);
+				assertEqual("[redis-ver=7.2.0]", aux.toString());
+				assertEqual(new TreeMap<>(expectedEntries).toString(), new TreeMap<>(visited).toString());
+			}
+		}
+
+		// Truncated files are reported
+		Files.write(file, Arrays.copyOf(rdb.toByteArray(), rdb.size() - 20));
+		try (RdbReader reader = new RdbReader(file)) {
+			reader.read(entry -> {});
+			throw new RuntimeException("Expected protocol exception");
+		} catch (Parser.ProtocolException expected) {
+		}
+
+		// Versions which may contain unknown types, and headers without a version, are rejected when opening.
+		for (String header : new String[]{"REDIS0012", "REDIS00x1"}) {
+			Files.write(file, Arrays.copyOf(header.getBytes(), 10));
+			try (RdbReader reader = new RdbReader(file)) {
+				throw new RuntimeException("Expected protocol exception for " + reader.getVersion());
+			} catch (Parser.ProtocolException e) {
+				assertTrue(e.getMessage().startsWith(header.equals("REDIS0012") ? "Unsupported RDB version 12" : "Not an RDB file"));
+			}
+		}
+		Files.delete(file);
+		System.out.println("Tests passed successfully: testRdbReader");
+	}
+
+	private static void testListpackBackLength() throws IOException {
+		// Entries with a size at each threshold of the back length encoding, each followed by a small entry, which
+		// is only found if the back length was skipped correctly.
+		int[] sizes = {127, 128, 16382, 16383, 2097150, 2097151};
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		for (int size : sizes) {
+			listpackString(entries, size);
+			entries.write(new byte[]{(byte) 0x81, 'y', 2});
+		}
+
+		Path file = Files.createTempFile("dump", ".rdb");
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			header.write("REDIS0011".getBytes());
+			header.write(new byte[]{(byte) 0xfe, 0, 20});
+			rdbString(header, "small".getBytes());
+			rdbString(header, listpack(sizes.length * 2, entries.toByteArray()));
+
+			// An entry at the highest threshold is too large to build in memory twice, so it is written straight
+			// to the file, in a listpack with an unknown count.
+			int hugeSize = 268435455;
+			int total = 6 + hugeSize + 5 + 3 + 1;
+			header.write(20);
+			rdbString(header, "huge".getBytes());
+			rdbLength(header, total);
+			header.writeBytes(ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN).putInt(total).putShort((short) 0xffff).array());
+			out.write(header.toByteArray());
+			listpackString(out, hugeSize);
+			out.write(new byte[]{(byte) 0x81, 'y', 2, (byte) 0xff, (byte) 0xff});
+			out.write(new byte[8]);
+		}
+
+		try (RdbReader reader = new RdbReader(file)) {
+			Map<String, String> visited = new HashMap<>();
+			reader.read(entry -> {
+				StringBuilder elements = new StringBuilder();
+				for (byte[] element : entry.getElements()) {
+					elements.append(element[0] == 'x' ? Integer.toString(element.length) : new String(element)).append(' ');
+				}
+				visited.put(new String(entry.getKey()), entry.getLength() + " " + elements.toString().trim());
+			});
+			assertEqual("12 125 y 126 y 16377 y 16378 y 2097145 y 2097146 y", visited.get("small"));
+			assertEqual("2 268435450 y", visited.get("huge"));
+		} finally {
+			Files.delete(file);
+		}
+		System.out.println("Tests passed successfully: testListpackBackLength");
+	}
+
+	/**
+	 * Write a listpack string entry of the specified size, including its encoding and back length.
+	 */
+	private static void listpackString(OutputStream out, int size) throws IOException {
+		int length;
+		if (size <= 4097) {
+			length = size - 2;
+			out.write(new byte[]{(byte) (0xe0 | (length >> 8)), (byte) length});
+		} else {
+			length = size - 5;
+			out.write(0xf0);
+			out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(length).array());
+		}
+		byte[] chunk = new byte[1 << 16];
+		Arrays.fill(chunk, (byte) 'x');
+		for (int written = 0; written < length; written += chunk.length) {
+			out.write(chunk, 0, Math.min(chunk.length, length - written));
+		}
+		// As lpEncodeBacklen() in the server: the most significant 7 bit group first, the others with the high bit set.
+		int n = size <= 127 ? 1 : size < 16383 ? 2 : size < 2097151 ? 3 : size < 268435455 ? 4 : 5;
+		for (int i = 0; i < n; i++) {
+			out.write((size >> (7 * (n - 1 - i)) & 127) | (i > 0 ? 128 : 0));
+		}
+	}
+
+	private static void testSingleFlight() throws IOException, InterruptedException {
+		AtomicInteger numRequests = new AtomicInteger(0);
+
+		// A slow server which replies the key to GET, except for missing keys, and OK to anything else.
+		FakeServer server = new FakeServer((command, out) -> {
+			numRequests.incrementAndGet();
+			Thread.sleep(200);
+			String key = new String((byte[]) command.get(1));
+			if (!new String((byte[]) command.get(0)).equals("GET")) {
+				out.write("+OK\r\n".getBytes());
+			} else if (key.startsWith("missing")) {
+				out.write("$-1\r\n".getBytes());
+			} else {
+				out.write(Encoder.encodeBulkString(key.getBytes()));
+			}
+			return true;
+		});
+
+		SingleFlight singleFlight = new SingleFlight()
+			.allowKeyPrefixes("hot", "missing")
+			.setCopy(true)
+			.setLoader((redis, command) -> "loaded".getBytes());
+		for (String[] command : new String[][]{{"GET", "hot"}, {"GET", "missing"}, {"GET", "cold"}, {"SET", "hot"}}) {
+			int numThreads = 10;
+			numRequests.set(0);
+			List<String> replies = Collections.synchronizedList(new LinkedList<>());
+			CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new LinkedList<>();
+			for (int i = 0; i < numThreads; i++) {
+				Thread t = new Thread(() -> {
+					try {
+						// Aborted rather than closed, since the QUIT would count as a request.
+						Redis.Managed redis = Redis.connectUnix(server.getPath());
+						start.await();
+						replies.add(new String(singleFlight.<byte[]>call(redis, (Object[]) command)));
+						redis.abort();
+					} catch (IOException | InterruptedException e) {
+						e.printStackTrace();
+					}
+				});
+				t.start();
+				threads.add(t);
+			}
+			Thread.sleep(100);
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertEqual(numThreads, replies.size());
+			assertEqual(command[1].equals("missing") ? "loaded" : command[0].equals("SET") ? "OK" : command[1], replies.get(0));
+			assertEqual(command[1].equals("cold") || command[0].equals("SET") ? numThreads : 1, numRequests.get());
+		}
+		assertEqual(40, singleFlight.getNumCalls());
+		assertEqual(18, singleFlight.getNumCollapsed());
+		assertEqual(22, singleFlight.getNumExecuted());
+		assertEqual(1, singleFlight.getNumLoaded());
+
+		// A streamed argument can only be sent once, so it is never collapsed.
+		Redis.Managed streaming = Redis.connectUnix(server.getPath());
+		BulkSource value = BulkSource.of(new ByteArrayInputStream("x".getBytes()), 1);
+		assertEqual("hot", new String(singleFlight.<byte[]>call(streaming, "GET", "hot", value)));
+		assertEqual(18, singleFlight.getNumCollapsed());
+		assertEqual(23, singleFlight.getNumExecuted());
+		streaming.abort();
+
+		// An interrupted waiter fails with an InterruptedIOException and keeps its interrupt flag.
+		AtomicReference<Exception> waiterError = new AtomicReference<>();
+		AtomicBoolean waiterInterrupted = new AtomicBoolean(false);
+		Redis.Managed executing = Redis.connectUnix(server.getPath());
+		Redis.Managed waiting = Redis.connectUnix(server.getPath());
+		Thread first = new Thread(() -> {
+			try {
+				singleFlight.call(executing, "GET", "hot");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		first.start();
+		Thread.sleep(100);
+		Thread waiter = new Thread(() -> {
+			try {
+				singleFlight.call(waiting, "GET", "hot");
+			} catch (IOException e) {
+				waiterInterrupted.set(Thread.currentThread().isInterrupted());
+				waiterError.set(e);
+			}
+		});
+		waiter.start();
+		Thread.sleep(50);
+		waiter.interrupt();
+		waiter.join();
+		first.join();
+		executing.abort();
+		waiting.abort();
+		assertTrue(waiterError.get() instanceof InterruptedIOException);
+		assertTrue(waiterInterrupted.get());
+		server.close();
+		System.out.println("Tests passed successfully: testSingleFlight");
+	}
+
+	private static void testCounterAggregator() throws IOException, InterruptedException {
+		Map<String, Long> totals = new ConcurrentHashMap<>();
+		Map<String, Set<String>> hyperLogLogs = new ConcurrentHashMap<>();
+		AtomicInteger numCommands = new AtomicInteger(0);
+		AtomicLong rejected = new AtomicLong(0);
+
+		// A minimal server which keeps the counters, and rejects the first increment of "flaky".
+		FakeServer server = new FakeServer((command, out) -> {
+			numCommands.incrementAndGet();
+			List<String> args = new LinkedList<>();
+			for (Object arg : command) {
+				args.add(new String((byte[]) arg));
+			}
+			switch (args.get(0)) {
+				case "INCRBY":
+					if (args.get(1).equals("flaky") && rejected.compareAndSet(0, Long.parseLong(args.get(2)))) {
+						out.write("-ERR try again\r\n".getBytes());
+						return true;
+					}
+					totals.merge(args.get(1), Long.parseLong(args.get(2)), Long::sum);
+					break;
+				case "HINCRBY":
+					totals.merge(args.get(1) + "/" + args.get(2), Long.parseLong(args.get(3)), Long::sum);
+					break;
+				case "PFADD":
+					hyperLogLogs.computeIfAbsent(args.get(1), k -> new HashSet<>()).addAll(args.subList(2, args.size()));
+					break;
+				case "QUIT":
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			out.write(":1\r\n".getBytes());
+			return true;
+		});
+
+		int numThreads = 8;
+		int numIncrements = 100000;
+		// The first connection attempt fails, which must not stop the periodic flushes.
+		AtomicBoolean connected = new AtomicBoolean(false);
+		List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+		CounterAggregator aggregator = new CounterAggregator(() -> {
+			if (connected.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return Redis.connectUnix(server.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, 10, 1000).setErrorHandler(errors::add);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			final int thread = i;
+			executor.submit(() -> {
+				for (int j = 0; j < numIncrements; j++) {
+					aggregator.incrBy("counter:" + (j % 10), 1);
+					aggregator.hincrBy("hash", "field:" + (j % 3), 2);
+					aggregator.pfadd("visitors", "v" + (j % 500));
+					if (j % 1000 == 0) {
+						aggregator.incrBy("flaky", 1);
+						aggregator.incrBy("key:" + thread + ":" + j, 1);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		aggregator.close();
+		server.close();
+
+		for (int i = 0; i < 10; i++) {
+			assertEqual(numThreads * numIncrements / 10, totals.get("counter:" + i));
+		}
+		assertEqual(2L * numThreads * numIncrements, totals.get("hash/field:0") + totals.get("hash/field:1") + totals.get("hash/field:2"));
+		assertTrue(rejected.get() > 0);
+		assertEqual(numThreads * numIncrements / 1000 - rejected.get(), totals.get("flaky"));
+		assertEqual(numThreads * numIncrements / 1000, totals.keySet().stream().filter(k -> k.startsWith("key:")).count());
+		assertEqual(500, hyperLogLogs.get("visitors").size());
+		assertEqual(1, aggregator.getNumFailed());
+		assertEqual(2, errors.size());
+		assertEqual("Could not connect", errors.get(0).getMessage());
+		assertEqual("Dropped INCRBY flaky " + rejected.get() + ": ERR try again", errors.get(1).getMessage());
+		assertEqual(numThreads * numIncrements * 3L + numThreads * numIncrements / 500, aggregator.getNumUpdates());
+		assertEqual(aggregator.getNumCommands() + 1, numCommands.get());
+		assertTrue(numCommands.get() < aggregator.getNumUpdates() / 100);
+		System.out.println("Tests passed successfully: testCounterAggregator");
+	}
+
+	private static void testStreamingUpload() throws IOException {
+		byte[] value = new byte[3 << 20];
+		new Random(42).nextBytes(value);
+		Path file = Files.createTempFile("redis", ".bin");
+		Files.write(file, value);
+
+		// Every source type encodes to the same bytes as the byte[] it was made of, also without a channel.
+		byte[] small = "streamed value".getBytes();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new Encoder(expected).write(Arrays.asList("SET", "key", small));
+		try (FileChannel fc = FileChannel.open(file)) {
+			Files.write(file, small);
+			for (BulkSource source : Arrays.asList(
+				BulkSource.of(new ByteArrayInputStream(small), small.length),
+				BulkSource.of(Channels.newChannel(new ByteArrayInputStream(small)), small.length),
+				BulkSource.of(fc, 0, small.length),
+				BulkSource.of(ByteBuffer.wrap(small, 0, 8), ByteBuffer.allocateDirect(6).put(small, 8, 6).flip())
+			)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				Encoder encoder = new Encoder(out);
+				encoder.write(Arrays.asList("SET", "key", source));
+				encoder.flush();
+				assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+			}
+			ByteArrayOutputStream slice = new ByteArrayOutputStream();
+			BulkSource.of(ByteBuffer.wrap(small, 0, 8), ByteBuffer.wrap(small, 8, 6)).slice(6, 7).writeTo(slice);
+			assertEqual("ed valu", slice.toString());
+			try {
+				new Encoder(new ByteArrayOutputStream()).writeBulkString(BulkSource.of(new ByteArrayInputStream(small), small.length + 1));
+				throw new RuntimeException("Expected an EOFException for a short stream");
+			} catch (EOFException e) {
+				// expected
+			}
+		}
+		Files.write(file, value);
+
+		Map<String, byte[]> strings = new ConcurrentHashMap<>();
+		AtomicInteger numCommands = new AtomicInteger(0);
+
+		// A minimal server which keeps strings.
+		FakeServer server = new FakeServer((command, out) -> {
+			numCommands.incrementAndGet();
+			String name = new String((byte[]) command.get(0));
+			String key = command.size() > 1 ? new String((byte[]) command.get(1)) : "";
+			byte[] current = strings.getOrDefault(key, new byte[0]);
+			switch (name) {
+				case "SET":
+					strings.put(key, (byte[]) command.get(2));
+					out.write("+OK\r\n".getBytes());
+					break;
+				case "GET":
+					out.write(Encoder.encodeBulkString(current));
+					break;
+				case "APPEND": {
+					byte[] chunk = (byte[]) command.get(2);
+					byte[] next = Arrays.copyOf(current, current.length + chunk.length);
+					System.arraycopy(chunk, 0, next, current.length, chunk.length);
+					strings.put(key, next);
+					out.write((":" + next.length + "\r\n").getBytes());
+					break;
+				}
+				case "SETRANGE": {
+					int offset = Integer.parseInt(new String((byte[]) command.get(2)));
+					byte[] chunk = (byte[]) command.get(3);
+					byte[] next = Arrays.copyOf(current, Math.max(current.length, offset + chunk.length));
+					System.arraycopy(chunk, 0, next, offset, chunk.length);
+					strings.put(key, next);
+					out.write((":" + next.length + "\r\n").getBytes());
+					break;
+				}
+				case "QUIT":
+					out.write("+OK\r\n".getBytes());
+					return false;
+			}
+			return true;
+		});
+
+		try (Redis.Managed redis = Redis.connectUnix(server.getPath()); FileChannel fc = FileChannel.open(file)) {
+			// A file region larger than the output buffer goes through transferTo.
+			redis.call("SET", "file", BulkSource.of(fc, 1000, value.length - 1000));
+			assertTrue(Arrays.equals(Arrays.copyOfRange(value, 1000, value.length), redis.call("GET", "file")));
+
+			List<Object> replies = redis.pipeline()
+				.call("SET", "buffers", BulkSource.of(ByteBuffer.wrap(value, 0, 1 << 20), ByteBuffer.allocateDirect(1 << 20).put(value, 1 << 20, 1 << 20).flip()))
+				.call("GET", "buffers")
+				.read();
+			assertTrue(Arrays.equals(Arrays.copyOf(value, 2 << 20), (byte[]) replies.get(1)));
+
+			int numBefore = numCommands.get();
+			assertEqual(value.length, redis.appendChunked("stream", BulkSource.of(new ByteArrayInputStream(value), value.length), 1 << 20));
+			assertEqual(3, numCommands.get() - numBefore);
+			assertTrue(Arrays.equals(value, redis.call("GET", "stream")));
+
+			assertEqual(10 + value.length, redis.setRangeChunked("file", 10, BulkSource.of(fc, 0, value.length), 1000000));
+			byte[] ranged = redis.call("GET", "file");
+			assertTrue(Arrays.equals(value, Arrays.copyOfRange(ranged, 10, ranged.length)));
+
+			assertEqual(0, redis.appendChunked("empty", BulkSource.of(new ByteBuffer[0]), 1000));
+		}
+		server.close();
+		Files.delete(file);
+		System.out.println("Tests passed successfully: testStreamingUpload");
+	}
+
+	private static void testLoadGenerator() throws IOException, InterruptedException {
+		LoadGenerator.Histogram histogram = new LoadGenerator.Histogram();
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i * 1000);
+		}
+		long[] counts = histogram.snapshot();
+		assertEqual(100000, LoadGenerator.Histogram.count(counts));
+		for (double p : new double[]{50, 99, 99.9, 100}) {
+			long exact = (long) (p * 1000) * 1000;
+			long reported = LoadGenerator.Histogram.percentile(counts, p);
+			assertTrue(reported >= exact && reported <= exact * 1.02);
+		}
+		assertEqual(0, LoadGenerator.Histogram.percentile(new long[LoadGenerator.Histogram.SIZE], 50));
+
+		int[] frequencies = new int[1000];
+		LoadGenerator.Zipf zipf = new LoadGenerator.Zipf(frequencies.length, 0.99);
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			frequencies[zipf.next(random)]++;
+		}
+		assertTrue(frequencies[0] > frequencies[1] && frequencies[1] > frequencies[10] && frequencies[10] > frequencies[500]);
+		assertTrue(frequencies[0] > 100000 / 20);
+
+		try (LoadGenerator.StandIn standIn = new LoadGenerator.StandIn()) {
+			Supplier<Redis.Managed> connector = () -> {
+				try {
+					return Redis.connectUnix(standIn.getPath());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			};
+
+			for (LoadGenerator.Mode mode : LoadGenerator.Mode.values()) {
+				LoadGenerator.Result result = new LoadGenerator(connector)
+					.setRate(4000)
+					.setDuration(500)
+					.setMode(mode, 4)
+					.setMix("SET:40,GET:40,HSET:5,HGET:5,EXISTS:5,DEL:5")
+					.setKeys(1000, 0.99)
+					.setValueSize(1000)
+					.run();
+				assertEqual(2000, result.getCount());
+				assertEqual(0, result.getErrors());
+				assertTrue(result.getLatencyMicros(50) <= result.getLatencyMicros(99) && result.getLatencyMicros(99) <= result.getMaxMicros());
+			}
+
+			try (Redis.Managed redis = connector.get()) {
+				redis.call("SET", "key:0", "not a number");
+				LoadGenerator.Result result = new LoadGenerator(connector).setRate(1000).setDuration(100).setMix("INCR").setKeys(1, 0).run();
+				assertEqual(100, result.getErrors());
+			}
+
+			// A stall of the server delays all operations that were scheduled during it, not just the one in flight.
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			Thread staller = new Thread(() -> {
+				try (Redis.Managed redis = connector.get()) {
+					Thread.sleep(300);
+					redis.call("DEBUG", "SLEEP", "0.2");
+				} catch (IOException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			});
+			staller.start();
+			LoadGenerator.Result result = new LoadGenerator(connector)
+				.setRate(2000)
+				.setDuration(1000)
+				.setReport(new PrintStream(report, true), 250)
+				.run();
+			staller.join();
+			assertEqual(2000, result.getCount());
+			assertTrue(result.getLatencyMicros(50) < 50000);
+			assertTrue(result.getLatencyMicros(99) >= 100000);
+			assertTrue(result.getMaxMicros() >= 150000);
+			String[] lines = report.toString().split("\n");
+			assertTrue(lines.length >= 4 && lines[0].contains("p99.9"));
+		}
+
+		// A connector failure stops the run in every mode, rather than silently ending a thread.
+		for (LoadGenerator.Mode mode : LoadGenerator.Mode.values()) {
+			try {
+				new LoadGenerator(() -> {
+					throw new IllegalStateException("No server");
+				}).setRate(1000).setDuration(100).setMode(mode, 2).run();
+				throw new RuntimeException("Expected an IOException");
+			} catch (IOException e) {
+				assertEqual("No server", e.getCause().getMessage());
+			}
+		}
+		System.out.println("Tests passed successfully: testLoadGenerator");
+	}
+
+	/**
+	 * A fake server on a temporary unix socket, which answers the commands of each connection with a reply function.
+	 * Replies are flushed once all pipelined commands are answered.
+	 */
+	private static class FakeServer implements AutoCloseable {
+		@FunctionalInterface
+		interface Reply {
+			/**
+			 * @param command The command, as a list of byte[] arguments.
+			 * @param out     The stream to write the reply to.
+			 * @return false to close the connection.
+			 * @throws Exception Printed, and closes the connection.
+			 */
+			boolean reply(List<?> command, OutputStream out) throws Exception;
+		}
+
+		private final Path path;
+		private final ServerSocketChannel server;
+		private final Thread acceptor;
+		private final List<Thread> connections = Collections.synchronizedList(new ArrayList<>());
+
+		FakeServer(Reply reply) throws IOException {
+			path = Files.createTempDirectory("redis").resolve("redis.sock");
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(path));
+			acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						SocketChannel c = server.accept();
+						Thread t = new Thread(() -> {
+							try (c) {
+								ChannelInputStream in = new ChannelInputStream(c, 1 << 16);
+								Parser parser = new Parser(in);
+								OutputStream out = new ChannelOutputStream(c, 1 << 16);
+								List<?> command;
+								while ((command = (List<?>) parser.parse()) != null) {
+									boolean open = reply.reply(command, out);
+									if (!open || in.available() == 0) {
+										out.flush();
+									}
+									if (!open) {
+										break;
+									}
+								}
+							} catch (Exception e) {
+								e.printStackTrace();
+							}
+						});
+						t.setDaemon(true);
+						connections.add(t);
+						t.start();
+					}
+				} catch (IOException closed) {
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		Path getPath() {
+			return path;
+		}
+
+		/**
+		 * Stop accepting, and wait until the clients have closed their connections.
+		 */
+		@Override
+		public void close() throws IOException {
+			server.close();
+			try {
+				acceptor.join();
+				for (Thread t : new ArrayList<>(connections)) {
+					t.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			Files.delete(path);
+			Files.delete(path.getParent());
+		}
+	}
+
+	private static void rdbLength(ByteArrayOutputStream out, long len) {
+		if (len < 64) {
+			out.write((int) len);
+		} else if (len < 16384) {
+			out.write(0x40 | (int) (len >> 8));
+			out.write((int) len & 0xff);
+		} else {
+			out.write(0x80);
+			out.writeBytes(ByteBuffer.allocate(4).putInt((int) len).array());
+		}
+	}
+
+	private static void rdbString(ByteArrayOutputStream out, byte[] value) {
+		rdbLength(out, value.length);
+		out.writeBytes(value);
+	}
+
+	private static byte[] listpack(int count, byte[] entries) {
+		return ByteBuffer.allocate(7 + entries.length).order(ByteOrder.LITTLE_ENDIAN)
+			.putInt(7 + entries.length).putShort((short) count).put(entries).put((byte) 0xff).array();
+	}
+
 	private static void integrationTest() throws InterruptedException {
 		final String keyName = RedisTest.class.getCanonicalName();
 		Consumer<Redis.FailableConsumer<Redis, IOException>> exec = (consumer) -> {
@@ -473,6 +2011,250 @@ public class RedisTest {
 	}
 
 
+	public static void queueTest() throws IOException, InterruptedException {
+		for (String processingKey : new String[]{null, RedisTest.class.getCanonicalName() + ":processing"}) {
+			ListQueue queue = new ListQueue(RedisTest.class.getCanonicalName() + ":list-queue", processingKey, 500);
+			Redis.run(redis -> redis.call("DEL", RedisTest.class.getCanonicalName() + ":list-queue"), REDIS_HOST, REDIS_PORT);
+
+			LocalDateTime start = LocalDateTime.now();
+			try (Redis.Managed redis = Redis.connect(REDIS_HOST, REDIS_PORT)) {
+				try (ListQueue.Producer producer = queue.producer(redis)) {
+					for (int i = 0; i < numMessages; i++) {
+						producer.add(Integer.toString(i));
+					}
+				}
+			}
+
+			AtomicLong sum = new AtomicLong(0);
+			ListQueue.ConsumerPool pool = queue.consume(
+				() -> {
+					try {
+						return Redis.connect(REDIS_HOST, REDIS_PORT);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				},
+				4,
+				8,
+				1,
+				value -> sum.addAndGet(Long.parseLong(new String(value)))
+			);
+			while (pool.getHandled() < numMessages) {
+				Thread.sleep(10);
+			}
+			pool.close();
+
+			assertEqual(pool.getHandled(), numMessages);
+			assertEqual(sum.get(), (long) numMessages * (numMessages - 1) / 2);
+			if (processingKey != null) {
+				Redis.run(redis -> assertEqual(0, redis.<Long>call("LLEN", processingKey)), REDIS_HOST, REDIS_PORT);
+			}
+			System.out.printf(
+				"Queue test (%s): %d messages passed in %d ms\n",
+				queue.isReliable() ? "reliable" : "unreliable",
+				numMessages,
+				start.until(LocalDateTime.now(), ChronoUnit.MILLIS)
+			);
+		}
+	}
+
+	public static void streamTest() throws IOException, InterruptedException {
+		final String stream = RedisTest.class.getCanonicalName() + ":stream";
+		Redis.run(redis -> {
+			redis.call("DEL", stream);
+			StreamConsumer.createGroup(redis, stream, "group", "0");
+			StreamConsumer.createGroup(redis, stream, "group", "0");
+			Redis.Pipeline p = redis.pipeline();
+			for (int i = 0; i < numMessages; i++) {
+				p.call("XADD", stream, "*", "key", Integer.toString(i % 10), "n", Integer.toString(i));
+			}
+			p.read();
+		}, REDIS_HOST, REDIS_PORT);
+
+		Map<String, Long> last = new ConcurrentHashMap<>();
+		AtomicBoolean ordered = new AtomicBoolean(true);
+		LocalDateTime start = LocalDateTime.now();
+		StreamConsumer consumer = new StreamConsumer(
+			() -> {
+				try {
+					return Redis.connect(REDIS_HOST, REDIS_PORT);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			},
+			stream,
+			"group",
+			"consumer"
+		)
+			.setNumWorkers(4)
+			.setBlockMillis(100)
+			.setOrderingKey(entry -> new String(entry.get("key")))
+			.start(entry -> {
+				long n = Long.parseLong(new String(entry.get("n")));
+				Long prev = last.put(new String(entry.get("key")), n);
+				if (prev != null && prev > n) {
+					ordered.set(false);
+				}
+			});
+		while (consumer.getHandled() < numMessages) {
+			Thread.sleep(10);
+		}
+		consumer.close();
+
+		assertTrue(ordered.get());
+		Redis.run(redis -> {
+			List<Object> pending = redis.call("XPENDING", stream, "group");
+			assertEqual(0, (Long) pending.get(0));
+			redis.call("DEL", stream);
+		}, REDIS_HOST, REDIS_PORT);
+		System.out.printf("Stream test: %d entries handled in %d ms\n", numMessages, start.until(LocalDateTime.now(), ChronoUnit.MILLIS));
+	}
+
+	public static void deadlineTest() throws IOException {
+		final String keyName = RedisTest.class.getCanonicalName() + ":deadline";
+		try (DeadlineClient client = new DeadlineClient(
+			() -> {
+				try {
+					return Redis.connect(REDIS_HOST, REDIS_PORT);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			},
+			5000
+		)) {
+			client.call(1000, "SET", keyName, "value");
+			try {
+				client.call(100, "BLPOP", keyName + ":blocking", "1");
+				throw new RuntimeException("Expected deadline to be exceeded");
+			} catch (DeadlineClient.DeadlineExceeded expected) {
+			}
+			for (int i = 0; i < 100; i++) {
+				assertEqual("value", new String(client.<byte[]>hedgedCall(1000, "GET", keyName)));
+			}
+			assertTrue(client.getHedgeDelayMicros() < Long.MAX_VALUE);
+			client.call(1000, "DEL", keyName);
+		}
+		System.out.println("Tests passed successfully: deadlineTest");
+	}
+
+	public static void compressionTest() throws IOException {
+		final String keyName = RedisTest.class.getCanonicalName() + ":compressed";
+		CompressionCodec codec = new CompressionCodec();
+		Redis.run(redis -> {
+			redis.setCodec(codec);
+			for (String value : strings) {
+				redis.call("SET", keyName, Value.of(value));
+				assertEqual(value, new String(redis.<byte[]>call("GET", keyName)));
+			}
+			redis.setCodec(null);
+			assertTrue(redis.<Long>call("STRLEN", keyName) < strings[2].length());
+			redis.call("DEL", keyName);
+		}, REDIS_HOST, REDIS_PORT);
+		System.out.printf("Compression test: %d bytes saved\n", codec.getBytesSaved());
+	}
+
+	public static void shardedTest() throws IOException {
+		final String keyName = RedisTest.class.getCanonicalName() + ":sharded:";
+		Map<String, Supplier<Redis>> nodes = new LinkedHashMap<>();
+		for (String node : new String[]{"a", "b", "c"}) {
+			// All "nodes" point to the same server, but use a different database.
+			nodes.put(node, () -> {
+				try {
+					Redis redis = Redis.connect(REDIS_HOST, REDIS_PORT);
+					redis.call("SELECT", Integer.toString(node.charAt(0) - 'a' + 1));
+					return redis;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+		try (ShardedRedis redis = new ShardedRedis(nodes)) {
+			Object[] keysAndValues = new Object[200];
+			Object[] keys = new Object[100];
+			for (int i = 0; i < 100; i++) {
+				keys[i] = keyName + i;
+				keysAndValues[i * 2] = keys[i];
+				keysAndValues[i * 2 + 1] = Integer.toString(i);
+			}
+			redis.mset(keysAndValues);
+			List<byte[]> values = redis.mget(keys);
+			for (int i = 0; i < 100; i++) {
+				assertEqual(Integer.toString(i), new String(values.get(i)));
+			}
+			assertEqual("5", new String(redis.<byte[]>call("GET", keyName + 5)));
+			assertEqual(100, redis.exists(keys));
+			assertEqual(100, redis.del(keys));
+			assertEqual(0, redis.exists(keys));
+		}
+		System.out.println("Tests passed successfully: shardedTest");
+	}
+
+	enum Role {
+		ADMIN, USER
+	}
+
+	record UserRecord(String name, int age, Role role, boolean active, Double score) {
+	}
+
+	record Grade(char grade, byte level) {
+	}
+
+	static class UserObject {
+		private String name;
+		private long visits;
+		private transient String ignored = "ignored";
+	}
+
+	public static void hashMapperTest() throws IOException {
+		final String keyName = RedisTest.class.getCanonicalName() + ":hash";
+		Redis.run(redis -> {
+			redis.call("DEL", keyName);
+			HashMapper<UserRecord> records = HashMapper.of(UserRecord.class);
+			assertTrue(records == HashMapper.of(UserRecord.class));
+			assertEqual(4, records.save(redis, keyName, new UserRecord("alice", 42, Role.ADMIN, true, null)));
+			assertEqual("42", new String(redis.<byte[]>call("HGET", keyName, "age")));
+			assertEqual(new UserRecord("alice", 42, Role.ADMIN, true, null).toString(), records.load(redis, keyName).toString());
+			assertEqual(new UserRecord(null, 42, null, false, null).toString(), records.load(redis, keyName, "age").toString());
+			assertTrue(records.load(redis, keyName + ":missing") == null);
+
+			redis.call("DEL", keyName);
+			UserObject user = new UserObject();
+			user.name = "bob";
+			user.visits = 3;
+			HashMapper.of(UserObject.class).save(redis, keyName, user);
+			assertEqual(2, redis.<Long>call("HLEN", keyName));
+			UserObject loaded = HashMapper.of(UserObject.class).load(redis, keyName);
+			assertEqual("bob", loaded.name);
+			assertEqual(3, loaded.visits);
+			redis.call("DEL", keyName);
+		}, REDIS_HOST, REDIS_PORT);
+		System.out.println("Tests passed successfully: hashMapperTest");
+	}
+
+	public static void longBatchTest() throws IOException {
+		final String keyName = RedisTest.class.getCanonicalName() + ":counter";
+		Redis.run(redis -> {
+			redis.call("DEL", keyName, keyName + ":hash", keyName + ":string");
+			redis.call("SET", keyName + ":string", "not a number");
+			Redis.LongBatch batch = redis.longBatch();
+			for (int i = 0; i < 10000; i++) {
+				batch.incrBy(keyName, 2);
+			}
+			batch.hincrBy(keyName + ":hash", "field", -1);
+			batch.exists(keyName);
+			batch.incrBy(keyName + ":string", 1);
+			long[] results = new long[batch.size()];
+			assertEqual(1, batch.read(results));
+			assertEqual(20000, results[9999]);
+			assertEqual(-1, results[10000]);
+			assertEqual(1, results[10001]);
+			assertTrue(batch.getError(10002) != null);
+			assertTrue(batch.getError(0) == null);
+			redis.call("DEL", keyName, keyName + ":hash", keyName + ":string");
+		}, REDIS_HOST, REDIS_PORT);
+		System.out.println("Tests passed successfully: longBatchTest");
+	}
+
 	private static String msg = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Suspendisse in purus in dui cursus dignissim id at neque. Duis porta ullamcorper aliquam. Suspendisse hendrerit urna id felis aliquet rutrum. Fusce ultricies magna elit, id volutpat risus dictum et. Sed pretium elementum arcu, vitae aliquet ligula. Phasellus viverra vel arcu vel dictum. Fusce ac purus fringilla neque dapibus sollicitudin sit amet et felis. Nulla gravida fringilla ex sit amet faucibus. Etiam sit amet nisl id est dictum porttitor eget nec risus. Vivamus et ultrices arcu, vitae accumsan lectus. Phasellus tempus tortor lectus, vitae consequat enim dictum auctor. Ut elementum sapien eu diam tempus condimentum.\n" +
 		"\n" +
 		"Vestibulum ultricies bibendum arcu ut commodo. Morbi tristique dui quis commodo consectetur. Praesent venenatis augue justo, sed placerat lectus aliquam eget. Duis malesuada lobortis quam id congue. Fusce mollis faucibus arcu. Aliquam consectetur leo eu luctus accumsan. Nulla nec diam non ex eleifend fringilla sit amet et ante. Mauris posuere est ut turpis pellentesque hendrerit.\n" +